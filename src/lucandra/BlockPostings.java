@@ -0,0 +1,224 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The skip data of a term whose TI row has been packed into blocks by
+ * IndexWriter.packPostings().
+ *
+ * Postings are written one column per doc, named by the VInt doc id. Packing
+ * moves them into columns of blockSize postings each, serialized
+ * PostingsBlocks named VInt(maxDocsPerShard + first doc id), and writes the
+ * skip column listing the blocks. All of these sort after the doc columns
+ * of the row, so a row can hold both: docs written since the last pack are
+ * read from their own columns and override the blocks.
+ *
+ * Packing is enabled per index with -Dlucandra.postings.blocks=index1,index2
+ * (or * for all indexes) or setEnabled(). A deleted doc may still sit in a
+ * block, so deletes from a term whose row has a skip column write an empty
+ * column for the doc rather than a tombstone, whether packing is still
+ * enabled or not. Other terms get tombstones, purged after gc_grace.
+ *
+ * Skip column layout:
+ *
+ * <pre>
+ * VInt block count, then per block: VInt first doc id gap, VInt doc count,
+ * VInt last doc id - first doc id
+ * </pre>
+ */
+public class BlockPostings
+{
+    public static final int                   blockSize     = Integer.getInteger("lucandra.postings.block", 128);
+
+    // the last possible doc column, slices of doc columns stop here
+    public static final ByteBuffer            lastDocColumn = ByteBuffer.wrap(CassandraUtils
+                                                                    .writeVInt(CassandraUtils.maxDocsPerShard - 1));
+    public static final ByteBuffer            skipColumn    = ByteBuffer.wrap(CassandraUtils.writeVInt(Integer.MAX_VALUE));
+
+    private static final Set<String>          configured;
+    private static final Map<String, Boolean> overrides     = new ConcurrentHashMap<String, Boolean>();
+
+    static
+    {
+        Set<String> names = new HashSet<String>();
+
+        for (String name : System.getProperty("lucandra.postings.blocks", "").split(","))
+        {
+            if (name.trim().length() > 0)
+                names.add(name.trim());
+        }
+
+        configured = Collections.unmodifiableSet(names);
+    }
+
+    public final int[]                        firstDocs;
+    public final int[]                        lastDocs;
+    public final int[]                        counts;
+    public final int                          docCount;
+
+    public BlockPostings(int[] firstDocs, int[] lastDocs, int[] counts)
+    {
+        this.firstDocs = firstDocs;
+        this.lastDocs = lastDocs;
+        this.counts = counts;
+
+        int docCount = 0;
+        for (int count : counts)
+            docCount += count;
+
+        this.docCount = docCount;
+    }
+
+    /** Overrides lucandra.postings.blocks for one index */
+    public static void setEnabled(String indexName, boolean enabled)
+    {
+        overrides.put(indexName, enabled);
+    }
+
+    /**
+     * Solandra shards (core~shard) follow the setting of their core
+     */
+    public static boolean isEnabled(String indexName)
+    {
+        Boolean enabled = overrides.get(indexName);
+
+        int shard = indexName.indexOf('~');
+        if (enabled == null && shard > 0)
+            enabled = overrides.get(indexName.substring(0, shard));
+
+        if (enabled != null)
+            return enabled;
+
+        return configured.contains("*") || configured.contains(indexName)
+                || (shard > 0 && configured.contains(indexName.substring(0, shard)));
+    }
+
+    /** Name of the column of the block starting at firstDoc */
+    public static ByteBuffer blockColumn(int firstDoc)
+    {
+        return ByteBuffer.wrap(CassandraUtils.writeVInt(CassandraUtils.maxDocsPerShard + firstDoc));
+    }
+
+    /**
+     * @return true for the names of block and skip columns
+     */
+    public static boolean isBlockColumn(ByteBuffer name)
+    {
+        return CassandraUtils.readVInt(name) >= CassandraUtils.maxDocsPerShard;
+    }
+
+    public int size()
+    {
+        return firstDocs.length;
+    }
+
+    /**
+     * @return the last block starting at or before doc, 0 if there is none
+     */
+    public int blockOf(int doc)
+    {
+        int low = 0;
+        int high = firstDocs.length - 1;
+
+        while (low < high)
+        {
+            int mid = (low + high + 1) >>> 1;
+
+            if (firstDocs[mid] <= doc)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+
+        return low;
+    }
+
+    /**
+     * @return true if doc falls between the first and last doc of a block,
+     *         so a column of it may override a posting of that block
+     */
+    public boolean covers(int doc)
+    {
+        if (firstDocs.length == 0)
+            return false;
+
+        int block = blockOf(doc);
+
+        return doc >= firstDocs[block] && doc <= lastDocs[block];
+    }
+
+    public ByteBuffer serialize()
+    {
+        int size = CassandraUtils.vIntSize(firstDocs.length);
+
+        int last = 0;
+        for (int i = 0; i < firstDocs.length; i++)
+        {
+            size += CassandraUtils.vIntSize(firstDocs[i] - last) + CassandraUtils.vIntSize(counts[i])
+                    + CassandraUtils.vIntSize(lastDocs[i] - firstDocs[i]);
+            last = firstDocs[i];
+        }
+
+        ByteBuffer r = ByteBuffer.allocate(size);
+
+        CassandraUtils.writeVInt(r, firstDocs.length);
+
+        last = 0;
+        for (int i = 0; i < firstDocs.length; i++)
+        {
+            CassandraUtils.writeVInt(r, firstDocs[i] - last);
+            CassandraUtils.writeVInt(r, counts[i]);
+            CassandraUtils.writeVInt(r, lastDocs[i] - firstDocs[i]);
+            last = firstDocs[i];
+        }
+
+        r.rewind();
+
+        return r;
+    }
+
+    public static BlockPostings deserialize(ByteBuffer bytes)
+    {
+        ByteBuffer in = bytes.duplicate();
+
+        int size = CassandraUtils.mreadVInt(in);
+        int[] firstDocs = new int[size];
+        int[] lastDocs = new int[size];
+        int[] counts = new int[size];
+
+        int last = 0;
+        for (int i = 0; i < size; i++)
+        {
+            firstDocs[i] = last + CassandraUtils.mreadVInt(in);
+            counts[i] = CassandraUtils.mreadVInt(in);
+            lastDocs[i] = firstDocs[i] + CassandraUtils.mreadVInt(in);
+            last = firstDocs[i];
+        }
+
+        return new BlockPostings(firstDocs, lastDocs, counts);
+    }
+}
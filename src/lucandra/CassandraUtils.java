@@ -28,7 +28,9 @@ import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -36,10 +38,13 @@ import java.util.concurrent.TimeoutException;
 
 import org.apache.cassandra.config.ConfigurationException;
 import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.RowMutation;
 import org.apache.cassandra.db.SliceByNamesReadCommand;
+import org.apache.cassandra.db.SuperColumn;
 import org.apache.cassandra.db.filter.QueryPath;
 import org.apache.cassandra.service.StorageProxy;
 import org.apache.cassandra.service.StorageService;
@@ -51,6 +56,8 @@ import org.apache.cassandra.utils.FBUtilities;
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.Term;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+
 public class CassandraUtils
 {
 
@@ -90,11 +97,27 @@ public class CassandraUtils
     public static final String               documentMetaField      = delimeter + "META" + delimeter;
     public static final ByteBuffer           documentMetaFieldBytes;
 
+    // all stored fields of a document, see StoredFields. Sorts below
+    // finalToken so document slices include it
+    public static final String               packedFieldsColumn     = "\ufffe" + "FIELDS" + "\ufffe";
+
+    // prefix of the norms row of a field, sorts apart from the term rows
+    public static final String               normsRow               = delimeter + "NORMS" + delimeter;
+    public static final ByteBuffer           packedFieldsColumnBytes;
+
     public static final boolean              indexHashingEnabled    = Boolean.valueOf(System.getProperty(
             "index.hashing", "true"));
     
+    // upper bound on the bytes sent in a single StorageProxy.mutate call
+    public static final long                 mutationBatchBytes     = Long.getLong("lucandra.mutation.batch.bytes",
+                                                                            4 * 1024 * 1024);
+
     //how often to check for cache invalidation
     public static int   cacheInvalidationInterval = 1000;//ms
+
+    //once invalidations are pushed (see InvalidationService): how often writers push them and readers still check
+    public static int   cachePushInterval         = Integer.getInteger("lucandra.cache.push.interval", 10);//ms
+    public static int   cacheFallbackInterval     = Integer.getInteger("lucandra.cache.fallback.interval", 30000);//ms
   
     public static final QueryPath            metaColumnPath;
 
@@ -107,6 +130,7 @@ public class CassandraUtils
             delimeterBytes = delimeter.getBytes("UTF-8");
             documentMetaFieldBytes = ByteBuffer.wrap(documentMetaField.getBytes("UTF-8"));
             finalTokenBytes = ByteBuffer.wrap(finalToken.getBytes("UTF-8"));
+            packedFieldsColumnBytes = ByteBuffer.wrap(packedFieldsColumn.getBytes("UTF-8"));
             metaColumnPath = new QueryPath(CassandraUtils.docColumnFamily);
         }
         catch (UnsupportedEncodingException e)
@@ -119,6 +143,12 @@ public class CassandraUtils
 
     private static final Logger              logger                 = Logger.getLogger(CassandraUtils.class);
 
+    // hashed key prefix per index name
+    private static final Map<String, byte[]> indexKeyPrefixes       = new ConcurrentLinkedHashMap.Builder<String, byte[]>()
+                                                                            .maximumWeightedCapacity(4096).build();
+
+    private static final byte[]              hexDigits              = "0123456789abcdef".getBytes();
+
     private static boolean                   cassandraStarted       = false;
 
     // Start Cassandra up!!!
@@ -304,7 +334,74 @@ public class CassandraUtils
         { // insert
 
             rm.add(new QueryPath(columnFamily, null, column), value, System.currentTimeMillis());
-    
+
+        }
+    }
+
+    /** @return the changes to columnFamily in the mutation, or null */
+    public static ColumnFamily getColumnFamily(RowMutation rm, String columnFamily)
+    {
+        for (ColumnFamily cf : rm.getColumnFamilies())
+        {
+            if (cf.metadata().cfName.equals(columnFamily))
+                return cf;
+        }
+
+        return null;
+    }
+
+    /** Drops the pending changes to columnFamily in the given row */
+    public static void removeMutations(Map<ByteBuffer, RowMutation> mutationList, ByteBuffer key, String columnFamily)
+    {
+        RowMutation rm = mutationList.get(key);
+        if (rm == null || getColumnFamily(rm, columnFamily) == null)
+            return;
+
+        RowMutation remaining = new RowMutation(CassandraUtils.keySpace, key);
+        for (ColumnFamily cf : rm.getColumnFamilies())
+        {
+            if (!cf.metadata().cfName.equals(columnFamily))
+                remaining.add(cf);
+        }
+
+        if (remaining.isEmpty())
+            mutationList.remove(key);
+        else
+            mutationList.put(key, remaining);
+    }
+
+    /**
+     * Moves the mutations of source into target, combining the column
+     * families of rows present in both
+     */
+    public static void mergeMutations(Map<ByteBuffer, RowMutation> target, Map<ByteBuffer, RowMutation> source)
+    {
+        for (Map.Entry<ByteBuffer, RowMutation> entry : source.entrySet())
+        {
+            RowMutation rm = target.get(entry.getKey());
+            if (rm == null)
+            {
+                target.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+
+            for (ColumnFamily cf : entry.getValue().getColumnFamilies())
+            {
+                ColumnFamily current = null;
+                for (ColumnFamily existing : rm.getColumnFamilies())
+                {
+                    if (existing.id().equals(cf.id()))
+                    {
+                        current = existing;
+                        break;
+                    }
+                }
+
+                if (current == null)
+                    rm.add(cf);
+                else
+                    current.resolve(cf);
+            }
         }
     }
 
@@ -343,6 +440,62 @@ public class CassandraUtils
         throw new RuntimeException("insert failed after 10 attempts");
     }
 
+    /**
+     * Splits the mutations into batches of at most maxBatchBytes
+     */
+    public static List<RowMutation[]> batchMutations(Collection<RowMutation> mutations, long maxBatchBytes)
+    {
+        List<RowMutation[]> batches = new ArrayList<RowMutation[]>();
+        List<RowMutation> batch = new ArrayList<RowMutation>();
+        long batchBytes = 0;
+
+        for (RowMutation rm : mutations)
+        {
+            long size = mutationSize(rm);
+
+            if (!batch.isEmpty() && batchBytes + size > maxBatchBytes)
+            {
+                batches.add(batch.toArray(new RowMutation[] {}));
+                batch.clear();
+                batchBytes = 0;
+            }
+
+            batch.add(rm);
+            batchBytes += size;
+        }
+
+        if (!batch.isEmpty())
+            batches.add(batch.toArray(new RowMutation[] {}));
+
+        return batches;
+    }
+
+    /** Approximate serialized size of a mutation */
+    public static long mutationSize(RowMutation rm)
+    {
+        long size = rm.key().remaining();
+
+        for (ColumnFamily cf : rm.getColumnFamilies())
+        {
+            for (IColumn col : cf.getSortedColumns())
+            {
+                if (col instanceof SuperColumn)
+                {
+                    size += col.name().remaining();
+
+                    for (IColumn subCol : col.getSubColumns())
+                        size += subCol.name().remaining() + subCol.value().remaining() + 16;
+                }
+                else
+                {
+                    size += col.name().remaining() + col.value().remaining() + 16;
+                }
+            }
+        }
+
+        return size;
+    }
+
     public static List<Row> robustRead(ConsistencyLevel cl, ReadCommand... rc)
     {      
         List<Row> rows = null;
@@ -485,6 +638,187 @@ public class CassandraUtils
         return ByteBuffer.wrap(hashedKey);
     }
 
+    /**
+     * Returns the key prefix of an index: its hash (or name, if hashing is
+     * disabled) followed by the delimiter. Prefixes are cached since every
+     * term, field and document key of an index starts with one.
+     */
+    public static byte[] indexKeyPrefix(String indexName)
+    {
+        byte[] prefix = indexKeyPrefixes.get(indexName);
+
+        if (prefix == null)
+        {
+            byte[] nameBytes = indexName.getBytes(UTF_8);
+
+            if (indexHashingEnabled)
+            {
+                prefix = hashBytes(nameBytes).array(); // safe, uses .wrap
+            }
+            else
+            {
+                prefix = new byte[nameBytes.length + delimeterBytes.length];
+                System.arraycopy(nameBytes, 0, prefix, 0, nameBytes.length);
+                System.arraycopy(delimeterBytes, 0, prefix, nameBytes.length, delimeterBytes.length);
+            }
+
+            indexKeyPrefixes.put(indexName, prefix);
+        }
+
+        return prefix;
+    }
+
+    /** Key of a per index row, e.g. indexName/ids */
+    public static ByteBuffer indexKey(String indexName, String name)
+    {
+        byte[] prefix = indexKeyPrefix(indexName);
+
+        byte[] key = new byte[prefix.length + utf8Length(name)];
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+        writeUTF8(name, key, prefix.length);
+
+        return ByteBuffer.wrap(key);
+    }
+
+    /** Key of the TL row listing the terms of a field: indexName/field */
+    public static ByteBuffer fieldKey(String indexName, String field)
+    {
+        return indexKey(indexName, field);
+    }
+
+    /** Key of the TI row holding the postings of a term: indexName/field/text */
+    public static ByteBuffer termKey(String indexName, String field, String text)
+    {
+        byte[] prefix = indexKeyPrefix(indexName);
+
+        byte[] key = new byte[prefix.length + utf8Length(field) + delimeterBytes.length + utf8Length(text)];
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+
+        int pos = writeUTF8(field, key, prefix.length);
+        System.arraycopy(delimeterBytes, 0, key, pos, delimeterBytes.length);
+        writeUTF8(text, key, pos + delimeterBytes.length);
+
+        return ByteBuffer.wrap(key);
+    }
+
+    public static ByteBuffer termKey(String indexName, Term term)
+    {
+        return termKey(indexName, term.field(), term.text());
+    }
+
+    /** Same as termKey, with the term text given as UTF-8 bytes */
+    public static ByteBuffer termKey(String indexName, String field, ByteBuffer text)
+    {
+        byte[] prefix = indexKeyPrefix(indexName);
+
+        byte[] key = new byte[prefix.length + utf8Length(field) + delimeterBytes.length + text.remaining()];
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+
+        int pos = writeUTF8(field, key, prefix.length);
+        System.arraycopy(delimeterBytes, 0, key, pos, delimeterBytes.length);
+        System.arraycopy(text.array(), text.position() + text.arrayOffset(), key, pos + delimeterBytes.length, text
+                .remaining());
+
+        return ByteBuffer.wrap(key);
+    }
+
+    /**
+     * Key of the TI row holding the norms of a field, one byte per document
+     * named by its VInt doc id: indexName/\uffffNORMS\ufffffield
+     */
+    public static ByteBuffer normsKey(String indexName, String field)
+    {
+        return indexKey(indexName, normsRow + field);
+    }
+
+    /** Key of the Docs row of a document: indexName/hex(docNumber) */
+    public static ByteBuffer docKey(String indexName, int docNumber)
+    {
+        byte[] prefix = indexKeyPrefix(indexName);
+
+        int digits = Math.max(1, (32 - Integer.numberOfLeadingZeros(docNumber) + 3) / 4);
+
+        byte[] key = new byte[prefix.length + digits];
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+
+        for (int i = key.length - 1; i >= prefix.length; i--, docNumber >>>= 4)
+            key[i] = hexDigits[docNumber & 0xF];
+
+        return ByteBuffer.wrap(key);
+    }
+
+    private static int utf8Length(String s)
+    {
+        int length = 0;
+
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+
+            if (c < 0x80)
+                length++;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                length += 4;
+                i++;
+            }
+            else if (isSurrogate(c))
+                length++; // replaced by '?'
+            else
+                length += 3;
+        }
+
+        return length;
+    }
+
+    private static boolean isSurrogate(char c)
+    {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    // Encodes s as UTF-8 into buf, returns the position after the last byte
+    private static int writeUTF8(String s, byte[] buf, int pos)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+
+            if (c < 0x80)
+            {
+                buf[pos++] = (byte) c;
+            }
+            else if (c < 0x800)
+            {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            }
+            else if (isSurrogate(c))
+            {
+                // unpaired surrogates are replaced, as String.getBytes does
+                buf[pos++] = (byte) '?';
+            }
+            else
+            {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        return pos;
+    }
+
     public static int mreadVInt(ByteBuffer buf)
     {       
         int length = buf.remaining();
@@ -545,4 +879,30 @@ public class CassandraUtils
 
         return buf;
     }
+
+    /** Number of bytes writeVInt uses for i */
+    public static int vIntSize(int i)
+    {
+        int length = 1;
+
+        while ((i & ~0x7F) != 0)
+        {
+            i >>>= 7;
+            length++;
+        }
+
+        return length;
+    }
+
+    /** Writes i as a VInt at the buffer's position */
+    public static void writeVInt(ByteBuffer buf, int i)
+    {
+        while ((i & ~0x7F) != 0)
+        {
+            buf.put((byte) ((i & 0x7f) | 0x80));
+            i >>>= 7;
+        }
+
+        buf.put((byte) i);
+    }
 }
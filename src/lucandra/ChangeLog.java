@@ -0,0 +1,509 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.ReadCommand;
+import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.SliceFromReadCommand;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.utils.FBUtilities;
+import org.apache.lucene.index.Term;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * The terms and documents each index shard had written, so readers can
+ * evict just those from their ReaderCache rather than reopen.
+ *
+ * IndexWriter records what it changes once enabled. What a thread records
+ * is only published once the write of its mutations was attempted, so an
+ * entry never lists a change readers could not read yet. A failed write is
+ * published too, since it may have been applied in part. write() turns what was published for
+ * an index into one entry of the CL super column of the cache row, next to
+ * the CC column readers used to poll, and read() merges the entries written
+ * since a reader last looked.
+ *
+ * Entries expire after -Dlucandra.changelog.ttl seconds. A reader that has
+ * not looked for longer than that, or finds an entry that could not list
+ * its changes, reopens instead. Writers may also push an entry to the other
+ * nodes right away, see lucandra.cluster.InvalidationService; each entry is
+ * applied once per node, whichever way it arrives first.
+ *
+ * Entry names are the write time followed by a random long, so entries of
+ * different writers never collide. Entry layout, see Changes.serialize():
+ *
+ * <pre>
+ * byte 1 if everything changed, then
+ * VInt doc count, VInt doc id gaps
+ * VInt term count, per term: VInt field length, field, VInt text length, text
+ * </pre>
+ */
+public class ChangeLog
+{
+    public static final String                          changeLogCol      = "CL";
+    public static final ByteBuffer                      changeLogColBytes = ByteBuffer.wrap(changeLogCol.getBytes());
+
+    public static final int                             ttl               = Integer.getInteger("lucandra.changelog.ttl", 120);
+
+    // an entry listing more terms than this just says everything changed
+    public static final int                             maxTerms          = Integer.getInteger("lucandra.changelog.terms",
+                                                                                  1 << 16);
+
+    // entries are read from this long before the last look, for clock skew
+    private static final long                           skew              = 5000;
+
+    private static final Random                         random            = new Random();
+
+    private static volatile boolean                     enabled           = Boolean.getBoolean("lucandra.changelog");
+
+    private static final ConcurrentMap<String, Changes> pending           = new MapMaker().makeMap();
+
+    // recorded by this thread, not written yet
+    private static final ThreadLocal<Map<String, Changes>> unwritten      = new ThreadLocal<Map<String, Changes>>();
+    private static final ThreadLocal<Boolean>           held              = new ThreadLocal<Boolean>();
+
+    // names of the entries applied on this node, kept until they expire
+    private static final ConcurrentMap<ByteBuffer, Boolean> applied       = new MapMaker().expiration(
+                                                                                  ttl * 1000L + skew,
+                                                                                  TimeUnit.MILLISECONDS).makeMap();
+
+    /** Starts recording the changes IndexWriter makes, off by default */
+    public static void setEnabled(boolean enabled)
+    {
+        ChangeLog.enabled = enabled;
+
+        if (!enabled)
+        {
+            pending.clear();
+            unwritten.remove();
+        }
+    }
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    static void record(String indexName, int docNumber, Collection<Term> terms)
+    {
+        if (!enabled)
+            return;
+
+        Map<String, Changes> recorded = unwritten.get();
+
+        if (recorded == null)
+        {
+            recorded = new HashMap<String, Changes>();
+            unwritten.set(recorded);
+        }
+
+        Changes changes = recorded.get(indexName);
+
+        if (changes == null)
+        {
+            changes = new Changes();
+            recorded.put(indexName, changes);
+        }
+
+        changes.add(docNumber, terms);
+    }
+
+    /** docNumber is -1 if only the postings of term changed */
+    static void record(String indexName, int docNumber, Term term)
+    {
+        record(indexName, docNumber, Collections.singleton(term));
+    }
+
+    /**
+     * Has the next entry of indexName say everything changed, for a flush
+     * asked for by hand
+     */
+    public static void recordAll(String indexName)
+    {
+        if (!enabled)
+            return;
+
+        Changes all = new Changes();
+        all.setAll();
+
+        publish(indexName, all);
+    }
+
+    /**
+     * @return what this thread recorded since, to publish() once writing
+     *         its mutations was attempted; null if nothing or while held
+     */
+    static Map<String, Changes> takeRecorded()
+    {
+        Map<String, Changes> recorded = unwritten.get();
+
+        if (recorded == null || Boolean.TRUE.equals(held.get()))
+            return null;
+
+        unwritten.remove();
+
+        return recorded;
+    }
+
+    /**
+     * Sets aside what this thread recorded so far, for a batch of changes
+     * that may have to be dropped, see restore()
+     */
+    static Map<String, Changes> setAside()
+    {
+        Map<String, Changes> recorded = unwritten.get();
+
+        unwritten.remove();
+
+        return recorded;
+    }
+
+    /**
+     * Puts back what setAside() returned, along with what this thread
+     * recorded since unless discard is set
+     */
+    static void restore(Map<String, Changes> setAside, boolean discard)
+    {
+        Map<String, Changes> since = unwritten.get();
+
+        if (!discard && since != null && setAside != null)
+        {
+            for (Map.Entry<String, Changes> e : since.entrySet())
+            {
+                Changes changes = setAside.get(e.getKey());
+
+                if (changes == null)
+                    setAside.put(e.getKey(), e.getValue());
+                else
+                    changes.merge(e.getValue());
+            }
+        }
+
+        if (!discard && setAside == null)
+            setAside = since;
+
+        if (setAside == null)
+            unwritten.remove();
+        else
+            unwritten.set(setAside);
+    }
+
+    static void publish(Map<String, Changes> recorded)
+    {
+        if (recorded == null)
+            return;
+
+        for (Map.Entry<String, Changes> e : recorded.entrySet())
+            publish(e.getKey(), e.getValue());
+    }
+
+    static void publish(String indexName, Changes recorded)
+    {
+        if (!enabled)
+            return;
+
+        while (true)
+        {
+            Changes changes = pending.get(indexName);
+
+            if (changes == null)
+            {
+                changes = new Changes();
+
+                Changes existing = pending.putIfAbsent(indexName, changes);
+                if (existing != null)
+                    changes = existing;
+            }
+
+            // retry if write() took it meanwhile
+            synchronized (changes)
+            {
+                if (!changes.sealed)
+                {
+                    changes.merge(recorded);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps what this thread records from being published until release(),
+     * for changes that are only complete once the caller wrote more
+     */
+    public static void hold()
+    {
+        held.set(true);
+    }
+
+    /**
+     * Publishes what this thread recorded while held, call once everything
+     * it changed is written
+     */
+    public static void release()
+    {
+        held.remove();
+
+        publish(takeRecorded());
+    }
+
+    /**
+     * Adds what was published for indexName since the last call to rm, the
+     * mutation of its cache row.
+     * 
+     * @return the entry written, to push to the other nodes, or null if
+     *         nothing changed
+     */
+    public static IColumn write(RowMutation rm, String indexName, long timestamp)
+    {
+        Changes changes = pending.remove(indexName);
+
+        if (changes == null)
+            return null;
+
+        ByteBuffer entry;
+        synchronized (changes)
+        {
+            changes.sealed = true;
+            entry = changes.serialize();
+        }
+
+        ByteBuffer name = ByteBuffer.allocate(16);
+        name.putLong(timestamp);
+        name.putLong(random.nextLong());
+        name.rewind();
+
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, changeLogColBytes, name), entry, timestamp, ttl);
+
+        return new Column(name, entry, timestamp);
+    }
+
+    /**
+     * Remembers that the entry of that name is applied on this node
+     * 
+     * @return false if it already was
+     */
+    public static boolean markApplied(ByteBuffer name)
+    {
+        return applied.putIfAbsent(name, Boolean.TRUE) == null;
+    }
+
+    /**
+     * @return the changes written to indexName since the given time and not
+     *         applied yet, null if they can not be told apart and the index
+     *         has to be reopened
+     */
+    public static Changes read(String indexName, long since, ConsistencyLevel cl)
+    {
+        if (since < System.currentTimeMillis() - ttl * 1000L)
+            return null;
+
+        ByteBuffer start = ByteBuffer.allocate(8);
+        start.putLong(0, Math.max(0, since - skew));
+
+        ReadCommand rc = new SliceFromReadCommand(CassandraUtils.keySpace, CassandraUtils.indexKey(indexName, "cache"),
+                new QueryPath(CassandraUtils.schemaInfoColumnFamily, changeLogColBytes), start,
+                FBUtilities.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE);
+
+        List<Row> rows = CassandraUtils.robustRead(cl, rc);
+
+        Changes changes = new Changes();
+
+        if (rows.isEmpty() || rows.get(0).cf == null)
+            return changes;
+
+        IColumn log = rows.get(0).cf.getColumn(changeLogColBytes);
+        if (log == null)
+            return changes;
+
+        for (IColumn entry : log.getSubColumns())
+        {
+            if (!entry.isLive() || !markApplied(entry.name()))
+                continue;
+
+            changes.merge(Changes.deserialize(entry.value()));
+
+            if (changes.all)
+                return null;
+        }
+
+        return changes;
+    }
+
+    /**
+     * Terms and documents changed by one or more writes
+     */
+    public static class Changes
+    {
+        public final Set<Integer> docs  = new TreeSet<Integer>();
+        public final Set<Term>    terms = new HashSet<Term>();
+
+        private boolean           all;
+        private boolean           sealed;
+
+        public boolean isAll()
+        {
+            return all;
+        }
+
+        public boolean isEmpty()
+        {
+            return !all && docs.isEmpty() && terms.isEmpty();
+        }
+
+        void add(int docNumber, Collection<Term> terms)
+        {
+            if (all)
+                return;
+
+            if (docNumber >= 0)
+                docs.add(docNumber);
+
+            this.terms.addAll(terms);
+
+            if (this.terms.size() > maxTerms)
+                setAll();
+        }
+
+        void merge(Changes other)
+        {
+            if (other.all)
+                setAll();
+
+            if (all)
+                return;
+
+            docs.addAll(other.docs);
+            terms.addAll(other.terms);
+
+            if (terms.size() > maxTerms)
+                setAll();
+        }
+
+        private void setAll()
+        {
+            all = true;
+            docs.clear();
+            terms.clear();
+        }
+
+        public ByteBuffer serialize()
+        {
+            byte[][] fields = new byte[terms.size()][];
+            byte[][] texts = new byte[terms.size()][];
+
+            int size = 1 + CassandraUtils.vIntSize(docs.size()) + CassandraUtils.vIntSize(terms.size());
+
+            int last = 0;
+            for (int doc : docs)
+            {
+                size += CassandraUtils.vIntSize(doc - last);
+                last = doc;
+            }
+
+            int i = 0;
+            for (Term term : terms)
+            {
+                fields[i] = term.field().getBytes(CassandraUtils.UTF_8);
+                texts[i] = term.text().getBytes(CassandraUtils.UTF_8);
+
+                size += CassandraUtils.vIntSize(fields[i].length) + fields[i].length
+                        + CassandraUtils.vIntSize(texts[i].length) + texts[i].length;
+                i++;
+            }
+
+            ByteBuffer r = ByteBuffer.allocate(size);
+
+            r.put((byte) (all ? 1 : 0));
+
+            CassandraUtils.writeVInt(r, docs.size());
+
+            last = 0;
+            for (int doc : docs)
+            {
+                CassandraUtils.writeVInt(r, doc - last);
+                last = doc;
+            }
+
+            CassandraUtils.writeVInt(r, terms.size());
+
+            for (i = 0; i < fields.length; i++)
+            {
+                CassandraUtils.writeVInt(r, fields[i].length);
+                r.put(fields[i]);
+                CassandraUtils.writeVInt(r, texts[i].length);
+                r.put(texts[i]);
+            }
+
+            r.rewind();
+
+            return r;
+        }
+
+        public static Changes deserialize(ByteBuffer bytes)
+        {
+            ByteBuffer in = bytes.duplicate();
+            Changes changes = new Changes();
+
+            changes.all = in.get() == 1;
+
+            int docCount = CassandraUtils.mreadVInt(in);
+            for (int i = 0, last = 0; i < docCount; i++)
+            {
+                last += CassandraUtils.mreadVInt(in);
+                changes.docs.add(last);
+            }
+
+            int termCount = CassandraUtils.mreadVInt(in);
+            for (int i = 0; i < termCount; i++)
+            {
+                String field = readString(in);
+                changes.terms.add(new Term(field, readString(in)));
+            }
+
+            return changes;
+        }
+
+        private static String readString(ByteBuffer in)
+        {
+            byte[] bytes = new byte[CassandraUtils.mreadVInt(in)];
+            in.get(bytes);
+
+            return new String(bytes, CassandraUtils.UTF_8);
+        }
+    }
+}
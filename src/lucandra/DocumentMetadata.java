@@ -0,0 +1,230 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+
+/**
+ * The META column of a document: the unique terms it was indexed under, so
+ * the document can be deleted or its term vectors rebuilt, and a digest of
+ * the postings of each indexed field so an update can tell which fields
+ * changed.
+ *
+ * Layout (version 2):
+ *
+ * <pre>
+ * version byte
+ * VInt field count,  then per field:  VInt length, UTF-8 name
+ * VInt term count,   then per term:   VInt field index, VInt length, UTF-8 text
+ * VInt digest count, then per digest: VInt field index, VInt length, digest
+ * </pre>
+ *
+ * Version 1 is the same without the digests.
+ *
+ * Rows written before this format hold a java serialized List&lt;Term&gt;,
+ * these are still decoded.
+ */
+public class DocumentMetadata
+{
+    public static final byte VERSION_1 = 1;
+    public static final byte VERSION_2 = 2;
+
+    // first byte of a java serialization stream (0xACED)
+    private static final byte SERIALIZED_MAGIC = (byte) 0xAC;
+
+    public final List<Term>  terms;
+
+    // field name to postings digest, empty for metadata written before v2
+    public final Map<String, byte[]> fieldDigests;
+
+    public DocumentMetadata(Collection<Term> terms)
+    {
+        this(terms, Collections.<String, byte[]> emptyMap());
+    }
+
+    public DocumentMetadata(Collection<Term> terms, Map<String, byte[]> fieldDigests)
+    {
+        this.terms = terms instanceof List ? (List<Term>) terms : new ArrayList<Term>(terms);
+        this.fieldDigests = fieldDigests;
+    }
+
+    public ByteBuffer serialize()
+    {
+        Map<String, Integer> fieldIds = new HashMap<String, Integer>();
+        List<byte[]> fieldNames = new ArrayList<byte[]>();
+
+        int[] termFields = new int[terms.size()];
+        byte[][] termTexts = new byte[terms.size()][];
+
+        int[] digestFields = new int[fieldDigests.size()];
+
+        int size = 1;
+
+        for (int i = 0; i < termTexts.length; i++)
+        {
+            Term term = terms.get(i);
+
+            int fieldId = fieldId(term.field(), fieldIds, fieldNames);
+
+            termFields[i] = fieldId;
+            termTexts[i] = term.text().getBytes(CassandraUtils.UTF_8);
+
+            size += CassandraUtils.vIntSize(fieldId) + CassandraUtils.vIntSize(termTexts[i].length) + termTexts[i].length;
+        }
+
+        int d = 0;
+        for (Map.Entry<String, byte[]> digest : fieldDigests.entrySet())
+        {
+            digestFields[d] = fieldId(digest.getKey(), fieldIds, fieldNames);
+
+            size += CassandraUtils.vIntSize(digestFields[d++]) + CassandraUtils.vIntSize(digest.getValue().length)
+                    + digest.getValue().length;
+        }
+
+        for (byte[] name : fieldNames)
+            size += CassandraUtils.vIntSize(name.length) + name.length;
+
+        size += CassandraUtils.vIntSize(fieldNames.size()) + CassandraUtils.vIntSize(termTexts.length)
+                + CassandraUtils.vIntSize(digestFields.length);
+
+        ByteBuffer r = ByteBuffer.allocate(size);
+
+        r.put(VERSION_2);
+
+        CassandraUtils.writeVInt(r, fieldNames.size());
+        for (byte[] name : fieldNames)
+        {
+            CassandraUtils.writeVInt(r, name.length);
+            r.put(name);
+        }
+
+        CassandraUtils.writeVInt(r, termTexts.length);
+        for (int i = 0; i < termTexts.length; i++)
+        {
+            CassandraUtils.writeVInt(r, termFields[i]);
+            CassandraUtils.writeVInt(r, termTexts[i].length);
+            r.put(termTexts[i]);
+        }
+
+        CassandraUtils.writeVInt(r, digestFields.length);
+        d = 0;
+        for (byte[] digest : fieldDigests.values())
+        {
+            CassandraUtils.writeVInt(r, digestFields[d++]);
+            CassandraUtils.writeVInt(r, digest.length);
+            r.put(digest);
+        }
+
+        r.flip();
+
+        return r;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static DocumentMetadata deserialize(ByteBuffer bytes_)
+    {
+        ByteBuffer bytes = bytes_.duplicate(); // don't mutate the original
+
+        byte version = bytes.get(bytes.position());
+
+        if (version == SERIALIZED_MAGIC)
+        {
+            try
+            {
+                return new DocumentMetadata((List<Term>) CassandraUtils.fromBytes(bytes));
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+            catch (ClassNotFoundException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+
+        if (version != VERSION_1 && version != VERSION_2)
+            throw new IllegalStateException("Unknown document metadata version: " + version);
+
+        bytes.get();
+
+        String[] fields = new String[CassandraUtils.mreadVInt(bytes)];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = readString(bytes);
+
+        Term[] terms = new Term[CassandraUtils.mreadVInt(bytes)];
+        for (int i = 0; i < terms.length; i++)
+        {
+            String field = fields[CassandraUtils.mreadVInt(bytes)];
+            terms[i] = new Term(field, readString(bytes));
+        }
+
+        if (version == VERSION_1)
+            return new DocumentMetadata(Arrays.asList(terms));
+
+        Map<String, byte[]> digests = new LinkedHashMap<String, byte[]>();
+        int digestCount = CassandraUtils.mreadVInt(bytes);
+        for (int i = 0; i < digestCount; i++)
+        {
+            String field = fields[CassandraUtils.mreadVInt(bytes)];
+
+            byte[] digest = new byte[CassandraUtils.mreadVInt(bytes)];
+            bytes.get(digest);
+
+            digests.put(field, digest);
+        }
+
+        return new DocumentMetadata(Arrays.asList(terms), digests);
+    }
+
+    private static int fieldId(String field, Map<String, Integer> fieldIds, List<byte[]> fieldNames)
+    {
+        Integer fieldId = fieldIds.get(field);
+        if (fieldId == null)
+        {
+            fieldId = fieldNames.size();
+            fieldIds.put(field, fieldId);
+            fieldNames.add(field.getBytes(CassandraUtils.UTF_8));
+        }
+
+        return fieldId;
+    }
+
+    private static String readString(ByteBuffer bytes)
+    {
+        int length = CassandraUtils.mreadVInt(bytes);
+
+        String s = new String(bytes.array(), bytes.position() + bytes.arrayOffset(), length, CassandraUtils.UTF_8);
+        bytes.position(bytes.position() + length);
+
+        return s;
+    }
+}
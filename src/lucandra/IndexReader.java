@@ -22,6 +22,7 @@ package lucandra;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
 
 import com.google.common.collect.MapMaker;
 
@@ -36,13 +37,13 @@ import org.apache.lucene.analysis.SimpleAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
 import org.apache.lucene.document.Field.Index;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.index.*;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.TermFreqVector;
 import org.apache.lucene.index.IndexWriter.MaxFieldLength;
-import org.apache.lucene.search.Similarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.store.RAMDirectory;
@@ -53,7 +54,9 @@ import solandra.SolandraFieldSelector;
 public class IndexReader extends org.apache.lucene.index.IndexReader {
 
     private final static int  numDocs     = CassandraUtils.maxDocsPerShard;
-    private final static byte defaultNorm = Similarity.encodeNorm(1.0f);
+
+    // norms columns read per round trip
+    private final static int  normsPageSize = Integer.getInteger("lucandra.norms.page", 16384);
     
     private final static Directory mockDirectory = new RAMDirectory();
     static {
@@ -102,7 +105,11 @@ public class IndexReader extends org.apache.lucene.index.IndexReader {
         String activeIndex = getIndexName();
        
         if(activeIndex != null) {
-            globalCache.remove(activeIndex);         
+            ReaderCache cache = globalCache.remove(activeIndex);
+
+            if(cache != null)
+                cache.release();
+
             activeCache.remove();
         }
     }
@@ -117,7 +124,8 @@ public class IndexReader extends org.apache.lucene.index.IndexReader {
         
         ReaderCache cache = activeCache.get();
             
-        if(cache != null)
+        // reopened from another thread meanwhile
+        if(cache != null && !cache.isReleased())
             return cache;
         else  
             cache = globalCache.get(activeIndex);        
@@ -159,48 +167,63 @@ public class IndexReader extends org.apache.lucene.index.IndexReader {
         
         LucandraTermEnum termEnum = termEnumCache.get(term);
         if (termEnum == null) {
-
-            long start = System.currentTimeMillis();
-
+            getCache().termEnumStats.miss();
             termEnum = new LucandraTermEnum(this);
-            termEnum.skipTo(term);
+            termEnumCache.put(term, termEnum);
+        } else {
+            getCache().termEnumStats.hit();
+        }
 
-            long end = System.currentTimeMillis();
+        long start = System.currentTimeMillis();
 
-            if(logger.isDebugEnabled())
-                logger.debug("docFreq("+term+") took: " + (end - start) + "ms, found"+termEnum.docFreq());
+        // the cached enum may be positioned on another term
+        int docFreq = termEnum.skipTo(term) && termEnum.term().equals(term) ? termEnum.docFreq() : 0;
 
-            termEnumCache.put(term, termEnum);
-        }
+        if(logger.isDebugEnabled())
+            logger.debug("docFreq("+term+") took: " + (System.currentTimeMillis() - start) + "ms, found "+docFreq);
 
-        return termEnum.docFreq();
+        return docFreq;
     }
 
     public Document document(int docNum, FieldSelector selector) throws CorruptIndexException, IOException {
 
         String indexName = getIndexName();
-        
-        Map<Integer,Document> documentCache = getCache().documents;
-        
-        
+
+        ReaderCache cache = getCache();
+        Map<Integer,Document> documentCache = cache.documents;
+        OffHeapDocuments offHeapCache = cache.offHeapDocuments;
+
+        List<ByteBuffer> fieldNames = null;
+
+        if (selector != null && selector instanceof SolandraFieldSelector)
+            fieldNames = ((SolandraFieldSelector) selector).getFieldNames();
+
         Document doc = documentCache.get(docNum);
 
         if (doc != null) {
+            cache.documentStats.hit();
             logger.debug("Found doc in cache");
             return doc;
         }
 
-        List<ByteBuffer> fieldNames = null;
+        List<IColumn> cachedColumns = offHeapCache == null ? null : offHeapCache.get(docNum);
+
+        if (cachedColumns != null) {
+            cache.documentStats.hit();
+            logger.debug("Found doc in off heap cache");
+            return toDocument(docNum, cachedColumns, selector, fieldNames);
+        }
+
+        cache.documentStats.miss();
 
         Map<Integer, ByteBuffer> keyMap = new HashMap<Integer, ByteBuffer>();
-        keyMap.put(docNum, CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, Integer.toHexString(docNum).getBytes()));
+        keyMap.put(docNum, CassandraUtils.docKey(indexName, docNum));
 
         // Special field selector used to carry list of other docIds to cache in
         // Parallel for Solr Performance
         if (selector != null && selector instanceof SolandraFieldSelector) {
 
             List<Integer> otherDocIds = ((SolandraFieldSelector) selector).getOtherDocsToCache();
-            fieldNames = ((SolandraFieldSelector) selector).getFieldNames();
 
             logger.debug("Going to bulk load " + otherDocIds.size() + " documents");
 
@@ -208,15 +231,10 @@ public class IndexReader extends org.apache.lucene.index.IndexReader {
                 if (otherDocNum == docNum)
                     continue;
 
-                if (documentCache.containsKey(otherDocNum))
+                if (documentCache.containsKey(otherDocNum) || (offHeapCache != null && offHeapCache.contains(otherDocNum)))
                     continue;
 
-                byte[] docKey = Integer.toHexString(otherDocNum).getBytes();
-
-                if (docKey == null)
-                    continue;
-
-                keyMap.put(otherDocNum, CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, docKey));
+                keyMap.put(otherDocNum, CassandraUtils.docKey(indexName, otherDocNum));
             }
         }
 
@@ -229,13 +247,21 @@ public class IndexReader extends org.apache.lucene.index.IndexReader {
 
             List<Row> rows = null;
             List<ReadCommand> readCommands = new ArrayList<ReadCommand>();
+
+            // named fields may also be packed into one column
+            List<ByteBuffer> namedColumns = null;
+            if (fieldNames != null && fieldNames.size() > 0) {
+                namedColumns = new ArrayList<ByteBuffer>(fieldNames);
+                namedColumns.add(CassandraUtils.packedFieldsColumnBytes);
+            }
+
             for (ByteBuffer key : keyMap.values()) {
 
                 if (fieldNames == null || fieldNames.size() == 0 ) {
                     // get all columns ( except this skips meta info )
                     readCommands.add(new SliceFromReadCommand(CassandraUtils.keySpace, key, columnParent, FBUtilities.EMPTY_BYTE_BUFFER, CassandraUtils.finalTokenBytes, false, Integer.MAX_VALUE));
                 } else {
-                    readCommands.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, columnParent, fieldNames));
+                    readCommands.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, columnParent, namedColumns));
                 }
             }
 
@@ -248,7 +274,6 @@ public class IndexReader extends org.apache.lucene.index.IndexReader {
             }
 
             for (Map.Entry<Integer, ByteBuffer> key : keyMap.entrySet()) {
-                Document cacheDoc = new Document();
 
                 Row row = rowMap.get(key.getValue());
 
@@ -257,61 +282,25 @@ public class IndexReader extends org.apache.lucene.index.IndexReader {
                     continue;
                 }
 
-                for (IColumn col : row.cf.getSortedColumns()) {
-
-                    Field field = null;
-                    String fieldName = ByteBufferUtil.string(col.name());
-
-                    // Incase __META__ slips through
-                    if (ByteBufferUtil.compare(col.name(), CassandraUtils.documentMetaField.getBytes()) == 0) {
-                        logger.warn("Filtering out __META__ key");
-                        continue;
-                    }
-
-                    byte[] value;
-                    ByteBuffer v = col.value();
-                    int vlimit = v.limit()+v.arrayOffset();
-                    
-                    if (v.array()[vlimit - 1] != Byte.MAX_VALUE && v.array()[vlimit - 1] != Byte.MIN_VALUE) {
-                        throw new CorruptIndexException("Lucandra field is not properly encoded: " + docNum + "(" + fieldName + ")");
-
-                    } else if (v.array()[vlimit - 1] == Byte.MAX_VALUE) { // Binary
-                        value = new byte[vlimit - 1];
-                        System.arraycopy(v.array(), v.position()+v.arrayOffset(), value, 0, vlimit - 1);
-
-                        field = new Field(fieldName, value, Store.YES);
-                        cacheDoc.add(field);
-                    } else if (v.array()[vlimit - 1] == Byte.MIN_VALUE) { // String
-                        value = new byte[vlimit - 1];
-                        System.arraycopy(v.array(), v.position()+v.arrayOffset(), value, 0, vlimit - 1);
-
-                        // Check for multi-fields
-                        String fieldString = new String(value, "UTF-8");
-
-                        if (fieldString.indexOf(CassandraUtils.delimeter) >= 0) {
-                            StringTokenizer tok = new StringTokenizer(fieldString, CassandraUtils.delimeter);
-                            while (tok.hasMoreTokens()) {
-                                field = new Field(fieldName, tok.nextToken(), Store.YES, Index.ANALYZED);
-                                cacheDoc.add(field);
-                            }
-                        } else {
-
-                            field = new Field(fieldName, fieldString, Store.YES, Index.ANALYZED);
-                            cacheDoc.add(field);
-                        }
-                    }
-                }
+                Document cacheDoc = toDocument(key.getKey(), row.cf.getSortedColumns(), selector, fieldNames);
 
                 // Mark the required doc
                 if (key.getKey().equals(docNum))
                     doc = cacheDoc;
 
                 // only cache complete docs
-                if (fieldNames == null || fieldNames.size() == 0 ) 
+                if (fieldNames != null && fieldNames.size() > 0)
+                    continue;
+
+                // the columns are cached rather than the doc, so lazy fields are fine
+                if (offHeapCache != null)
+                    offHeapCache.put(key.getKey(), row.cf.getSortedColumns());
+                else if (!hasLazyFields(cacheDoc))
                     documentCache.put(key.getKey(), cacheDoc);
-                
             }
 
+            ReaderCache.enforceGlobalCapacity();
+
             long end = System.currentTimeMillis();
 
             logger.debug("Document read took: " + (end - start) + "ms");
@@ -324,13 +313,125 @@ public class IndexReader extends org.apache.lucene.index.IndexReader {
 
     }
 
+    /**
+     * Builds a document from the Docs columns of its row, only the fields in
+     * fieldNames if there are any
+     */
+    private static Document toDocument(int docNum, Collection<IColumn> columns, FieldSelector selector,
+            List<ByteBuffer> fieldNames) throws IOException {
+
+        Document doc = new Document();
+        boolean named = fieldNames != null && !fieldNames.isEmpty();
+
+        for (IColumn col : columns) {
+
+            // fields removed by an update
+            if (!col.isLive())
+                continue;
+
+            // Incase __META__ slips through
+            if (col.name().equals(CassandraUtils.documentMetaFieldBytes)) {
+                logger.warn("Filtering out __META__ key");
+                continue;
+            }
+
+            if (col.name().equals(CassandraUtils.packedFieldsColumnBytes)) {
+                for (Map.Entry<String, ByteBuffer> field : StoredFields.unpack(col.value()).entrySet()) {
+                    if (named && !fieldNames.contains(ByteBuffer.wrap(field.getKey().getBytes("UTF-8"))))
+                        continue;
+
+                    addStoredField(doc, docNum, field.getKey(), field.getValue(), isLazy(selector, field.getKey()));
+                }
+
+                continue;
+            }
+
+            // cached rows hold every field
+            if (named && !fieldNames.contains(col.name()))
+                continue;
+
+            String fieldName = ByteBufferUtil.string(col.name(), CassandraUtils.UTF_8);
+
+            addStoredField(doc, docNum, fieldName, col.value(), isLazy(selector, fieldName));
+        }
+
+        return doc;
+    }
+
+    // lazy fields are not Fields, docs holding them are not cached
+    private static boolean hasLazyFields(Document doc) {
+        for (Object field : doc.getFields()) {
+            if (field instanceof LazyStoredField)
+                return true;
+        }
+
+        return false;
+    }
+
     @Override
     public Object getFieldCacheKey() {
         
-        return getCache().fieldCacheKey;      
+        return getCache().getFieldCacheKey();      
     
     }
 
+    private static boolean isLazy(FieldSelector selector, String fieldName) {
+        return selector != null && selector.accept(fieldName) == FieldSelectorResult.LAZY_LOAD;
+    }
+
+    // value is the field bytes followed by a flag byte, see StoredFields
+    private static void addStoredField(Document doc, int docNum, String fieldName, ByteBuffer v, boolean lazy)
+            throws CorruptIndexException {
+
+        if (v.remaining() > 0 && v.get(v.limit() - 1) == StoredFields.MULTI_VALUE) {
+            for (ByteBuffer value : StoredFields.split(v))
+                addStoredValue(doc, docNum, fieldName, value, false, lazy);
+        } else {
+            addStoredValue(doc, docNum, fieldName, v, true, lazy);
+        }
+    }
+
+    private static void addStoredValue(Document doc, int docNum, String fieldName, ByteBuffer v, boolean joined,
+            boolean lazy) throws CorruptIndexException {
+
+        byte flag = v.remaining() > 0 ? v.get(v.limit() - 1) : 0;
+
+        if (flag != StoredFields.BINARY_VALUE && flag != StoredFields.STRING_VALUE)
+            throw new CorruptIndexException("Lucandra field is not properly encoded: " + docNum + "(" + fieldName + ")");
+
+        ByteBuffer value = v.duplicate();
+        value.limit(value.limit() - 1);
+
+        if (flag == StoredFields.BINARY_VALUE) {
+
+            if (lazy) {
+                doc.add(new LazyStoredField(fieldName, value, true));
+            } else {
+                byte[] bytes = new byte[value.remaining()];
+                value.get(bytes);
+
+                doc.add(new Field(fieldName, bytes, Store.YES));
+            }
+
+        } else {
+
+            // rows written before MULTI_VALUE join strings with the delimiter
+            if (joined && StoredFields.indexOf(value.array(), value.arrayOffset() + value.position(), value.remaining(),
+                    CassandraUtils.delimeterBytes) >= 0) {
+                String fieldString = ByteBufferUtil.string(value, CassandraUtils.UTF_8);
+
+                StringTokenizer tok = new StringTokenizer(fieldString, CassandraUtils.delimeter);
+                while (tok.hasMoreTokens()) {
+                    doc.add(new Field(fieldName, tok.nextToken(), Store.YES, Index.ANALYZED));
+                }
+            } else if (lazy) {
+                doc.add(new LazyStoredField(fieldName, value, false));
+            } else {
+                doc.add(new Field(fieldName, ByteBufferUtil.string(value, CassandraUtils.UTF_8), Store.YES, Index.ANALYZED));
+            }
+        }
+    }
+
     @Override
     public Collection getFieldNames(FieldOption fieldOption) {
         return Arrays.asList(new String[] {});
@@ -380,14 +481,158 @@ public class IndexReader extends org.apache.lucene.index.IndexReader {
 
     @Override
     public byte[] norms(String field) throws IOException {
-        return getCache().fieldNorms.get(field);
+        return getNorms(field);
     }
 
     @Override
-    public void norms(String arg0, byte[] arg1, int arg2) throws IOException {
+    public void norms(String field, byte[] bytes, int offset) throws IOException {
+
+        byte[] norms = getNorms(field);
+
+        System.arraycopy(norms, 0, bytes, offset, maxDoc());
+    }
+
+    /**
+     * The norms of every document for field, read from its norms row the
+     * first time they are asked for. Documents written before norms had a
+     * row of their own carry their norm in their postings instead, those
+     * are filled in by addDocumentNormalizations.
+     */
+    private byte[] getNorms(String field) {
+
+        ConcurrentMap<String, byte[]> fieldNorms = getCache().fieldNorms;
+
+        byte[] norms = fieldNorms.get(field);
+        if (norms != null) {
+            getCache().normsStats.hit();
+            return norms;
+        }
+
+        getCache().normsStats.miss();
+
+        norms = new byte[maxDoc()];
+        Arrays.fill(norms, PostingsBlock.defaultNorm);
+
+        ByteBuffer key = CassandraUtils.normsKey(getIndexName(), field);
+        ColumnParent parent = new ColumnParent(CassandraUtils.termVecColumnFamily);
+        ByteBuffer start = FBUtilities.EMPTY_BYTE_BUFFER;
+
+        while (true) {
+            List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, new SliceFromReadCommand(CassandraUtils.keySpace, key,
+                    parent, start, FBUtilities.EMPTY_BYTE_BUFFER, false, normsPageSize));
 
-        throw new RuntimeException("This operation is not supported");
+            Collection<IColumn> columns = rows.isEmpty() || rows.get(0).cf == null ? new ArrayList<IColumn>() : rows.get(0).cf
+                    .getSortedColumns();
 
+            int lastDoc = -1;
+            for (IColumn col : columns) {
+                lastDoc = CassandraUtils.readVInt(col.name());
+
+                if (col.isLive() && col.value().remaining() > 0 && lastDoc < norms.length)
+                    norms[lastDoc] = col.value().get(col.value().position());
+            }
+
+            if (columns.size() < normsPageSize)
+                break;
+
+            start = ByteBuffer.wrap(CassandraUtils.writeVInt(lastDoc + 1));
+        }
+
+        byte[] loaded = fieldNorms.putIfAbsent(field, norms);
+
+        ReaderCache.enforceGlobalCapacity();
+
+        return loaded == null ? norms : loaded;
+    }
+
+    /**
+     * Brings the cache up to date with the writes of a ChangeLog, reopening
+     * if changes is null or could not list what changed
+     */
+    public void invalidate(ChangeLog.Changes changes) {
+
+        if (changes == null || changes.isAll()) {
+            clearCache();
+            return;
+        }
+
+        invalidate(getIndexName(), changes);
+    }
+
+    /**
+     * Same as invalidate(changes) for the cache of indexName, from threads
+     * not reading the index. Nothing to do if it is not cached.
+     */
+    public static void invalidate(String indexName, ChangeLog.Changes changes) {
+
+        if (changes == null || changes.isAll()) {
+            ReaderCache cache = globalCache.remove(indexName);
+
+            if (cache != null)
+                cache.release();
+
+            return;
+        }
+
+        ReaderCache cache = globalCache.get(indexName);
+
+        if (cache == null || changes.isEmpty())
+            return;
+
+        cache.invalidate(changes);
+
+        if (!changes.docs.isEmpty()) {
+            synchronized (cache) {
+                OpenBitSet liveDocs = cache.getLiveDocs();
+
+                if (liveDocs != null) {
+                    liveDocs = (OpenBitSet) liveDocs.clone();
+                    LucandraAllTermDocs.readLiveDocs(indexName, liveDocs, changes.docs);
+                    cache.setLiveDocs(liveDocs);
+                }
+            }
+        }
+
+        // read the norms of the changed docs into the cached arrays
+        Set<String> fields = new HashSet<String>();
+        for (Term term : changes.terms) {
+            if (cache.fieldNorms.containsKey(term.field()))
+                fields.add(term.field());
+        }
+
+        if (fields.isEmpty() || changes.docs.isEmpty())
+            return;
+
+        List<ByteBuffer> docNames = new ArrayList<ByteBuffer>(changes.docs.size());
+        for (Integer doc : changes.docs)
+            docNames.add(ByteBuffer.wrap(CassandraUtils.writeVInt(doc)));
+
+        Map<ByteBuffer, String> keys = new HashMap<ByteBuffer, String>();
+        List<ReadCommand> reads = new ArrayList<ReadCommand>(fields.size());
+        ColumnParent parent = new ColumnParent(CassandraUtils.termVecColumnFamily);
+
+        for (String field : fields) {
+            ByteBuffer key = CassandraUtils.normsKey(indexName, field);
+
+            keys.put(key, field);
+            reads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, parent, docNames));
+        }
+
+        for (Row row : CassandraUtils.robustRead(ConsistencyLevel.ONE, reads.toArray(new ReadCommand[] {}))) {
+            byte[] norms = cache.fieldNorms.get(keys.get(row.key.key));
+            if (norms == null)
+                continue;
+
+            for (ByteBuffer docName : docNames) {
+                IColumn col = row.cf == null ? null : row.cf.getColumn(docName);
+                int doc = CassandraUtils.readVInt(docName);
+
+                if (col != null && col.isLive() && col.value().remaining() > 0)
+                    norms[doc] = col.value().get(col.value().position());
+                else
+                    norms[doc] = PostingsBlock.defaultNorm;
+            }
+        }
     }
 
     @Override
@@ -426,9 +671,11 @@ public class IndexReader extends org.apache.lucene.index.IndexReader {
         TermEnum termEnum = getCache().termEnum.get(term);
         
         if (termEnum == null){
+            getCache().termEnumStats.miss();
             termEnum = new LucandraTermEnum(this);
             logger.debug("Creating new TermEnum for: "+term);
         }else{
+            getCache().termEnumStats.hit();
             logger.debug("Using Cached TermEnum for: "+term);
         }
         
@@ -437,41 +684,26 @@ public class IndexReader extends org.apache.lucene.index.IndexReader {
         return termEnum;
     }
 
-    public void addDocumentNormalizations(LucandraTermInfo[] allDocs, String field) {
+    public void addDocumentNormalizations(PostingsBlock allDocs, String field) {
 
-        Map<String, byte[]> fieldNorms = getCache().fieldNorms;
-       
-        byte[] norms = fieldNorms.get(field);
+        if (allDocs.size() == 0)
+            return;
+
+        byte[] norms = getNorms(field);
 
-        for (LucandraTermInfo docInfo : allDocs) {
+        for (int i = 0; i < allDocs.size(); i++) {
 
-            int idx = docInfo.docId;
+            int idx = allDocs.docIds[i];
 
             if (idx > numDocs)
                 throw new IllegalStateException("numDocs reached");
 
             getDocsHit().set(idx);
-            
-            Byte norm = docInfo.norm;
-           
-            if (norm == null)
-                norm = defaultNorm;
-
-            if (norms == null) 
-                norms = new byte[1024];                         
-
-            while(norms.length <= idx && norms.length < numDocs ){
-                byte[] _norms = new byte[(norms.length * 2) < numDocs ? (norms.length * 2) : (numDocs + 1)];
-                System.arraycopy(norms, 0, _norms, 0, norms.length);
-                norms = _norms;           
-            }
 
-            
-            // find next empty position
-            norms[idx] = norm;          
+            // written before the norms row
+            if (allDocs.hasNorm(i))
+                norms[idx] = allDocs.norms[i];
         }
-        
-        fieldNorms.put(field, norms);
     }
 
     public String getIndexName() {
@@ -524,6 +756,31 @@ public class IndexReader extends org.apache.lucene.index.IndexReader {
     {       
         return getCache().docHits;
     }
+
+    /**
+     * @return the live documents of the index, read once and then kept up to
+     *         date by invalidate()
+     */
+    public OpenBitSet getLiveDocs()
+    {
+        ReaderCache cache = getCache();
+        OpenBitSet liveDocs = cache.getLiveDocs();
+
+        if (liveDocs != null)
+            return liveDocs;
+
+        // not read while invalidate() updates it
+        synchronized (cache) {
+            liveDocs = cache.getLiveDocs();
+
+            if (liveDocs == null) {
+                liveDocs = LucandraAllTermDocs.readLiveDocs(getIndexName());
+                cache.setLiveDocs(liveDocs);
+            }
+        }
+
+        return liveDocs;
+    }
     
 
 }
@@ -21,27 +21,34 @@ package lucandra;
 
 import java.io.IOException;
 import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.Future;
 
+import org.apache.cassandra.db.ColumnFamily;
 import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.SliceByNamesReadCommand;
 import org.apache.cassandra.db.SliceFromReadCommand;
-import org.apache.cassandra.service.StorageProxy;
+import org.apache.cassandra.db.filter.QueryPath;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ConsistencyLevel;
-import org.apache.cassandra.thrift.InvalidRequestException;
-import org.apache.cassandra.thrift.UnavailableException;
 import org.apache.cassandra.utils.FBUtilities;
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
@@ -53,17 +60,22 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Similarity;
-import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.OpenBitSet;
 
 public class IndexWriter {
 
 
+    // documents whose metadata is read per round trip when deleting by query
+    private static final int deleteBatchSize = Integer.getInteger("lucandra.delete.batch", 256);
+
     private static final ThreadLocal<Boolean> autoCommit = new ThreadLocal<Boolean>();
     private static final ThreadLocal<Map<ByteBuffer, RowMutation>> mutationList = new ThreadLocal<Map<ByteBuffer, RowMutation>>();
+    private static final ThreadLocal<TermHash> termHash = new ThreadLocal<TermHash>();
     private static final InheritableThreadLocal<String> indexName = new InheritableThreadLocal<String>();
     
     private Similarity similarity = Similarity.getDefault(); // how to normalize;
@@ -84,14 +96,33 @@ public class IndexWriter {
         addDocument(doc, analyzer, getIndexName(), docNumber);
     }
     
-    @SuppressWarnings("unchecked")
     public void addDocument(Document doc, Analyzer analyzer, String indexName, int docNumber) throws CorruptIndexException, IOException {
 
-       
-        byte[] indexNameBytes = indexName.getBytes();
-        
-        List<Term> allIndexedTerms = new ArrayList<Term>();
-        Map<String, byte[]> fieldCache = new HashMap<String, byte[]>(1024);
+        DocumentMetadata metadata = invertDocument(doc, analyzer, indexName, docNumber, getMutationList());
+
+        ChangeLog.record(indexName, docNumber, metadata.terms);
+
+        if (isAutoCommit())
+            flushMutations();
+    }
+
+    /**
+     * Analyzes the document and adds its TI, TL and Docs mutations to the
+     * given list. Safe to call from any thread as long as each thread uses its
+     * own list.
+     *
+     * @return the metadata stored with the document
+     */
+    @SuppressWarnings("unchecked")
+    DocumentMetadata invertDocument(Document doc, Analyzer analyzer, String indexName, int docNumber, Map<ByteBuffer, RowMutation> mutations) throws IOException {
+
+        Set<Term> allIndexedTerms = new LinkedHashSet<Term>();
+        Map<String, List<byte[]>> storedValues = new HashMap<String, List<byte[]>>();
+        Map<String, MessageDigest> fieldDigests = new LinkedHashMap<String, MessageDigest>();
+
+        // norm inputs per field name, summed over all instances of the field
+        Map<String, Integer> fieldLengths = new HashMap<String, Integer>();
+        Map<String, Float> fieldBoosts = new HashMap<String, Float>();
 
         //By default we don't handle indexSharding
         //We round robin replace the index      
@@ -114,7 +145,8 @@ public class IndexWriter {
                 }
 
                 // collect term information per field
-                Map<Term, Map<ByteBuffer, List<Number>>> allTermInformation = new ConcurrentSkipListMap<Term, Map<ByteBuffer, List<Number>>>();
+                TermHash terms = getTermHash();
+                terms.reset(field.name());
 
                 int lastOffset = 0;
                 if (position > 0) {
@@ -142,92 +174,56 @@ public class IndexWriter {
                 // store normalizations of field per term per document rather
                 // than per field.
                 // this adds more to write but less to read on other side
-                Integer tokensInField = new Integer(0);
+                int tokensInField = 0;
 
                 while (tokens.incrementToken()) {
                     tokensInField++;
-                    Term term = new Term(field.name(), termAttribute.term());
-
-                    allIndexedTerms.add(term);
-
-                    // fetch all collected information for this term
-                    Map<ByteBuffer, List<Number>> termInfo = allTermInformation.get(term);
 
-                    if (termInfo == null) {
-                        termInfo = new ConcurrentSkipListMap<ByteBuffer, List<Number>>();
-                        allTermInformation.put(term, termInfo);
-                    }
-
-                    // term frequency
-                    {
-                        List<Number> termFrequency = termInfo.get(CassandraUtils.termFrequencyKeyBytes);
-
-                        if (termFrequency == null) {
-                            termFrequency = new ArrayList<Number>();
-                            termFrequency.add(new Integer(0));
-                            termInfo.put(CassandraUtils.termFrequencyKeyBytes, termFrequency);
-                        }
-
-                        // increment
-                        termFrequency.set(0, termFrequency.get(0).intValue() + 1);
-                    }
+                    int slot = terms.add(termAttribute.termBuffer(), termAttribute.termLength());
 
                     // position vector
                     if (field.isStorePositionWithTermVector()) {
                         position += (posIncrAttribute.getPositionIncrement() - 1);
-
-                        List<Number> positionVector = termInfo.get(CassandraUtils.positionVectorKeyBytes);
-
-                        if (positionVector == null) {
-                            positionVector = new ArrayList<Number>();
-                            termInfo.put(CassandraUtils.positionVectorKeyBytes, positionVector);
-                        }
-
-                        positionVector.add(++position);
+                        terms.addPosition(slot, ++position);
                     }
 
                     // term offsets
                     if (field.isStoreOffsetWithTermVector()) {
-
-                        List<Number> offsetVector = termInfo.get(CassandraUtils.offsetVectorKeyBytes);
-                        if (offsetVector == null) {
-                            offsetVector = new ArrayList<Number>();
-                            termInfo.put(CassandraUtils.offsetVectorKeyBytes, offsetVector);
-                        }
-
-                        offsetVector.add(lastOffset + offsetAttribute.startOffset());
-                        offsetVector.add(lastOffset + offsetAttribute.endOffset());
-
+                        terms.addOffsets(slot, lastOffset + offsetAttribute.startOffset(), lastOffset + offsetAttribute.endOffset());
                     }
                 }
 
-                List<Number> bnorm = null;
                 if (!field.getOmitNorms()) {
-                    bnorm = new ArrayList<Number>();
-                    float norm = doc.getBoost();
-                    norm *= field.getBoost();
-                    norm *= similarity.lengthNorm(field.name(), tokensInField);
-                    bnorm.add(Similarity.encodeNorm(norm));
+                    Integer length = fieldLengths.get(field.name());
+                    Float boost = fieldBoosts.get(field.name());
+
+                    fieldLengths.put(field.name(), (length == null ? 0 : length) + tokensInField);
+                    fieldBoosts.put(field.name(), (boost == null ? doc.getBoost() : boost) * field.getBoost());
                 }
 
-                for (Map.Entry<Term, Map<ByteBuffer, List<Number>>> term : allTermInformation.entrySet()) {
+                ByteBuffer termkey = CassandraUtils.fieldKey(indexName, field.name());
+                MessageDigest digest = getDigest(fieldDigests, field.name());
+
+                for (int slot = 0; slot < terms.size(); slot++) {
+
+                    Term term = terms.term(slot);
+                    allIndexedTerms.add(term);
+
+                    byte[] termBytes = term.text().getBytes("UTF-8");
 
                     // Terms are stored within a unique key combination
                     // This is required since cassandra loads all columns
                     // in a key/column family into memory
-                    ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, term.getKey().field().getBytes(),
-                            CassandraUtils.delimeterBytes, term.getKey().text().getBytes("UTF-8"));
-
-                    ByteBuffer termkey = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, term.getKey().field().getBytes());
-                    
-                    // Mix in the norm for this field alongside each term
-                    // more writes but faster on read side.
-                    if (!field.getOmitNorms()) {
-                        term.getValue().put(CassandraUtils.normsKeyBytes, bnorm);
-                    }
+                    ByteBuffer key = CassandraUtils.termKey(indexName, term.field(), ByteBuffer.wrap(termBytes));
 
-                    CassandraUtils.addMutations(getMutationList(), CassandraUtils.termVecColumnFamily, docId, key, new LucandraTermInfo(docNumber, term.getValue()).serialize());
-                    CassandraUtils.addMutations(getMutationList(), CassandraUtils.metaInfoColumnFamily, term.getKey().text().getBytes("UTF-8"), termkey, FBUtilities.EMPTY_BYTE_BUFFER);             
+                    // norms go in the norms row of the field, once per document
+                    ByteBuffer posting = terms.termInfo(slot, docNumber, null).serialize();
+                    CassandraUtils.addMutations(mutations, CassandraUtils.termVecColumnFamily, docId, key, posting);
+                    updateDigest(digest, termBytes, posting);
+
+                    // the term dictionary only needs each term once
+                    if (!WrittenTermsFilter.instance.contains(termkey, termBytes))
+                        CassandraUtils.addMutations(mutations, CassandraUtils.metaInfoColumnFamily, termBytes, termkey, FBUtilities.EMPTY_BYTE_BUFFER);
                 }
             }
 
@@ -236,164 +232,593 @@ public class IndexWriter {
                 Term term = new Term(field.name(), field.stringValue());
                 allIndexedTerms.add(term);
 
-                ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, field.name().getBytes(),
-                        CassandraUtils.delimeterBytes, field.stringValue().getBytes("UTF-8"));
+                ByteBuffer key = CassandraUtils.termKey(indexName, term);
 
-                ByteBuffer termkey = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, field.name().getBytes());
-                
+                ByteBuffer termkey = CassandraUtils.fieldKey(indexName, field.name());
+                byte[] termBytes = field.stringValue().getBytes("UTF-8");
                 
-                Map<ByteBuffer, List<Number>> termMap = new ConcurrentSkipListMap<ByteBuffer, List<Number>>();
-                termMap.put(CassandraUtils.termFrequencyKeyBytes, CassandraUtils.emptyArray);
-                termMap.put(CassandraUtils.positionVectorKeyBytes, CassandraUtils.emptyArray);
+                ByteBuffer posting = new LucandraTermInfo(docNumber, 0, null, null, null).serialize();
+                CassandraUtils.addMutations(mutations, CassandraUtils.termVecColumnFamily, docId, key, posting);
+                updateDigest(getDigest(fieldDigests, field.name()), termBytes, posting);
 
-                CassandraUtils.addMutations(getMutationList(), CassandraUtils.termVecColumnFamily, docId, key, new LucandraTermInfo(docNumber, termMap).serialize());
-                CassandraUtils.addMutations(getMutationList(), CassandraUtils.metaInfoColumnFamily, field.stringValue().getBytes("UTF-8"), termkey, FBUtilities.EMPTY_BYTE_BUFFER);
+                if (!WrittenTermsFilter.instance.contains(termkey, termBytes))
+                    CassandraUtils.addMutations(mutations, CassandraUtils.metaInfoColumnFamily, termBytes, termkey, FBUtilities.EMPTY_BYTE_BUFFER);
             }
 
             // Stores each field as a column under this doc key
             if (field.isStored()) {
 
-                byte[] _value = field.isBinary() ? field.getBinaryValue() : field.stringValue().getBytes("UTF-8");
-
-                // first byte flags if binary or not
-                byte[] value = new byte[_value.length + 1];
-                System.arraycopy(_value, 0, value, 0, _value.length);
-
-                value[value.length - 1] = (byte) (field.isBinary() ? Byte.MAX_VALUE : Byte.MIN_VALUE);
-
                 // logic to handle multiple fields w/ same name
-                byte[] currentValue = fieldCache.get(field.name());
-                if (currentValue == null) {
-                    fieldCache.put(field.name(), value);
-                } else {
-
-                    // append new data
-                    byte[] newValue = new byte[currentValue.length + CassandraUtils.delimeterBytes.length + value.length - 1];
-                    System.arraycopy(currentValue, 0, newValue, 0, currentValue.length - 1);
-                    System.arraycopy(CassandraUtils.delimeterBytes, 0, newValue, currentValue.length - 1, CassandraUtils.delimeterBytes.length);
-                    System.arraycopy(value, 0, newValue, currentValue.length + CassandraUtils.delimeterBytes.length - 1, value.length);
-
-                    fieldCache.put(field.name(), newValue);
+                List<byte[]> values = storedValues.get(field.name());
+                if (values == null) {
+                    values = new ArrayList<byte[]>(1);
+                    storedValues.put(field.name(), values);
                 }
+
+                values.add(StoredFields.encode(field));
             }
         }
 
-        ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, Integer.toHexString(docNumber).getBytes("UTF-8"));
+        for (Map.Entry<String, Integer> length : fieldLengths.entrySet()) {
+            float norm = fieldBoosts.get(length.getKey()) * similarity.lengthNorm(length.getKey(), length.getValue());
+
+            CassandraUtils.addMutations(mutations, CassandraUtils.termVecColumnFamily, docId, CassandraUtils.normsKey(indexName,
+                    length.getKey()), ByteBuffer.wrap(new byte[] { Similarity.encodeNorm(norm) }));
+        }
+
+        Map<String, byte[]> fieldCache = new HashMap<String, byte[]>(storedValues.size() * 2);
+        for (Map.Entry<String, List<byte[]>> values : storedValues.entrySet())
+            fieldCache.put(values.getKey(), StoredFields.join(values.getValue()));
 
-        // Store each field as a column under this docId
-        for (Map.Entry<String, byte[]> field : fieldCache.entrySet()) {
-            CassandraUtils.addMutations(getMutationList(), CassandraUtils.docColumnFamily, field.getKey().getBytes("UTF-8"), key, field.getValue());
+        ByteBuffer key = CassandraUtils.docKey(indexName, docNumber);
+
+        if (!fieldCache.isEmpty() && StoredFields.isCompressed(indexName)) {
+            // Store all fields in one column
+            CassandraUtils.addMutations(mutations, CassandraUtils.docColumnFamily, CassandraUtils.packedFieldsColumnBytes, key,
+                    StoredFields.pack(fieldCache));
+        } else {
+            // Store each field as a column under this docId
+            for (Map.Entry<String, byte[]> field : fieldCache.entrySet()) {
+                CassandraUtils.addMutations(mutations, CassandraUtils.docColumnFamily, field.getKey().getBytes("UTF-8"), key, field.getValue());
+            }
         }
 
+        Map<String, byte[]> digests = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, MessageDigest> digest : fieldDigests.entrySet())
+            digests.put(digest.getKey(), digest.getValue().digest());
+
+        DocumentMetadata metadata = new DocumentMetadata(allIndexedTerms, digests);
+
         // Finally, Store meta-data so we can delete this document
-        CassandraUtils.addMutations(getMutationList(), CassandraUtils.docColumnFamily, CassandraUtils.documentMetaFieldBytes, key, CassandraUtils
-                .toBytes(allIndexedTerms));
+        CassandraUtils.addMutations(mutations, CassandraUtils.docColumnFamily, CassandraUtils.documentMetaFieldBytes, key,
+                metadata.serialize());
 
-        if (isAutoCommit()) {
-            CassandraUtils.robustInsert(ConsistencyLevel.ONE, getMutationList().values().toArray(new RowMutation[]{}));
-            getMutationList().clear();
+        return metadata;
+    }
+
+    private static MessageDigest getDigest(Map<String, MessageDigest> fieldDigests, String field) {
+
+        MessageDigest digest = fieldDigests.get(field);
+
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("JVM doesn't support MD5", e);
+            }
+
+            fieldDigests.put(field, digest);
         }
+
+        return digest;
+    }
+
+    // a field's digest covers each of its terms and postings, in order
+    private static void updateDigest(MessageDigest digest, byte[] termBytes, ByteBuffer posting) {
+        digest.update(CassandraUtils.writeVInt(termBytes.length));
+        digest.update(termBytes);
+        digest.update(posting.duplicate());
+    }
+
+    /**
+     * Indexes a batch of documents, coalescing the mutations of the whole
+     * batch by row key. Common terms end up as a single TI/TL row mutation
+     * per batch rather than one per document.
+     *
+     * If a document fails, nothing of the batch is kept: the next write of
+     * this thread commits what was pending before the call only.
+     */
+    public void addDocuments(Collection<Document> docs, Analyzer analyzer, int[] docNumbers) throws CorruptIndexException, IOException {
+
+        if (docs.size() != docNumbers.length)
+            throw new IllegalArgumentException("document count != docNumber count: " + docs.size() + " vs " + docNumbers.length);
+
+        String indexName = getIndexName();
+        boolean wasAutoCommit = isAutoCommit();
+
+        // the batch is built apart from what this thread has pending
+        Map<ByteBuffer, RowMutation> pending = getMutationList();
+        Map<String, ChangeLog.Changes> recorded = ChangeLog.setAside();
+        mutationList.set(new ConcurrentSkipListMap<ByteBuffer, RowMutation>());
+
+        boolean added = false;
+
+        setAutoCommit(false);
+        try {
+            int i = 0;
+            for (Document doc : docs)
+                addDocument(doc, analyzer, indexName, docNumbers[i++]);
+
+            added = true;
+        } finally {
+            setAutoCommit(wasAutoCommit);
+
+            if (!added) {
+                mutationList.set(pending);
+            } else if (!pending.isEmpty()) {
+                CassandraUtils.mergeMutations(pending, getMutationList());
+                mutationList.set(pending);
+            }
+
+            ChangeLog.restore(recorded, !added);
+        }
+
+        if (wasAutoCommit)
+            flushMutations();
     }
 
+    /**
+     * Deletes every document matching the query. Matches are collected into
+     * a bitset, then the metadata of deleteBatchSize documents is read per
+     * round trip and their tombstones written as one batch.
+     */
     public void deleteDocuments(Query query) throws CorruptIndexException, IOException {
 
         IndexReader reader = new IndexReader(getIndexName());
         IndexSearcher searcher = new IndexSearcher(reader);
 
-        TopDocs results = searcher.search(query, 1000);
+        final OpenBitSet matches = new OpenBitSet(CassandraUtils.maxDocsPerShard);
+
+        searcher.search(query, new Collector() {
+            private int docBase;
+
+            public void setScorer(Scorer scorer) {
+            }
+
+            public void collect(int doc) {
+                matches.set(docBase + doc);
+            }
+
+            public void setNextReader(org.apache.lucene.index.IndexReader reader, int docBase) {
+                this.docBase = docBase;
+            }
+
+            public boolean acceptsDocsOutOfOrder() {
+                return true;
+            }
+        });
+
+        List<Future<Void>> pending = new ArrayList<Future<Void>>();
+        int[] batch = new int[deleteBatchSize];
+        int batchSize = 0;
 
-        for (int i = 0; i < results.totalHits; i++) {
-            ScoreDoc doc = results.scoreDocs[i];
+        for (int doc = matches.nextSetBit(0); doc >= 0; doc = matches.nextSetBit(doc + 1)) {
+            batch[batchSize++] = doc;
 
-            deleteLucandraDocument(doc.doc);
+            if (batchSize == batch.length) {
+                deleteLucandraDocuments(batch, batchSize);
+                batchSize = 0;
+
+                if (isAutoCommit())
+                    pending.add(flushMutationsAsync());
+            }
         }
 
+        if (batchSize > 0)
+            deleteLucandraDocuments(batch, batchSize);
+
+        if (isAutoCommit()) {
+            pending.add(flushMutationsAsync());
+
+            for (Future<Void> f : pending)
+                MutationFlusher.await(f);
+        }
     }
 
     public void deleteDocuments(Term term) throws CorruptIndexException, IOException {
-        try {
 
-            ColumnParent cp = new ColumnParent(CassandraUtils.termVecColumnFamily);
+        PostingsCursor postings = new PostingsCursor(null, getIndexName(), term);
 
-            ByteBuffer key = CassandraUtils.hashKeyBytes(getIndexName().getBytes(), CassandraUtils.delimeterBytes, term.field().getBytes(),
-                    CassandraUtils.delimeterBytes, term.text().getBytes("UTF-8"));
+        int[] batch = new int[deleteBatchSize];
+        int batchSize = 0;
 
-            ReadCommand rc = new SliceFromReadCommand(CassandraUtils.keySpace, key, cp, FBUtilities.EMPTY_BYTE_BUFFER, FBUtilities.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE);
+        while (postings.next()) {
+            batch[batchSize++] = postings.doc();
 
-            List<Row> rows = StorageProxy.readProtocol(Arrays.asList(rc), ConsistencyLevel.ONE);
+            if (batchSize == batch.length) {
+                deleteLucandraDocuments(batch, batchSize);
+                batchSize = 0;
 
-            // delete by documentId
-            for (Row row : rows) {
-                if(row.cf != null){
-                    Collection<IColumn> columns = row.cf.getSortedColumns();
-                
-                    for (IColumn col : columns) {
-                        deleteLucandraDocument(CassandraUtils.readVInt(col.name()));
-                    }
-                }
+                if (isAutoCommit())
+                    flushMutations();
             }
-
-        } catch (TimeoutException e) {
-            throw new RuntimeException(e);
-        } catch (UnavailableException e) {
-            throw new RuntimeException(e);
-        } catch (InvalidRequestException e) {
-            throw new RuntimeException(e);
         }
+
+        if (batchSize > 0)
+            deleteLucandraDocuments(batch, batchSize);
+
+        if (isAutoCommit())
+            flushMutations();
+    }
+
+    // the documents holding a term
+    private List<Integer> getDocNumbers(Term term) {
+
+        PostingsCursor postings = new PostingsCursor(null, getIndexName(), term);
+
+        List<Integer> docNumbers = new ArrayList<Integer>();
+        while (postings.next())
+            docNumbers.add(postings.doc());
+
+        return docNumbers;
     }
 
     private void deleteLucandraDocument(int docNumber) {
 
-        byte[] docId = Integer.toHexString(docNumber).getBytes();
-        
-        ByteBuffer key = CassandraUtils.hashKeyBytes(getIndexName().getBytes(), CassandraUtils.delimeterBytes, docId);
+        deleteLucandraDocuments(new int[] { docNumber }, 1);
 
-        List<Row> rows = CassandraUtils.robustRead(key, CassandraUtils.metaColumnPath, Arrays.asList(CassandraUtils.documentMetaFieldBytes), ConsistencyLevel.ONE);
-        
-        if (rows.isEmpty() || rows.get(0).cf == null )
-            return; // nothing to delete
+        if (isAutoCommit())
+            flushMutations();
+    }
+
+    // reads the metadata of the documents in one round trip and queues
+    // their tombstones
+    private void deleteLucandraDocuments(int[] docNumbers, int count) {
+
+        String indexName = getIndexName();
+
+        Map<ByteBuffer, Integer> keys = new HashMap<ByteBuffer, Integer>(count * 2);
+        ReadCommand[] reads = new ReadCommand[count];
+
+        for (int i = 0; i < count; i++) {
+            ByteBuffer key = CassandraUtils.docKey(indexName, docNumbers[i]);
+
+            keys.put(key, docNumbers[i]);
+            reads[i] = new SliceByNamesReadCommand(CassandraUtils.keySpace, key, CassandraUtils.metaColumnPath, Arrays
+                    .asList(CassandraUtils.documentMetaFieldBytes));
+        }
+
+        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, reads);
+
+        Map<Row, List<Term>> docTerms = new LinkedHashMap<Row, List<Term>>();
+        Set<Term> allTerms = new HashSet<Term>();
+
+        for (Row row : rows) {
+
+            if (row.cf == null)
+                continue; // nothing to delete
 
-        IColumn metaCol = rows.get(0).cf.getColumn(CassandraUtils.documentMetaFieldBytes);
-        if(metaCol == null)
+            IColumn metaCol = row.cf.getColumn(CassandraUtils.documentMetaFieldBytes);
+            if (metaCol == null || !metaCol.isLive())
+                continue;
+
+            List<Term> terms = DocumentMetadata.deserialize(metaCol.value()).terms;
+
+            docTerms.put(row, terms);
+            allTerms.addAll(terms);
+        }
+
+        Set<Term> packed = packedTerms(indexName, allTerms);
+
+        for (Map.Entry<Row, List<Term>> e : docTerms.entrySet()) {
+
+            Row row = e.getKey();
+            byte[] docId = CassandraUtils.writeVInt(keys.get(row.key.key));
+
+            List<Term> terms = e.getValue();
+            for (Term term : terms)
+                removePosting(getMutationList(), indexName, term, docId, packed.contains(term));
+
+            ChangeLog.record(indexName, keys.get(row.key.key), terms);
+
+            // finally delete ourselves
+            CassandraUtils.addMutations(getMutationList(), CassandraUtils.docColumnFamily, (ByteBuffer) null, row.key.key, (ByteBuffer) null);
+        }
+    }
+
+    /**
+     * Replaces the documents holding updateTerm with doc.
+     *
+     * When a document is already stored under docNumber only the difference
+     * is written: postings of fields whose digest is unchanged are skipped,
+     * terms no longer in the document are removed, and only changed stored
+     * fields are rewritten.
+     */
+    public void updateDocument(Term updateTerm, Document doc, Analyzer analyzer, int docNumber) throws CorruptIndexException, IOException {
+
+        String indexName = getIndexName();
+        docNumber = docNumber % CassandraUtils.maxDocsPerShard;
+
+        for (Integer other : getDocNumbers(updateTerm)) {
+            if (other != docNumber)
+                deleteLucandraDocument(other);
+        }
+
+        ByteBuffer key = CassandraUtils.docKey(indexName, docNumber);
+
+        ColumnParent cp = new ColumnParent(CassandraUtils.docColumnFamily);
+        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, new SliceFromReadCommand(CassandraUtils.keySpace, key, cp,
+                FBUtilities.EMPTY_BYTE_BUFFER, FBUtilities.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE));
+
+        ColumnFamily oldDoc = rows.isEmpty() ? null : rows.get(0).cf;
+        IColumn oldMetaCol = oldDoc == null ? null : oldDoc.getColumn(CassandraUtils.documentMetaFieldBytes);
+
+        // nothing to diff against
+        if (oldMetaCol == null || !oldMetaCol.isLive()) {
+            addDocument(doc, analyzer, indexName, docNumber);
             return;
-        
-        
-        List<Term> terms;
-        try {
-            terms = (List<Term>) CassandraUtils.fromBytes(metaCol.value());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
         }
 
-        for (Term term : terms) {
+        DocumentMetadata oldMeta = DocumentMetadata.deserialize(oldMetaCol.value());
 
-            try {
-                key = CassandraUtils.hashKeyBytes(getIndexName().getBytes(), CassandraUtils.delimeterBytes, term.field().getBytes(), CassandraUtils.delimeterBytes,
-                        term.text().getBytes("UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException("JVM doesn't support UTF-8", e);
+        Map<ByteBuffer, RowMutation> mutations = new HashMap<ByteBuffer, RowMutation>();
+        DocumentMetadata newMeta = invertDocument(doc, analyzer, indexName, docNumber, mutations);
+        ChangeLog.record(indexName, docNumber, newMeta.terms);
+
+        // postings of unchanged fields are already stored
+        Set<String> unchangedFields = new HashSet<String>();
+        for (Map.Entry<String, byte[]> digest : newMeta.fieldDigests.entrySet()) {
+            if (Arrays.equals(digest.getValue(), oldMeta.fieldDigests.get(digest.getKey())))
+                unchangedFields.add(digest.getKey());
+        }
+
+        for (Term term : newMeta.terms) {
+            if (unchangedFields.contains(term.field()))
+                CassandraUtils.removeMutations(mutations, CassandraUtils.termKey(indexName, term), CassandraUtils.termVecColumnFamily);
+        }
+
+        for (String field : unchangedFields)
+            CassandraUtils.removeMutations(mutations, CassandraUtils.fieldKey(indexName, field), CassandraUtils.metaInfoColumnFamily);
+
+        // terms no longer in the document
+        Set<Term> removedTerms = new HashSet<Term>(oldMeta.terms);
+        removedTerms.removeAll(newMeta.terms);
+        byte[] docId = CassandraUtils.writeVInt(docNumber);
+
+        Set<Term> packed = packedTerms(indexName, removedTerms);
+
+        for (Term term : removedTerms)
+            removePosting(mutations, indexName, term, docId, packed.contains(term));
+
+        // stored fields, only write what changed
+        RowMutation docMutation = mutations.get(key);
+        ColumnFamily newDoc = docMutation == null ? null : CassandraUtils.getColumnFamily(docMutation, CassandraUtils.docColumnFamily);
+
+        for (IColumn oldCol : oldDoc.getSortedColumns()) {
+            if (!oldCol.isLive())
+                continue;
+
+            IColumn newCol = newDoc == null ? null : newDoc.getColumn(oldCol.name());
+
+            if (newCol == null)
+                CassandraUtils.addMutations(mutations, CassandraUtils.docColumnFamily, oldCol.name(), key, (ByteBuffer) null);
+            else if (newCol.value().equals(oldCol.value()))
+                newDoc.remove(oldCol.name());
+        }
+
+        if (newDoc != null && newDoc.getSortedColumns().isEmpty() && !newDoc.isMarkedForDelete())
+            CassandraUtils.removeMutations(mutations, key, CassandraUtils.docColumnFamily);
+
+        CassandraUtils.mergeMutations(getMutationList(), mutations);
+
+        if (isAutoCommit())
+            flushMutations();
+    }
+
+    // a tombstone, or an empty column hiding the posting if the term has been packed
+    private static void removePosting(Map<ByteBuffer, RowMutation> mutations, String indexName, Term term, byte[] docId,
+            boolean packed) {
+
+        ByteBuffer value = packed ? FBUtilities.EMPTY_BYTE_BUFFER : null;
+
+        CassandraUtils.addMutations(mutations, CassandraUtils.termVecColumnFamily, docId, CassandraUtils.termKey(indexName, term), value);
+
+        ChangeLog.record(indexName, CassandraUtils.readVInt(ByteBuffer.wrap(docId)), term);
+    }
+
+    // the terms with a skip column, whatever lucandra.postings.blocks says now
+    private static Set<Term> packedTerms(String indexName, Collection<Term> terms) {
+
+        Set<Term> packed = new HashSet<Term>();
+        ColumnParent parent = new ColumnParent(CassandraUtils.termVecColumnFamily);
+
+        Map<ByteBuffer, Term> keys = new HashMap<ByteBuffer, Term>();
+        List<ReadCommand> reads = new ArrayList<ReadCommand>();
+
+        Iterator<Term> it = terms.iterator();
+        while (it.hasNext()) {
+            Term term = it.next();
+            ByteBuffer key = CassandraUtils.termKey(indexName, term);
+
+            keys.put(key, term);
+            reads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, parent, Arrays.asList(BlockPostings.skipColumn)));
+
+            if (reads.size() < deleteBatchSize && it.hasNext())
+                continue;
+
+            for (Row row : CassandraUtils.robustRead(ConsistencyLevel.ONE, reads.toArray(new ReadCommand[reads.size()]))) {
+                IColumn skip = row.cf == null ? null : row.cf.getColumn(BlockPostings.skipColumn);
+
+                if (skip != null && skip.isLive())
+                    packed.add(keys.get(row.key.key));
             }
 
-            CassandraUtils.addMutations(getMutationList(), CassandraUtils.termVecColumnFamily, CassandraUtils.writeVInt(docNumber), key, (ByteBuffer)null);
+            reads.clear();
         }
 
-        // finally delete ourselves
-        ByteBuffer selfKey = CassandraUtils.hashKeyBytes(getIndexName().getBytes(), CassandraUtils.delimeterBytes, docId);
-        CassandraUtils.addMutations(getMutationList(), CassandraUtils.docColumnFamily, (ByteBuffer)null, selfKey, (ByteBuffer)null);
+        return packed;
+    }
 
-        if (isAutoCommit()){
-            CassandraUtils.robustInsert(ConsistencyLevel.ONE, getMutationList().values().toArray(new RowMutation[]{}));
-            getMutationList().clear();
+    /**
+     * Rewrites the postings of a term into blocks of BlockPostings.blockSize
+     * postings, see BlockPostings. Postings written since the last pack are
+     * folded into the blocks and their columns removed.
+     *
+     * @return the number of postings packed
+     */
+    public int packPostings(Term term) throws IOException {
+
+        String indexName = getIndexName();
+
+        if (!BlockPostings.isEnabled(indexName))
+            throw new IllegalStateException("Block postings are not enabled for " + indexName);
+
+        ByteBuffer key = CassandraUtils.termKey(indexName, term);
+        ColumnParent parent = new ColumnParent(CassandraUtils.termVecColumnFamily);
+
+        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, new SliceByNamesReadCommand(CassandraUtils.keySpace, key,
+                parent, Arrays.asList(BlockPostings.skipColumn)));
+
+        IColumn skip = rows.isEmpty() || rows.get(0).cf == null ? null : rows.get(0).cf.getColumn(BlockPostings.skipColumn);
+        BlockPostings oldBlocks = skip == null || !skip.isLive() ? null : BlockPostings.deserialize(skip.value());
+
+        Set<ByteBuffer> oldBlockNames = new HashSet<ByteBuffer>();
+        if (oldBlocks != null) {
+            for (int firstDoc : oldBlocks.firstDocs)
+                oldBlockNames.add(BlockPostings.blockColumn(firstDoc));
         }
+
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, key);
+        long timestamp = System.currentTimeMillis();
+
+        List<Integer> firstDocs = new ArrayList<Integer>();
+        List<Integer> lastDocs = new ArrayList<Integer>();
+        List<Integer> counts = new ArrayList<Integer>();
+        int packed = 0;
+
+        // a page of doc columns and old blocks at a time, written out as
+        // blocks once there are blockSize postings
+        PostingsBlock carry = PostingsBlock.empty;
+        int from = 0;
+        boolean more = true;
+
+        while (more) {
+            rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, new SliceFromReadCommand(CassandraUtils.keySpace, key, parent,
+                    ByteBuffer.wrap(CassandraUtils.writeVInt(from)), BlockPostings.lastDocColumn, false, PostingsCursor.pageSize));
+
+            Collection<IColumn> columns = rows.isEmpty() || rows.get(0).cf == null ? Collections.<IColumn> emptyList() : rows
+                    .get(0).cf.getSortedColumns();
+
+            boolean lastColumns = columns.size() < PostingsCursor.pageSize;
+
+            // up to the end of the columns read and the start of the next block
+            int upTo = Integer.MAX_VALUE;
+            if (!lastColumns)
+                upTo = CassandraUtils.readVInt(lastName(columns));
+
+            List<PostingsBlock> blocks = new ArrayList<PostingsBlock>();
+            int endBlock = 0;
+            if (oldBlocks != null) {
+                List<ByteBuffer> names = new ArrayList<ByteBuffer>();
+                endBlock = oldBlocks.blockOf(from);
+                for (int count = 0; endBlock < oldBlocks.size() && count < PostingsCursor.pageSize
+                        && oldBlocks.firstDocs[endBlock] <= upTo; endBlock++) {
+                    names.add(BlockPostings.blockColumn(oldBlocks.firstDocs[endBlock]));
+                    count += oldBlocks.counts[endBlock];
+                }
+
+                if (endBlock < oldBlocks.size())
+                    upTo = Math.min(upTo, oldBlocks.firstDocs[endBlock] - 1);
+
+                if (!names.isEmpty()) {
+                    rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, new SliceByNamesReadCommand(CassandraUtils.keySpace,
+                            key, parent, names));
+
+                    for (Row row : rows) {
+                        if (row.cf == null)
+                            continue;
+
+                        for (IColumn col : row.cf.getSortedColumns()) {
+                            if (col.isLive())
+                                blocks.add(PostingsBlock.deserialize(col.value()));
+                        }
+                    }
+                }
+            }
+
+            PostingsBlock page = PostingsBlock.merge(PostingsBlock.concat(blocks), columns, from, upTo);
+            PostingsBlock postings = PostingsBlock.concat(Arrays.asList(carry, page));
+
+            more = !(lastColumns && (oldBlocks == null || endBlock >= oldBlocks.size()));
+
+            // the last block takes what is left
+            int full = more ? postings.size() / BlockPostings.blockSize * BlockPostings.blockSize : postings.size();
+
+            for (int start = 0; start < full; start += BlockPostings.blockSize) {
+                PostingsBlock block = postings.slice(start, Math.min(start + BlockPostings.blockSize, full));
+
+                ByteBuffer name = BlockPostings.blockColumn(block.docIds[0]);
+                oldBlockNames.remove(name);
+
+                rm.add(new QueryPath(CassandraUtils.termVecColumnFamily, null, name), block.serialize(), timestamp);
+
+                firstDocs.add(block.docIds[0]);
+                lastDocs.add(block.docIds[block.size() - 1]);
+                counts.add(block.size());
+                packed += block.size();
+            }
+
+            carry = full == postings.size() ? PostingsBlock.empty : postings.slice(full, postings.size());
+
+            // at the time they were written, so a posting written since survives
+            for (IColumn col : columns) {
+                if (col.isLive() && CassandraUtils.readVInt(col.name()) <= upTo)
+                    rm.delete(new QueryPath(CassandraUtils.termVecColumnFamily, null, col.name()), col.timestamp());
+            }
+
+            if (upTo == Integer.MAX_VALUE)
+                break;
+
+            from = upTo + 1;
+        }
+
+        for (ByteBuffer name : oldBlockNames)
+            rm.delete(new QueryPath(CassandraUtils.termVecColumnFamily, null, name), timestamp);
+
+        if (!firstDocs.isEmpty())
+            rm.add(new QueryPath(CassandraUtils.termVecColumnFamily, null, BlockPostings.skipColumn), new BlockPostings(
+                    toArray(firstDocs), toArray(lastDocs), toArray(counts)).serialize(), timestamp);
+        else
+            rm.delete(new QueryPath(CassandraUtils.termVecColumnFamily, null, BlockPostings.skipColumn), timestamp);
+
+        Map<ByteBuffer, RowMutation> mutations = new HashMap<ByteBuffer, RowMutation>();
+        mutations.put(key, rm);
+
+        CassandraUtils.mergeMutations(getMutationList(), mutations);
+
+        // readers paging the doc columns have to find the blocks instead
+        ChangeLog.record(indexName, -1, term);
+
+        if (isAutoCommit())
+            flushMutations();
+
+        return packed;
     }
 
-    public void updateDocument(Term updateTerm, Document doc, Analyzer analyzer, int docNumber) throws CorruptIndexException, IOException {
-     
-        deleteDocuments(updateTerm);
-        addDocument(doc, analyzer, docNumber);
+    private static ByteBuffer lastName(Collection<IColumn> columns) {
+        ByteBuffer name = null;
+        for (IColumn col : columns)
+            name = col.name();
 
+        return name;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = values.get(i);
+
+        return array;
     }
 
     public int docCount() {
@@ -417,14 +842,51 @@ public class IndexWriter {
         IndexWriter.autoCommit.set(autoCommit);
     }
 
-    public void commit() {
-        if (!isAutoCommit()){
-            CassandraUtils.robustInsert(ConsistencyLevel.ONE, getMutationList().values().toArray(new RowMutation[]{}));
-            getMutationList().clear();
+    /**
+     * Hands the pending mutations to the background flusher
+     *
+     * @return a future that completes once the mutations are written
+     */
+    public Future<Void> commit() {
+        return flushMutationsAsync();
+    }
+
+    private void flushMutations() {
+        MutationFlusher.await(flushMutationsAsync());
+    }
+
+    private Future<Void> flushMutationsAsync() {
+        Map<ByteBuffer, RowMutation> mutations = getMutationList();
+
+        // the flusher owns these now, start a new list for this thread
+        mutationList.set(new ConcurrentSkipListMap<ByteBuffer, RowMutation>());
+
+        // readers are told only once the write was attempted, even a failed
+        // one may have been applied in part
+        final Map<String, ChangeLog.Changes> recorded = ChangeLog.takeRecorded();
+
+        return MutationFlusher.instance.submit(ConsistencyLevel.ONE, mutations.values(),
+                CassandraUtils.mutationBatchBytes, recorded == null ? null : new Runnable() {
+                    public void run()
+                    {
+                        ChangeLog.publish(recorded);
+                    }
+                });
+    }
+
+    private TermHash getTermHash() {
+
+        TermHash hash = termHash.get();
+
+        if (hash == null) {
+            hash = new TermHash();
+            termHash.set(hash);
         }
+
+        return hash;
     }
 
-    private Map<ByteBuffer, RowMutation> getMutationList() {
+    Map<ByteBuffer, RowMutation> getMutationList() {
 
         Map<ByteBuffer, RowMutation> list = mutationList.get();
 
@@ -0,0 +1,120 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.ObjectStreamException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.document.AbstractField;
+import org.apache.lucene.document.Field;
+
+/**
+ * A stored field read from the Docs CF, backed by the column bytes.
+ *
+ * The String or byte[] value is only built the first time it is asked for.
+ * Documents holding these are not cached by IndexReader, but a document can
+ * still be handed to several threads: two threads may both build the value
+ * but always end up with equal ones. Serializing the field builds the value
+ * first, the column bytes are not kept.
+ */
+public class LazyStoredField extends AbstractField
+{
+    private static final long serialVersionUID = 1L;
+
+    // value bytes, without the flag byte
+    private transient final ByteBuffer value;
+
+    public LazyStoredField(String name, ByteBuffer value, boolean binary)
+    {
+        super(name, Field.Store.YES, binary ? Field.Index.NO : Field.Index.ANALYZED, Field.TermVector.NO);
+
+        this.value = value;
+
+        lazy = true;
+        isBinary = binary;
+        binaryLength = binary ? value.remaining() : 0;
+    }
+
+    public String stringValue()
+    {
+        if (isBinary)
+            return null;
+
+        String string = (String) fieldsData;
+
+        if (string == null)
+        {
+            string = new String(value.array(), value.arrayOffset() + value.position(), value.remaining(),
+                    CassandraUtils.UTF_8);
+            fieldsData = string;
+        }
+
+        return string;
+    }
+
+    public byte[] getBinaryValue(byte[] result)
+    {
+        if (!isBinary)
+            return null;
+
+        byte[] bytes = (byte[]) fieldsData;
+
+        if (bytes == null)
+        {
+            int length = value.remaining();
+
+            bytes = result != null && result.length >= length ? result : new byte[length];
+            System.arraycopy(value.array(), value.arrayOffset() + value.position(), bytes, 0, length);
+
+            if (bytes != result)
+                fieldsData = bytes;
+        }
+
+        return bytes;
+    }
+
+    public byte[] binaryValue()
+    {
+        return getBinaryValue(null);
+    }
+
+    public Reader readerValue()
+    {
+        return null;
+    }
+
+    public TokenStream tokenStreamValue()
+    {
+        return null;
+    }
+
+    // builds the value before AbstractField is written
+    private Object writeReplace() throws ObjectStreamException
+    {
+        if (isBinary)
+            binaryValue();
+        else
+            stringValue();
+
+        return this;
+    }
+}
@@ -20,48 +20,44 @@
 package lucandra;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 import org.apache.cassandra.db.ExpiringColumn;
 import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.SliceByNamesReadCommand;
 import org.apache.cassandra.db.SliceFromReadCommand;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ConsistencyLevel;
-import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.cassandra.utils.FBUtilities;
-import org.apache.log4j.Logger;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.OpenBitSet;
 
+/**
+ * Iterates the live documents of a shard, those with an id taken for good in
+ * its ids row.
+ *
+ * The ids are read once per shard into a bitset kept by the ReaderCache, see
+ * IndexReader.getLiveDocs(), and updated for the documents a ChangeLog lists
+ * rather than read again.
+ */
 public class LucandraAllTermDocs implements TermDocs
 {
+    // super columns of the ids row read at once
+    private static final int idsPageSize = 4096;
 
-    private static Logger logger    = Logger.getLogger(LucandraAllTermDocs.class);
-    private String        indexName;
-    private int           idx;      // tracks where we are in the doc buffer
-    private int           fillSize; // tracks how much the buffer was filled with docs from cassandra
-    private int[]         docBuffer = new int[CassandraUtils.maxDocsPerShard+1]; // max number of docs we pull
-    private int           doc       = -1;
-    private int           maxDoc;
+    private final OpenBitSet liveDocs;
+    private int              doc         = -1;
 
     public LucandraAllTermDocs(IndexReader indexReader)
     {
-        indexName = indexReader.getIndexName();
-        maxDoc = indexReader.maxDoc();
-        Arrays.fill(docBuffer, 0);
-        
-        idx = 0;
-        fillSize = 0;
-        
-        fillDocBuffer();
-
+        liveDocs = indexReader.getLiveDocs();
     }
 
     public void seek(Term term) throws IOException
@@ -98,70 +94,138 @@ public class LucandraAllTermDocs implements TermDocs
 
     public int read(int[] docs, int[] freqs) throws IOException
     {
-        final int length = docs.length;
         int i = 0;
-        while (i < length && doc < maxDoc && fillSize > 0)
+        while (i < docs.length && next())
         {
-
             docs[i] = doc;
-            freqs[i] = docBuffer[doc];
+            freqs[i] = 1;
             ++i;
-
-            next();
         }
+
         return i;
     }
 
     public boolean skipTo(int target) throws IOException
     {
-        doc = target;
-        for (; idx < maxDoc; idx++)
+        int next = liveDocs.nextSetBit(Math.max(target, 0));
+
+        if (next < 0)
         {
-                if (idx >= doc && docBuffer[idx] > 0){
-                    doc = idx;
-                    return true; 
-                }
+            doc = Integer.MAX_VALUE;
+            return false;
         }
 
-        return false;
+        doc = next;
+        return true;
     }
 
     public void close() throws IOException
     {
     }
 
-    private void fillDocBuffer()
+    /**
+     * @return the live documents of indexName
+     */
+    static OpenBitSet readLiveDocs(String indexName)
     {
-        
-        ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, "ids".getBytes());
+        OpenBitSet liveDocs = new OpenBitSet(CassandraUtils.maxDocsPerShard + 1);
 
-        ReadCommand cmd = new SliceFromReadCommand(CassandraUtils.keySpace, key,
-                new ColumnParent(CassandraUtils.schemaInfoColumnFamily), FBUtilities.EMPTY_BYTE_BUFFER,
-                FBUtilities.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE);
+        ByteBuffer key = CassandraUtils.indexKey(indexName, "ids");
+        ByteBuffer start = FBUtilities.EMPTY_BYTE_BUFFER;
 
-        
-        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, cmd);
+        while (true)
+        {
+            ReadCommand cmd = new SliceFromReadCommand(CassandraUtils.keySpace, key, new ColumnParent(
+                    CassandraUtils.schemaInfoColumnFamily), start, FBUtilities.EMPTY_BYTE_BUFFER, false, idsPageSize);
 
-        if(rows.isEmpty())
-            return;
-        
-        Row row = rows.get(0);
+            List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, cmd);
 
-        if(row == null || row.cf == null)
-            return;
-        
-        for(IColumn sc : row.cf.getSortedColumns()){
-            Integer id   = Integer.valueOf(ByteBufferUtil.string(sc.name()));
-            
-            for(IColumn c : sc.getSubColumns())
+            if (rows.isEmpty() || rows.get(0).cf == null)
+                return liveDocs;
+
+            Collection<IColumn> ids = rows.get(0).cf.getSortedColumns();
+
+            for (IColumn sc : ids)
             {
-                //valid id
-                if( !(c instanceof ExpiringColumn)){
-                    docBuffer[id] = 1;
-                    fillSize++;
-                }
+                // the first one was the last of the previous page
+                if (start.remaining() > 0 && sc.name().equals(start))
+                    continue;
+
+                int id = parseId(sc.name());
+
+                if (id >= 0 && isTaken(sc))
+                    liveDocs.fastSet(id);
+
+                start = sc.name();
             }
-        }     
+
+            if (ids.size() < idsPageSize)
+                return liveDocs;
+        }
+    }
+
+    /**
+     * Reads the ids of docs again into liveDocs
+     */
+    static void readLiveDocs(String indexName, OpenBitSet liveDocs, Collection<Integer> docs)
+    {
+        List<ByteBuffer> names = new ArrayList<ByteBuffer>(docs.size());
+        for (Integer doc : docs)
+        {
+            names.add(ByteBuffer.wrap(String.valueOf(doc).getBytes()));
+
+            if (doc <= CassandraUtils.maxDocsPerShard)
+                liveDocs.fastClear(doc);
+        }
+
+        ReadCommand cmd = new SliceByNamesReadCommand(CassandraUtils.keySpace, CassandraUtils.indexKey(indexName,
+                "ids"), new ColumnParent(CassandraUtils.schemaInfoColumnFamily), names);
+
+        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, cmd);
+
+        if (rows.isEmpty() || rows.get(0).cf == null)
+            return;
+
+        for (IColumn sc : rows.get(0).cf.getSortedColumns())
+        {
+            int id = parseId(sc.name());
+
+            if (id >= 0 && isTaken(sc))
+                liveDocs.fastSet(id);
+        }
     }
 
+    // reserved ids expire, taken ones do not
+    private static boolean isTaken(IColumn sc)
+    {
+        for (IColumn c : sc.getSubColumns())
+        {
+            if (c.isLive() && c.timestamp() > sc.getMarkedForDeleteAt() && !(c instanceof ExpiringColumn))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the id of an ids column, written as a decimal string, or -1
+     */
+    private static int parseId(ByteBuffer name)
+    {
+        if (name.remaining() == 0)
+            return -1;
+
+        long id = 0;
+        for (int i = name.position(); i < name.limit(); i++)
+        {
+            int digit = name.get(i) - '0';
+
+            if (digit < 0 || digit > 9 || id > CassandraUtils.maxDocsPerShard)
+                return -1;
+
+            id = id * 10 + digit;
+        }
+
+        return id > CassandraUtils.maxDocsPerShard ? -1 : (int) id;
+    }
 }
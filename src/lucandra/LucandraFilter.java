@@ -22,19 +22,40 @@ package lucandra;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.ReadCommand;
+import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.SliceByNamesReadCommand;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.util.OpenBitSet;
 
+/**
+ * Restricts a search to the documents already hit on the reader that have
+ * all of the filter terms.
+ *
+ * Each term is read for the documents still matching the terms before it,
+ * by name from its TI row, in batches of -Dlucandra.filter.batch columns
+ * sent out together. For a packed term the blocks holding those documents
+ * are read the same way. Results are cached per set of terms, see
+ * ReaderCache.filters, along with the documents they were checked for, so
+ * a repeated filter only reads the documents hit since.
+ */
 public class LucandraFilter extends Filter {
 
     private static final long serialVersionUID = 1L;
 
+    // doc columns asked for by one read
+    static final int batchSize = Integer.getInteger("lucandra.filter.batch", 4096);
+
     private List<Term> terms = new ArrayList<Term>();
 
     public void addTerm(Term term) {
@@ -42,34 +63,178 @@ public class LucandraFilter extends Filter {
     }
 
     public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
-        OpenBitSet result = new OpenBitSet(reader.maxDoc());
-
-        OpenBitSet docsHit = ((lucandra.IndexReader) reader).getDocsHit();
-        
-       
-        List<ByteBuffer> filteredValues = new ArrayList<ByteBuffer>();
-        for(int i=0; i<docsHit.capacity(); i++){          
-            if(docsHit.fastGet(i))
-                filteredValues.add(ByteBuffer.wrap(CassandraUtils.writeVInt(i)));
-        }
 
-        if (filteredValues.size() == 0)
-            return null;
+        lucandra.IndexReader indexReader = (lucandra.IndexReader) reader;
+        ReaderCache cache = indexReader.getCache();
+
+        Set<Term> key = new HashSet<Term>(terms);
+        Result cached = cache.filters.get(key);
+
+        OpenBitSet checked = (OpenBitSet) indexReader.getDocsHit().clone();
+        OpenBitSet candidates = (OpenBitSet) checked.clone();
+
+        if (cached != null) {
+            candidates.andNot(cached.checked);
 
-        LucandraTermDocs termDocs = (LucandraTermDocs) reader.termDocs();
+            // the cached bitset stays untouched by callers
+            if (candidates.isEmpty()) {
+                cache.filterStats.hit();
+                return (OpenBitSet) cached.matched.clone();
+            }
+
+            checked.or(cached.checked);
+        }
+
+        cache.filterStats.miss();
 
+        // This is a conjunction: each term narrows down the documents the next is read for
         for (Term term : terms) {
-            LucandraTermInfo[] terms = termDocs.filteredSeek(term, filteredValues);
-            // This is a conjunction and at least one value must match
-            if (terms == null)
-                return null;
+            if (candidates.isEmpty())
+                break;
+
+            candidates = read(indexReader, term, candidates);
+        }
+
+        if (cached != null)
+            candidates.or(cached.matched);
+
+        cache.filters.put(key, new Result(checked, candidates));
+        ReaderCache.enforceGlobalCapacity();
+
+        return (OpenBitSet) candidates.clone();
+    }
+
+    /**
+     * @return the candidates with a posting of term
+     */
+    private static OpenBitSet read(lucandra.IndexReader indexReader, Term term, OpenBitSet candidates)
+            throws IOException {
+
+        String indexName = indexReader.getIndexName();
+        ByteBuffer key = CassandraUtils.termKey(indexName, term);
+
+        List<ByteBuffer> names = new ArrayList<ByteBuffer>();
+
+        // a packed term has its postings in blocks, whatever the property says now
+        names.add(BlockPostings.skipColumn);
+
+        // encoded into one slab per read, a doc id takes at most 5 bytes
+        ByteBuffer slab = ByteBuffer.allocate((int) candidates.cardinality() * 5);
+
+        for (int doc = candidates.nextSetBit(0); doc >= 0; doc = candidates.nextSetBit(doc + 1)) {
+            int start = slab.position();
+            CassandraUtils.writeVInt(slab, doc);
+
+            names.add(ByteBuffer.wrap(slab.array(), start, slab.position() - start).slice());
+        }
+
+        List<Row> rows = readNames(key, names);
+
+        OpenBitSet matched = new OpenBitSet(candidates.size());
+
+        // docs with a live column, which overrides their posting in a block
+        OpenBitSet written = new OpenBitSet(candidates.size());
+        BlockPostings blocks = null;
+
+        for (Row row : rows) {
+            if (row == null || row.cf == null)
+                continue;
+
+            for (IColumn col : row.cf.getSortedColumns()) {
+                int doc = CassandraUtils.readVInt(col.name());
+
+                if (doc >= CassandraUtils.maxDocsPerShard) {
+                    if (col.name().equals(BlockPostings.skipColumn) && col.isLive())
+                        blocks = BlockPostings.deserialize(col.value());
 
-            while (termDocs.next()) {
-                result.set(termDocs.doc());
+                    break;
+                }
+
+                if (col.isLive())
+                    written.fastSet(doc);
+
+                if (PostingsBlock.isPosting(col))
+                    matched.fastSet(doc);
             }
         }
-        
-        termDocs.close();
-        return result;
+
+        if (blocks != null)
+            readPacked(key, blocks, candidates, written, matched);
+
+        return matched;
+    }
+
+    // the candidates found in the blocks holding them, unless a column overrides them
+    private static void readPacked(ByteBuffer key, BlockPostings blocks, OpenBitSet candidates, OpenBitSet written,
+            OpenBitSet matched) {
+
+        List<ByteBuffer> names = new ArrayList<ByteBuffer>();
+
+        for (int doc = candidates.nextSetBit(0); doc >= 0; doc = candidates.nextSetBit(doc + 1)) {
+            if (!blocks.covers(doc))
+                continue;
+
+            int block = blocks.blockOf(doc);
+            names.add(BlockPostings.blockColumn(blocks.firstDocs[block]));
+
+            // on to the next block
+            if (block + 1 >= blocks.size())
+                break;
+
+            doc = blocks.firstDocs[block + 1] - 1;
+        }
+
+        for (Row row : readNames(key, names)) {
+            if (row == null || row.cf == null)
+                continue;
+
+            for (IColumn col : row.cf.getSortedColumns()) {
+                if (!col.isLive())
+                    continue;
+
+                PostingsBlock block = PostingsBlock.deserialize(col.value());
+
+                for (int i = 0; i < block.size(); i++) {
+                    int doc = block.docIds[i];
+
+                    if (doc < candidates.size() && candidates.fastGet(doc) && !written.fastGet(doc))
+                        matched.fastSet(doc);
+                }
+            }
+        }
+    }
+
+    // reads names from the TI row key batchSize at a time, the reads sent together
+    private static List<Row> readNames(ByteBuffer key, List<ByteBuffer> names) {
+
+        ColumnParent parent = new ColumnParent(CassandraUtils.termVecColumnFamily);
+        List<ReadCommand> reads = new ArrayList<ReadCommand>();
+
+        for (int from = 0; from < names.size(); from += batchSize)
+            reads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, parent, names.subList(from, Math.min(
+                    from + batchSize, names.size()))));
+
+        if (reads.isEmpty())
+            return new ArrayList<Row>();
+
+        // read in parallel by StorageProxy
+        return CassandraUtils.robustRead(ConsistencyLevel.ONE, reads.toArray(new ReadCommand[reads.size()]));
+    }
+
+    /**
+     * The documents a filter matched out of those it was checked for
+     */
+    public static final class Result {
+        final OpenBitSet checked;
+        final OpenBitSet matched;
+
+        Result(OpenBitSet checked, OpenBitSet matched) {
+            this.checked = checked;
+            this.matched = matched;
+        }
+
+        int weight() {
+            return 64 + (checked.getBits().length + matched.getBits().length) * 8;
+        }
     }
 }
@@ -23,7 +23,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
 
-import org.apache.cassandra.db.IColumn;
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
@@ -35,8 +34,7 @@ public class LucandraTermDocs implements TermDocs, TermPositions
 
     private IndexReader         indexReader;
     private LucandraTermEnum    termEnum;
-    private LucandraTermInfo[]  termDocs;
-    private int                 docPosition;
+    private PostingsCursor      termDocs;
     private int[]               termPositionArray;
     private int                 termPosition;
     private static final Logger logger = Logger.getLogger(LucandraTermDocs.class);
@@ -55,19 +53,12 @@ public class LucandraTermDocs implements TermDocs, TermPositions
 
     public int doc()
     {
-        if (docPosition < 0)
-            docPosition = 0;
-
-        return termDocs[docPosition].docId;
+        return termDocs.doc();
     }
 
     public int freq()
     {
-        Integer freq = termDocs[docPosition].freq;
-        termPositionArray = termDocs[docPosition].positions;
-        termPosition = 0;
-
-        return freq;
+        return termDocs.freq();
     }
 
     public boolean next() throws IOException
@@ -76,18 +67,20 @@ public class LucandraTermDocs implements TermDocs, TermPositions
         if (termDocs == null)
             return false;
 
-        return ++docPosition < termDocs.length;
+        termPositionArray = null;
+
+        return termDocs.next();
     }
 
     public int read(int[] docs, int[] freqs) throws IOException
     {
 
-        int i = 0;
-        for (; (termDocs != null && docPosition < termDocs.length && i < docs.length); i++, docPosition++)
-        {
-            docs[i] = doc();
-            freqs[i] = freq();
-        }
+        if (termDocs == null)
+            return 0;
+
+        termPositionArray = null;
+
+        int i = termDocs.read(docs, freqs);
 
         logger.debug("read " + i);
 
@@ -99,43 +92,17 @@ public class LucandraTermDocs implements TermDocs, TermPositions
 
         // on a new term so check cached
         LucandraTermEnum tmp = indexReader.checkTermCache(term);
-        if (tmp == null)
-        {
+        if (tmp != null)
+            termEnum = tmp;
 
-            if (termEnum.skipTo(term))
-            {
-                if (termEnum.term().compareTo(term) == 0)
-                {
-                    termDocs = termEnum.getTermDocFreq();
-                }
-                else
-                {
-                    termDocs = null;
-                }
-            }
+        if (termEnum.skipTo(term) && termEnum.term().equals(term))
+        {
+            termDocs = termEnum.postings();
         }
         else
         {
-            termEnum = tmp;
-            if (termEnum.skipTo(term))
-            {
-
-                if (termEnum.term().equals(term))
-                {
-                    termDocs = termEnum.getTermDocFreq();
-                }
-                else
-                {
-                    termDocs = null;
-                }
-            }
-            else
-            {
-                termDocs = null;
-            }
+            termDocs = null;
         }
-
-        docPosition = -1;
     }
 
     public void seek(TermEnum termEnum) throws IOException
@@ -149,39 +116,29 @@ public class LucandraTermDocs implements TermDocs, TermPositions
             this.termEnum = (LucandraTermEnum) indexReader.terms(termEnum.term());
         }
 
-        termDocs = this.termEnum.getTermDocFreq();
-
-        if (logger.isDebugEnabled())
-            logger.debug("seeked out " + termDocs.length);
-
-        docPosition = -1;
+        termDocs = this.termEnum.postings();
     }
 
-    public LucandraTermInfo[] filteredSeek(Term term, List<ByteBuffer> docNums)
+    public PostingsBlock filteredSeek(Term term, List<ByteBuffer> docNums)
     {
 
         termEnum.loadFilteredTerms(term, docNums);
 
-        if (termEnum.getTermDocFreq() == null)
-            termDocs = null;
-        else
-            termDocs = termEnum.getTermDocFreq();
+        PostingsBlock filtered = termEnum.getTermDocFreq();
 
-        docPosition = -1;
-        return termDocs;
+        termDocs = filtered == null ? null : new PostingsCursor(filtered);
+
+        return filtered;
     }
 
-    // this should be used to find a already loaded doc
     public boolean skipTo(int target) throws IOException
     {
-        do
-        {
-            if (!next())
-                return false;
-        }
-        while (target > doc());
+        if (termDocs == null)
+            return false;
 
-        return true;
+        termPositionArray = null;
+
+        return termDocs.skipTo(target);
     }
 
     public byte[] getPayload(byte[] data, int offset) throws IOException
@@ -204,6 +161,13 @@ public class LucandraTermDocs implements TermDocs, TermPositions
 
         logger.debug("In nextPosition()");
 
+        // decoded for the block on the first call
+        if (termPositionArray == null)
+        {
+            termPositionArray = termDocs.positions();
+            termPosition = 0;
+        }
+
         if (termPositionArray == null)
             return -1;
 
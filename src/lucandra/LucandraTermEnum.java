@@ -20,23 +20,22 @@
 package lucandra;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.cassandra.db.DeletedColumn;
 import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.SliceByNamesReadCommand;
 import org.apache.cassandra.db.SliceFromReadCommand;
-import org.apache.cassandra.db.SuperColumn;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.utils.ByteBufferUtil;
@@ -45,26 +44,53 @@ import org.apache.log4j.Logger;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermEnum;
 
+/**
+ * Enumerates the terms of a field from its TL row.
+ *
+ * Term names and postings are read separately. Names are sliced from TL in
+ * chunks that start small, so a point lookup reads little, and double while
+ * the caller keeps calling next(). Postings are only read from TI when
+ * docFreq() or getTermDocFreq() asks for them, together with those of the
+ * following terms once the caller walks the terms in order. Only the postings
+ * of terms that fit in a PostingsCursor page are kept whole. Larger terms
+ * keep their first page and are read a page at a time through postings(), as
+ * are terms packed by BlockPostings. Either is only counted in full when
+ * docFreq() asks, and then from the doc columns alone.
+ *
+ * TL is not cleaned up when documents are deleted, so a term may come back
+ * with no live postings.
+ */
 public class LucandraTermEnum extends TermEnum
 {
+    // term names read by the first slice of a skipTo, and the most read by a later one
+    public static final int                      initChunkSize  = Integer.getInteger("lucandra.terms.chunk.init", 4);
+    public static final int                      maxChunkSize   = Integer.getInteger("lucandra.terms.chunk.max", 1024);
+
+    // most postings rows read ahead in one round trip
+    public static final int                      maxPrefetch    = Integer.getInteger("lucandra.terms.prefetch.max", 64);
 
     private final IndexReader                    indexReader;
     private final String                         indexName;
 
-    private int                                  termPosition;
-    private Term[]                               termBuffer;
-    private SortedMap<Term, Collection<IColumn>> termDocFreqBuffer;
-    private SortedMap<Term, Collection<IColumn>> termCache;
-    private Map<Term, LucandraTermInfo[]>        termDocsCache;
-
-    // number of sequential terms to read initially
-    private final int                            maxInitSize    = 4;
-    private final int                            maxChunkSize   = 64;
-    private int                                  actualInitSize = -1;
-    private Term                                 initTerm       = null;
-    private Term                                 chunkBoundryTerm;
-    private String                               currentField   = null;
-    private int                                  chunkCount     = 0;
+    // the terms of field from rangeStart to the last key, all of them if exhausted
+    private final TreeSet<Term>                  termCache      = new TreeSet<Term>();
+    private String                               field;
+    private Term                                 rangeStart;
+    private boolean                              exhausted;
+    private int                                  chunkSize;
+
+    private Term                                 current;
+
+    // postings read so far, ReaderCache.postings decides how long they stay
+    private Map<Term, PostingsBlock>             termDocsCache;
+
+    // the terms with more than a page of postings or packed into blocks,
+    // these are read a page at a time instead
+    private Map<Term, PagedTerm>                 pagedTerms;
+
+    // postings of the next prefetch terms are read with the current one
+    private Term                                 lastPostingsTerm;
+    private int                                  prefetch       = 1;
 
     private static final Logger                  logger         = Logger.getLogger(LucandraTermEnum.class);
 
@@ -72,7 +98,6 @@ public class LucandraTermEnum extends TermEnum
     {
         this.indexReader = indexReader;
         this.indexName = indexReader.getIndexName();
-        this.termPosition = 0;
     }
 
     public boolean skipTo(Term term) throws IOException
@@ -81,11 +106,52 @@ public class LucandraTermEnum extends TermEnum
         if (term == null)
             return false;
 
-        loadTerms(term);
+        if (!inRange(term))
+        {
+            termCache.clear();
+            field = term.field();
+            rangeStart = term;
+            exhausted = false;
+            chunkSize = initChunkSize;
+
+            loadTerms(term, chunkSize);
+
+            // cache the initial term too (incase it was a miss)
+            indexReader.addTermEnumCache(term, this);
+        }
+        else if (logger.isDebugEnabled())
+        {
+            logger.debug("Found " + term + " in cache");
+        }
+
+        current = termCache.ceiling(term);
 
-        currentField = term.field();
+        return current != null;
+    }
+
+    /**
+     * @return true if a term of changed falls within the terms this enum
+     *         holds, so its term list or postings may be out of date
+     */
+    boolean covers(NavigableSet<Term> changed)
+    {
+        Term start = rangeStart;
+        if (start == null)
+            return false;
 
-        return termBuffer == null || termBuffer.length == 0 ? false : true;
+        Term first = changed.ceiling(start);
+        if (first == null || !first.field().equals(field))
+            return false;
+
+        return exhausted || (!termCache.isEmpty() && first.compareTo(termCache.last()) <= 0);
+    }
+
+    private boolean inRange(Term term)
+    {
+        if (rangeStart == null || !term.field().equals(field) || term.compareTo(rangeStart) < 0)
+            return false;
+
+        return exhausted || (!termCache.isEmpty() && term.compareTo(termCache.last()) <= 0);
     }
 
     @Override
@@ -97,330 +163,235 @@ public class LucandraTermEnum extends TermEnum
     @Override
     public int docFreq()
     {
-        return termDocFreqBuffer == null ? 0 : termDocFreqBuffer.size();
+        if (current == null)
+            return 0;
+
+        PostingsBlock docIds = cachedPostings(current);
+
+        if (docIds != null)
+            return docIds.size();
+
+        PagedTerm paged = pagedTerms.get(current);
+
+        if (paged.nextDoc >= 0)
+        {
+            paged.docFreq += countPostings(current, paged.nextDoc, paged.blocks);
+            paged.nextDoc = -1;
+        }
+
+        return paged.docFreq;
     }
 
     @Override
     public boolean next() throws IOException
     {
 
-        if (termBuffer == null)
-        {
-
-            // start at the top, or loop over starting position
-            if (initTerm == null)
-                skipTo(new Term(""));
-            else
-                skipTo(initTerm);
-        }
+        // start at the top
+        if (rangeStart == null)
+            return skipTo(new Term(""));
 
-        termPosition++;
+        if (current == null)
+            return false;
 
-        boolean hasNext = termPosition < termBuffer.length;
+        Term next = termCache.higher(current);
 
-        if (!hasNext)
+        if (next == null && !exhausted)
         {
-            // if we've already done init try grabbing more
-            if ((chunkCount == 1 && actualInitSize == maxInitSize)
-                    || (chunkCount > 1 && actualInitSize == maxChunkSize))
-            {
-                loadTerms(chunkBoundryTerm);
+            // the caller is scanning, read more at a time
+            chunkSize = Math.min(chunkSize * 2, maxChunkSize);
 
-                hasNext = termBuffer == null ? false : termBuffer.length > 0;
-            }
+            loadTerms(termCache.last(), chunkSize + 1);
 
-            else if ((chunkCount == 1 && actualInitSize < maxInitSize)
-                    || (chunkCount > 1 && actualInitSize < maxChunkSize))
-            {
-                termBuffer = null;
-                termPosition = 0;
-            }
+            next = termCache.higher(current);
         }
 
-        return hasNext;
+        current = next;
+
+        return current != null;
     }
 
     @Override
     public Term term()
     {
-        if (termBuffer == null || termBuffer.length <= termPosition)
-            return null;
-
         if (logger.isDebugEnabled())
-            logger.debug("Term: " + termBuffer[termPosition]);
+            logger.debug("Term: " + current);
 
-        return termBuffer[termPosition];
+        return current;
     }
 
-    private void loadTerms(Term skipTo)
+    // reads up to count term names of the field starting at from
+    private void loadTerms(Term from, int count)
     {
+        long start = System.currentTimeMillis();
 
-        termDocFreqBuffer = null;
+        ByteBuffer fieldKey = CassandraUtils.fieldKey(indexName, from.field());
+        ByteBuffer startTerm = ByteBuffer.wrap(from.text().getBytes(CassandraUtils.UTF_8));
 
-        if (skipTo == null)
-            return;
+        // Scan range of terms in this field
+        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE,
+                new SliceFromReadCommand(CassandraUtils.keySpace, fieldKey, new ColumnParent(
+                        CassandraUtils.metaInfoColumnFamily), startTerm, FBUtilities.EMPTY_BYTE_BUFFER, false, count));
 
-        // incase this enum is re-used, track where we begin
-        if (initTerm == null)
-            initTerm = skipTo;
+        if (rows == null || rows.size() != 1)
+            throw new RuntimeException("Missing field meta info");
 
-        ByteBuffer fieldKey = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, skipTo
-                .field().getBytes());
+        Collection<IColumn> columns;
+        if (rows.get(0).cf == null)
+            columns = new ArrayList<IColumn>();
+        else
+            columns = rows.get(0).cf.getSortedColumns();
 
-        // chose starting term
-        ByteBuffer startTerm;
-        try
-        {
-            startTerm = ByteBuffer.wrap(skipTo.text().getBytes("UTF-8"));
-        }
-        catch (UnsupportedEncodingException e1)
-        {
-            throw new RuntimeException("JVM doesn't support UTF-8", e1);
-        }
+        if (columns.size() < count)
+            exhausted = true;
 
-        // in cache?
-        if (termCache != null)
+        for (IColumn column : columns)
         {
+            if (column.isMarkedForDelete())
+                continue;
 
-            // We've already passed the boundry, check cache
-            if (skipTo.equals(chunkBoundryTerm) && chunkCount > 1 && actualInitSize < maxChunkSize)
-            {
-                termDocFreqBuffer = termCache.tailMap(skipTo);
-            }
-
-            if (skipTo.equals(initTerm))
-            {
-                termDocFreqBuffer = termCache;
-            }
+            Term term = new Term(from.field(), ByteBufferUtil.string(column.name(), CassandraUtils.UTF_8));
 
-            else if (!skipTo.equals(chunkBoundryTerm))
-            {
-                termDocFreqBuffer = termCache.tailMap(skipTo);
-            }
-
-            if (logger.isDebugEnabled() && termDocFreqBuffer == null && !skipTo.equals(chunkBoundryTerm))
-            {
-                logger.debug(skipTo + " not in term cache");
-            }
+            if (termCache.add(term))
+                indexReader.addTermEnumCache(term, this);
         }
 
-        if (termDocFreqBuffer != null)
-        {
+        if (logger.isDebugEnabled())
+            logger.debug("loadTerms: " + from + "(" + columns.size() + " of " + count + ") took "
+                    + (System.currentTimeMillis() - start) + "ms");
+    }
 
-            termBuffer = termDocFreqBuffer.keySet().toArray(new Term[] {});
-            termPosition = 0;
+    /**
+     * Reads the postings of term and, when walking in order, of the terms
+     * after it
+     *
+     * @return the postings of term, null if it has more than a page of them
+     */
+    private PostingsBlock loadPostings(Term term)
+    {
+        if (lastPostingsTerm != null && lastPostingsTerm.equals(termCache.lower(term)))
+            prefetch = Math.min(prefetch * 2, maxPrefetch);
+        else
+            prefetch = 1;
 
-            if (logger.isDebugEnabled())
-                logger.debug("Found " + skipTo + " in cache :" + termBuffer.length);
+        List<Term> terms = new ArrayList<Term>(prefetch);
+        terms.add(term);
 
-            return;
-        }
-        else if (chunkCount > 1 && actualInitSize < maxChunkSize)
+        for (Term t = termCache.higher(term); t != null && terms.size() < prefetch; t = termCache.higher(t))
         {
-            termBuffer = null;
-            termPosition = 0;
-            return; // done!
+            if (!isLoaded(t))
+                terms.add(t);
         }
 
-        chunkCount++;
+        long start = System.currentTimeMillis();
 
-        // The first time we grab just a few keys
-        int count = maxInitSize;
+        ColumnParent columnParent = new ColumnParent(CassandraUtils.termVecColumnFamily);
+        boolean blocksEnabled = BlockPostings.isEnabled(indexName);
 
-        // otherwise we grab all the rest of the keys
-        if (chunkBoundryTerm != null)
+        List<ReadCommand> reads = new ArrayList<ReadCommand>(terms.size());
+        Map<ByteBuffer, Term> keys = new HashMap<ByteBuffer, Term>(terms.size() * 2);
+        for (Term t : terms)
         {
-            count = maxChunkSize;
-            try
-            {
-                startTerm = ByteBuffer.wrap(chunkBoundryTerm.text().getBytes("UTF-8"));
-            }
-            catch (UnsupportedEncodingException e)
-            {
-                throw new RuntimeException("JVM doesn't support UTF-8", e);
-            }
-        }
+            ByteBuffer rowKey = CassandraUtils.termKey(indexName, t);
+            keys.put(rowKey, t);
 
-        long start = System.currentTimeMillis();
+            reads.add(new SliceFromReadCommand(CassandraUtils.keySpace, rowKey, columnParent,
+                    FBUtilities.EMPTY_BYTE_BUFFER, BlockPostings.lastDocColumn, false, PostingsCursor.pageSize));
 
-        termDocFreqBuffer = new TreeMap<Term, Collection<IColumn>>();
+            if (blocksEnabled)
+                reads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, rowKey, columnParent, Arrays
+                        .asList(BlockPostings.skipColumn)));
+        }
 
-        ColumnParent columnFamily = new ColumnParent(CassandraUtils.metaInfoColumnFamily);
+        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, reads.toArray(new ReadCommand[] {}));
 
-        // Scan range of terms in this field
-        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE,
-                new SliceFromReadCommand(CassandraUtils.keySpace, fieldKey, columnFamily, startTerm,
-                        FBUtilities.EMPTY_BYTE_BUFFER, false, count));
-
-        ColumnParent columnParent = new ColumnParent(CassandraUtils.termVecColumnFamily);
+        if (termDocsCache == null)
+            termDocsCache = new ConcurrentHashMap<Term, PostingsBlock>();
 
-        if (rows == null || rows.size() != 1)
-            throw new RuntimeException("Missing field meta info");
-        else if(logger.isDebugEnabled())
-            logger.debug("Found "+rows.size()+" terms under field "+skipTo.field());
-        
-        // Collect read commands
-        Collection<IColumn> columns;
-        if (rows.get(0).cf == null)
-            columns = new ArrayList<IColumn>();
-        else
-            columns = rows.get(0).cf.getSortedColumns();
+        // terms without a row have no postings left
+        Map<Term, PostingsBlock> loaded = new HashMap<Term, PostingsBlock>(terms.size() * 2);
+        for (Term t : terms)
+            loaded.put(t, PostingsBlock.empty);
 
-        List<ReadCommand> reads = new ArrayList<ReadCommand>(columns.size());
-        for (IColumn column : columns)
+        // packed terms are read through their blocks
+        Map<Term, BlockPostings> packed = new HashMap<Term, BlockPostings>();
+        for (Row row : rows)
         {
+            IColumn skip = row.cf == null ? null : row.cf.getColumn(BlockPostings.skipColumn);
 
-            ByteBuffer rowKey = CassandraUtils
-                    .hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, skipTo.field().getBytes(),
-                            CassandraUtils.delimeterBytes, ByteBufferUtil.string(column.name()).getBytes());
-
-            if (logger.isDebugEnabled())
-                logger.debug("scanning row: " + ByteBufferUtil.string(rowKey));
-
-            reads.add((ReadCommand) new SliceFromReadCommand(CassandraUtils.keySpace, rowKey, columnParent,
-                    FBUtilities.EMPTY_BYTE_BUFFER, FBUtilities.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE));
+            if (skip != null && skip.isLive() && keys.containsKey(row.key.key))
+                packed.put(keys.get(row.key.key), BlockPostings.deserialize(skip.value()));
         }
 
-        rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, reads.toArray(new ReadCommand[] {}));
+        if (pagedTerms == null)
+            pagedTerms = new HashMap<Term, PagedTerm>();
 
-        // term to start with next time
-        actualInitSize = rows.size();
-        if (logger.isDebugEnabled())
+        for (Row row : rows)
         {
-            logger.debug("Found " + rows.size() + " keys in range:" + ByteBufferUtil.string(startTerm) + " to "
-                    + ByteBufferUtil.string(FBUtilities.EMPTY_BYTE_BUFFER) + " in "
-                    + (System.currentTimeMillis() - start) + "ms");
+            Term t = keys.get(row.key.key);
 
-        }
+            if (t == null || row.cf == null || row.cf.getColumn(BlockPostings.skipColumn) != null)
+                continue;
 
-        if (actualInitSize > 0)
-        {
-            for (Row row : rows)
-            {
+            Collection<IColumn> page = row.cf.getSortedColumns();
+            BlockPostings blocks = packed.get(t);
 
-                if (row.cf == null)
-                    continue;
-
-                String key;
-                try
-                {
-                    key = new String(row.key.key.array(), row.key.key.position() + row.key.key.arrayOffset(),
-                            row.key.key.remaining(), "UTF-8");
-                }
-                catch (UnsupportedEncodingException e)
-                {
-                    throw new RuntimeException("This JVM doesn't support UTF-8");
-                }
-
-                // term keys look like wikipedia/body/wiki
-                String termStr = key.substring(key.indexOf(CassandraUtils.delimeter)
-                        + CassandraUtils.delimeter.length());
-                Term term = CassandraUtils.parseTerm(termStr);
-
-                columns = row.cf.getSortedColumns();
-
-                if(logger.isDebugEnabled())
-                    logger.debug(term + " has " + columns.size());
-
-                // check for tombstone keys or incorrect keys (from RP)
-                // and verify this is from the correct index
-                try
-                {
-                    if (columns.size() > 0
-                            && term.field().equals(skipTo.field())
-                            && ByteBufferUtil.compareUnsigned(row.key.key, CassandraUtils.hashKeyBytes(indexName
-                                    .getBytes(), CassandraUtils.delimeterBytes, term.field().getBytes(),
-                                    CassandraUtils.delimeterBytes, term.text().getBytes("UTF-8"))) == 0)
-                    {
-
-                        // remove any deleted columns
-                        Collection<IColumn> columnsToRemove = null;
-
-                        for (IColumn col : columns)
-                        {
-                            if (!col.isLive())
-                            {
-                                if (columnsToRemove == null)
-                                    columnsToRemove = new ArrayList<IColumn>();
-                                
-                                columnsToRemove.add(col);
-                            }
-                            
-                            if(logger.isDebugEnabled())
-                                logger.debug("DocId "+CassandraUtils.readVInt(col.name()));
-
-                        }
-
-                        if (columnsToRemove != null)
-                        {
-                            columns.removeAll(columnsToRemove);
-                                                }
-                        
-                        if (!columns.isEmpty())
-                        {
-                            if (logger.isDebugEnabled())
-                                logger.debug("saving row: " + ByteBufferUtil.string(row.key.key) + " with "+columns.size()+" columns");
-
-                            termDocFreqBuffer.put(term, columns);
-                        }
-                        else
-                        {
-                            logger.debug("Skipped column");
-                        }
-                    }
-                    else
-                    {
-                        logger.debug("Skipped column");
-                    }
-                }
-                catch (UnsupportedEncodingException e)
-                {
-                    throw new RuntimeException("JVM doesn't support UTF-8", e);
-                }
-            }
-
-            if (!termDocFreqBuffer.isEmpty())
+            if (blocks != null)
             {
-                chunkBoundryTerm = termDocFreqBuffer.lastKey();
-                if (logger.isDebugEnabled())
-                    logger.debug("Chunk boundry is: " + chunkBoundryTerm);
+                // its blocks, plus the doc columns written since it was packed
+                PagedTerm paged = new PagedTerm(blocks);
+                paged.docFreq = blocks.docCount + countPostings(page, blocks);
+                paged.nextDoc = page.size() < PostingsCursor.pageSize ? -1 : lastDoc(page) + 1;
+
+                loaded.remove(t);
+                pagedTerms.put(t, paged);
+                continue;
             }
-        }
 
-        // put in cache
-        termBuffer = termDocFreqBuffer.keySet().toArray(new Term[] {});
-        boolean setOnce = false;
+            PostingsBlock docIds = PostingsBlock.read(page);
 
-        for (Term termKey : termBuffer)
-        {
-            if (!setOnce && termCache == null)
-            {
-                termCache = termDocFreqBuffer;
-            }
-            else if (!setOnce)
+            // set normalizations
+            indexReader.addDocumentNormalizations(docIds, t.field());
+
+            if (page.size() < PostingsCursor.pageSize)
             {
-                termCache.putAll(termDocFreqBuffer);
+                loaded.put(t, docIds);
+                continue;
             }
 
-            setOnce = true;
+            // keep the first page for postings(), count the rest if asked
+            PagedTerm paged = new PagedTerm(null);
+            paged.docFreq = docIds.size();
+            paged.nextDoc = docIds.lastDoc + 1;
 
-            // mark the cache for each term
-            indexReader.addTermEnumCache(termKey, this);
+            loaded.remove(t);
+            pagedTerms.put(t, paged);
+            cachePostings(t, docIds);
         }
 
-        // cache the initial term too (incase it was a miss)
-        indexReader.addTermEnumCache(skipTo, this);
+        // packed terms without doc columns
+        for (Map.Entry<Term, BlockPostings> e : packed.entrySet())
+        {
+            if (!loaded.containsKey(e.getKey()))
+                continue;
 
-        termPosition = 0;
+            PagedTerm paged = new PagedTerm(e.getValue());
+            paged.docFreq = e.getValue().docCount;
 
-        long end = System.currentTimeMillis();
+            loaded.remove(e.getKey());
+            pagedTerms.put(e.getKey(), paged);
+        }
+
+        for (Map.Entry<Term, PostingsBlock> e : loaded.entrySet())
+            cachePostings(e.getKey(), e.getValue());
+
+        lastPostingsTerm = terms.get(terms.size() - 1);
 
         if (logger.isDebugEnabled())
-        {
-            logger.debug("loadTerms: " + ByteBufferUtil.string(startTerm) + "(" + termBuffer.length + ") took "
-                    + (end - start) + "ms");
+            logger.debug("loadPostings: " + term + "(" + terms.size() + ") took "
+                    + (System.currentTimeMillis() - start) + "ms");
 
-        }
+        // the cache may have evicted them already
+        return loaded.get(term);
     }
 
     void loadFilteredTerms(Term term, List<ByteBuffer> docNums)
@@ -429,88 +400,255 @@ public class LucandraTermEnum extends TermEnum
         ColumnParent parent = new ColumnParent();
         parent.setColumn_family(CassandraUtils.termVecColumnFamily);
 
-        ByteBuffer key;
-        try
-        {
-            key = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, term.field()
-                    .getBytes(), CassandraUtils.delimeterBytes, term.text().getBytes("UTF-8"));
-        }
-        catch (UnsupportedEncodingException e2)
+        ByteBuffer key = CassandraUtils.termKey(indexName, term);
+
+        // a packed term answers from its blocks instead
+        List<ByteBuffer> names = docNums;
+        if (BlockPostings.isEnabled(indexName))
         {
-            throw new RuntimeException("JVM doesn't support UTF-8", e2);
+            names = new ArrayList<ByteBuffer>(docNums);
+            names.add(BlockPostings.skipColumn);
         }
 
-        ReadCommand rc = new SliceByNamesReadCommand(CassandraUtils.keySpace, key, parent, docNums);
+        ReadCommand rc = new SliceByNamesReadCommand(CassandraUtils.keySpace, key, parent, names);
 
         List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, rc);
 
-        termBuffer = new Term[0];
+        termCache.clear();
+        field = term.field();
+        rangeStart = term;
+        exhausted = false;
+        current = null;
 
         if (rows != null && rows.size() > 0 && rows.get(0) != null && rows.get(0).cf != null
                 && rows.get(0).cf.getSortedColumns() != null && rows.get(0).cf.getSortedColumns().size() > 0)
         {
-            termBuffer = new Term[1];
-            termBuffer[0] = term;
-            termDocFreqBuffer = new TreeMap<Term, Collection<IColumn>>();
-            termDocFreqBuffer.put(term, rows.get(0).cf.getSortedColumns());
+            termCache.add(term);
+            current = term;
+
+            if (termDocsCache == null)
+                termDocsCache = new ConcurrentHashMap<Term, PostingsBlock>();
+
+            if (pagedTerms != null)
+                pagedTerms.remove(term);
+
+            IColumn skip = rows.get(0).cf.getColumn(BlockPostings.skipColumn);
+
+            PostingsBlock docIds;
+            if (skip != null && skip.isLive())
+                docIds = selectPostings(new PostingsCursor(null, indexName, term, BlockPostings.deserialize(skip
+                        .value())), docNums);
+            else
+                docIds = PostingsBlock.read(rows.get(0).cf.getSortedColumns());
+
+            indexReader.addDocumentNormalizations(docIds, term.field());
+            cachePostings(term, docIds);
         }
         long end = System.currentTimeMillis();
-        logger.debug("loadFilterdTerms: " + term + "(" + termBuffer.length + ") took " + (end - start) + "ms");
+        logger.debug("loadFilterdTerms: " + term + "(" + termCache.size() + ") took " + (end - start) + "ms");
 
     }
 
-    public LucandraTermInfo[] convertTermInfo(Collection<IColumn> docs)
+    // the postings of docNums, in doc id order
+    private PostingsBlock selectPostings(PostingsCursor postings, List<ByteBuffer> docNums)
     {
+        PostingsBlock.Builder selected = new PostingsBlock.Builder(docNums.size());
+        boolean more = postings.next();
 
-        LucandraTermInfo termInfo[] = new LucandraTermInfo[docs.size()];
-
-        int i = 0;
-        for (IColumn col : docs)
+        for (ByteBuffer docNum : docNums)
         {
-            if (i == termInfo.length)
+            int doc = CassandraUtils.readVInt(docNum);
+
+            if (more && postings.doc() < doc)
+                more = postings.skipTo(doc);
+
+            if (!more)
                 break;
 
-            if (i == 0 && col instanceof SuperColumn)
-                throw new IllegalStateException(
-                        "TermInfo ColumnFamily is a of type Super: This is no longer supported, please see NEWS.txt");
+            if (postings.doc() == doc)
+                postings.copyTo(selected);
+        }
+
+        return selected.build(docNums.isEmpty() ? -1 : CassandraUtils.readVInt(docNums.get(docNums.size() - 1)));
+    }
+
+    /**
+     * @return the postings of term, read if they are not cached, or null if
+     *         it has more than a page of them
+     */
+    private PostingsBlock cachedPostings(Term term)
+    {
+        if (pagedTerms != null && pagedTerms.containsKey(term))
+            return null;
 
-            if (col == null || col.name() == null || col.value() == null)
-                throw new IllegalStateException("Encountered missing column: " + col);
+        PostingsBlock docIds = termDocsCache == null ? null : termDocsCache.get(term);
 
-            termInfo[i] = new LucandraTermInfo(CassandraUtils.readVInt(col.name()), col.value());
-            i++;
+        if (docIds != null)
+        {
+            indexReader.getCache().postingsStats.hit();
+            return docIds;
         }
 
-        return termInfo;
+        indexReader.getCache().postingsStats.miss();
+
+        docIds = loadPostings(term);
+
+        ReaderCache.enforceGlobalCapacity();
+
+        return docIds;
+    }
+
+    private void cachePostings(Term term, PostingsBlock docIds)
+    {
+        termDocsCache.put(term, docIds);
+
+        indexReader.getCache().cachePostings(new ReaderCache.PostingsKey(this, term), docIds);
     }
 
-    public final LucandraTermInfo[] getTermDocFreq()
+    /**
+     * Drops the postings of term, called when ReaderCache evicts them
+     */
+    void evictPostings(Term term)
     {
-        if (termBuffer.length == 0)
+        Map<Term, PostingsBlock> cached = termDocsCache;
+
+        if (cached != null)
+            cached.remove(term);
+    }
+
+    private boolean isLoaded(Term term)
+    {
+        return (termDocsCache != null && termDocsCache.containsKey(term))
+                || (pagedTerms != null && pagedTerms.containsKey(term));
+    }
+
+    /**
+     * @return the postings of the current term, or null if there is none
+     */
+    public PostingsCursor postings()
+    {
+        if (current == null)
             return null;
 
-        Term term = termBuffer[termPosition];
+        PostingsBlock docIds = cachedPostings(current);
 
-        // Memoize
-        LucandraTermInfo[] docIds = null;
+        if (docIds != null)
+            return new PostingsCursor(docIds);
+
+        return pagedPostings();
+    }
+
+    /**
+     * All postings of the current term at once, postings() reads large
+     * terms a page at a time
+     */
+    public final PostingsBlock getTermDocFreq()
+    {
+        if (current == null)
+            return null;
 
-        if (termDocsCache != null)
-            docIds = termDocsCache.get(term);
+        PostingsBlock docIds = cachedPostings(current);
 
         if (docIds != null)
             return docIds;
 
-        docIds = convertTermInfo(termDocFreqBuffer.get(term));
+        return pagedPostings().readAll();
+    }
 
-        // set normalizations
-        indexReader.addDocumentNormalizations(docIds, currentField);
+    // the postings of a paged term, from the first page when it is still cached
+    private PostingsCursor pagedPostings()
+    {
+        PagedTerm paged = pagedTerms.get(current);
 
-        if (termDocsCache == null)
-            termDocsCache = new HashMap<Term, LucandraTermInfo[]>();
+        if (paged.blocks != null)
+            return new PostingsCursor(indexReader, indexName, current, paged.blocks);
 
-        termDocsCache.put(term, docIds);
+        PostingsBlock firstPage = termDocsCache.get(current);
 
-        return docIds;
+        if (firstPage == null)
+            return new PostingsCursor(indexReader, indexName, current, (BlockPostings) null);
+
+        return new PostingsCursor(indexReader, indexName, current, firstPage);
+    }
+
+    /**
+     * Counts the postings of term from doc id from on, reading its doc
+     * columns a page at a time without decoding them
+     */
+    private int countPostings(Term term, int from, BlockPostings blocks)
+    {
+        ColumnParent columnParent = new ColumnParent(CassandraUtils.termVecColumnFamily);
+        ByteBuffer rowKey = CassandraUtils.termKey(indexName, term);
+
+        int count = 0;
+        while (true)
+        {
+            List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, new SliceFromReadCommand(
+                    CassandraUtils.keySpace, rowKey, columnParent, ByteBuffer.wrap(CassandraUtils.writeVInt(from)),
+                    BlockPostings.lastDocColumn, false, PostingsCursor.pageSize));
+
+            if (rows.isEmpty() || rows.get(0).cf == null)
+                return count;
+
+            Collection<IColumn> page = rows.get(0).cf.getSortedColumns();
+            count += countPostings(page, blocks);
+
+            if (page.size() < PostingsCursor.pageSize)
+                return count;
+
+            from = lastDoc(page) + 1;
+        }
+    }
+
+    /**
+     * @return the postings columns adds to blocks, if any: those outside
+     *         the range of a block, less the docs hidden within one
+     */
+    private static int countPostings(Collection<IColumn> columns, BlockPostings blocks)
+    {
+        int count = 0;
+        for (IColumn col : columns)
+        {
+            boolean covered = blocks != null && blocks.covers(CassandraUtils.readVInt(col.name()));
+
+            if (PostingsBlock.isPosting(col))
+            {
+                if (!covered)
+                    count++;
+            }
+            else if (covered && col.isLive())
+            {
+                count--;
+            }
+        }
+
+        return count;
+    }
+
+    private static int lastDoc(Collection<IColumn> columns)
+    {
+        IColumn last = null;
+        for (IColumn col : columns)
+            last = col;
+
+        return CassandraUtils.readVInt(last.name());
+    }
+
+    /**
+     * A term with more than a page of postings or packed into blocks.
+     * docFreq holds the postings counted so far, nextDoc where counting
+     * goes on, -1 once all are counted.
+     */
+    private static class PagedTerm
+    {
+        final BlockPostings blocks;
+        int                 docFreq;
+        int                 nextDoc = -1;
+
+        PagedTerm(BlockPostings blocks)
+        {
+            this.blocks = blocks;
+        }
     }
 
 }
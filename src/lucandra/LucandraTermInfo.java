@@ -27,19 +27,48 @@ import org.apache.cassandra.utils.ByteBufferUtil;
 
 public class LucandraTermInfo 
 {
-    
+    // flags bit marking gap encoded positions and start/length offsets,
+    // postings without it hold absolute values
+    public static final byte DELTA_ENCODED = 8;
     
     public final int     docId;
     public final boolean hasNorm;
     public final boolean hasPositions;
     public final boolean hasOffsets;
     
-    public final int[]   positions;
-    public final int[]   offsets;
     public final int     freq;
     public final Byte    norm;
     
+    // decoded on first use, positional queries are the only ones to need them
+    private volatile int[]      positions;
+    private volatile int[]      offsets;
+    
+    // the serialized posting and where its positions start, until decoded
+    private volatile ByteBuffer encoded;
+    private final int           encodedOffset;
+    private final boolean       deltas;
     
+    
+    public LucandraTermInfo(int docId, int freq, int[] positions, int[] offsets, Byte norm)
+    {
+        if (freq < 0)
+            throw new IllegalArgumentException("term freq is < 0");
+
+        if (positions != null && positions.length > 0 && freq != positions.length)
+            throw new IllegalArgumentException("freq != position count: " + freq + " vs " + positions.length);
+
+        this.docId = docId;
+        this.freq = freq;
+        this.norm = norm;
+        this.hasNorm = norm != null;
+        this.positions = positions;
+        this.hasPositions = positions != null && positions.length > 0;
+        this.offsets = offsets;
+        this.hasOffsets = offsets != null && offsets.length > 0;
+        this.encodedOffset = 0;
+        this.deltas = false;
+    }
+
     public LucandraTermInfo(int docId, Map<ByteBuffer, List<Number>> data)
     {
         this.docId = docId;
@@ -108,6 +137,8 @@ public class LucandraTermInfo
             throw new IllegalArgumentException("freq != position count: "+freq_+" vs "+positions_.length);
             
         //Set final vars
+        encodedOffset = 0;
+        deltas        = false;
         freq         = freq_;
         hasNorm      = hasNorm_;
         norm         = norm_;
@@ -117,56 +148,151 @@ public class LucandraTermInfo
         offsets      = offsets_;
     }
 
-    public LucandraTermInfo(int docId, ByteBuffer bytes_)
+    public LucandraTermInfo(int docId, ByteBuffer bytes)
     {
         this.docId = docId;
         
-        ByteBuffer bytes = bytes_.duplicate(); //don't mutate the original
+        // read in place, bytes is left untouched
+        byte[] array = bytes.array();
+        int pos = bytes.arrayOffset() + bytes.position();
         
-        byte flags = bytes.get();
+        byte flags = array[pos++];
            
         hasNorm      = (flags & 1) == 1;
         hasPositions = (flags & 2) == 2;
         hasOffsets   = (flags & 4) == 4;
         
-        freq = CassandraUtils.mreadVInt(bytes);
+        deltas = (flags & DELTA_ENCODED) == DELTA_ENCODED;
+        
+        int b = array[pos++];
+        int freq_ = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7)
+        {
+            b = array[pos++];
+            freq_ |= (b & 0x7F) << shift;
+        }
+        
+        freq = freq_;
         
-        norm = hasNorm ? bytes.get() : null;
+        norm = hasNorm ? array[pos++] : null;
+        
+        encodedOffset = pos - bytes.arrayOffset();
+        encoded = hasPositions || hasOffsets ? bytes : null;
+    }
+    
+    public int[] getPositions()
+    {
+        if (encoded != null)
+            decode();
+        
+        return positions;
+    }
+    
+    public int[] getOffsets()
+    {
+        if (encoded != null)
+            decode();
+        
+        return offsets;
+    }
+    
+    // threads racing here decode the same arrays
+    private void decode()
+    {
+        ByteBuffer source = encoded;
+        if (source == null)
+            return;
+        
+        ByteBuffer bytes = source.duplicate();
+        bytes.position(encodedOffset);
         
         int[] positions_ = null;
         if(hasPositions)
         {
             positions_ = new int[freq];
         
+            int last = 0;
             for(int i=0; i<freq; i++)
+            {
                 positions_[i] = CassandraUtils.mreadVInt(bytes);
-             
+                
+                if(deltas)
+                {
+                    positions_[i] += last;
+                    last = positions_[i];
+                }
+            }
         }
         
-        positions = positions_;
-        
         int[] offsets_ = null;
         if(hasOffsets)
         {
             int len = CassandraUtils.mreadVInt(bytes);
             offsets_ = new int[len];
             
-            for(int i=0; i<len; i++)
-                offsets_[i] = CassandraUtils.mreadVInt(bytes);          
+            if(deltas)
+            {
+                // start is relative to the previous start, end to its start
+                int lastStart = 0;
+                for(int i=0; i<len; i+=2)
+                {
+                    offsets_[i] = lastStart + CassandraUtils.mreadVInt(bytes);
+                    lastStart = offsets_[i];
+                    
+                    if(i+1 < len)
+                        offsets_[i+1] = offsets_[i] + CassandraUtils.mreadVInt(bytes);
+                }
+            }
+            else
+            {
+                for(int i=0; i<len; i++)
+                    offsets_[i] = CassandraUtils.mreadVInt(bytes);
+            }
         }
         
+        positions = positions_;
         offsets = offsets_;
+        encoded = null;
     }
     
     
     public ByteBuffer serialize()
     {
-        //         flags, freq, norm, pos, numoff, off 
-        int size = 1 + 4 + (hasNorm ? 1 : 0) + (hasPositions ? positions.length*4 : 0) + (hasOffsets ? positions.length*4+4 : 0);
+        int[] positions = getPositions();
+        int[] offsets = getOffsets();
+        
+        // size exactly: flags, freq, norm, pos gaps, numoff, off start gap/length pairs
+        int size = 1 + CassandraUtils.vIntSize(freq) + (hasNorm ? 1 : 0);
+        
+        if(hasPositions)
+        {
+            int last = 0;
+            for(int i=0; i<positions.length; i++)
+            {
+                size += CassandraUtils.vIntSize(positions[i] - last);
+                last = positions[i];
+            }
+        }
+        
+        if(hasOffsets)
+        {
+            size += CassandraUtils.vIntSize(offsets.length);
+            
+            int lastStart = 0;
+            for(int i=0; i<offsets.length; i+=2)
+            {
+                size += CassandraUtils.vIntSize(offsets[i] - lastStart);
+                lastStart = offsets[i];
+                
+                if(i+1 < offsets.length)
+                    size += CassandraUtils.vIntSize(offsets[i+1] - offsets[i]);
+            }
+        }
+        
         ByteBuffer r = ByteBuffer.allocate(size);
         
         //store the initial content flags in the inital byte
-        byte flags = 0;
+        byte flags = DELTA_ENCODED;
         if(hasNorm)
             flags |= 1;
         
@@ -177,7 +303,7 @@ public class LucandraTermInfo
             flags |= 4;
         
         r.put(flags);
-        r.put(CassandraUtils.writeVInt(freq));
+        CassandraUtils.writeVInt(r, freq);
         
         
         if(hasNorm)
@@ -185,19 +311,26 @@ public class LucandraTermInfo
         
         if(hasPositions)
         {
+            int last = 0;
             for(int i=0; i<positions.length; i++)
             {
-                r.put(CassandraUtils.writeVInt(positions[i]));
+                CassandraUtils.writeVInt(r, positions[i] - last);
+                last = positions[i];
             }
         }
         
         if(hasOffsets)
         {
-            r.put(CassandraUtils.writeVInt(offsets.length));
+            CassandraUtils.writeVInt(r, offsets.length);
             
-            for(int i=0; i<offsets.length; i++)
+            int lastStart = 0;
+            for(int i=0; i<offsets.length; i+=2)
             {
-                r.put(CassandraUtils.writeVInt(offsets[i]));
+                CassandraUtils.writeVInt(r, offsets[i] - lastStart);
+                lastStart = offsets[i];
+                
+                if(i+1 < offsets.length)
+                    CassandraUtils.writeVInt(r, offsets[i+1] - offsets[i]);
             }
         }
   
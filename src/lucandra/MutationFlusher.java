@@ -0,0 +1,248 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes batches of RowMutations in the background so indexing threads can
+ * keep analyzing while storage writes are in flight.
+ *
+ * At most flushThreads batches are written concurrently and at most
+ * maxPending more may wait in the queue; submitting beyond that blocks the
+ * caller until a batch completes.
+ */
+public class MutationFlusher
+{
+    public static final int              flushThreads = Integer.getInteger("lucandra.flush.threads", 4);
+    public static final int              maxPending   = Integer.getInteger("lucandra.flush.pending", 16);
+
+    public static final MutationFlusher instance     = new MutationFlusher(flushThreads, maxPending);
+
+    private static final Logger          logger       = Logger.getLogger(MutationFlusher.class);
+
+    private final ExecutorService        executor;
+    private final Semaphore              permits;
+
+    public MutationFlusher(int threads, int pending)
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "LucandraFlusher:" + threadCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        permits = new Semaphore(threads + pending);
+    }
+
+    /**
+     * Queues the mutations to be written as one StorageProxy.mutate call,
+     * blocking while the queue is full
+     */
+    public Future<Void> submit(ConsistencyLevel cl, RowMutation... mutations)
+    {
+        return submit(cl, null, mutations);
+    }
+
+    private Future<Void> submit(final ConsistencyLevel cl, final Runnable done, final RowMutation... mutations)
+    {
+        permits.acquireUninterruptibly();
+
+        try
+        {
+            return executor.submit(new Callable<Void>() {
+
+                public Void call() throws Exception
+                {
+                    try
+                    {
+                        write(cl, mutations);
+
+                        // only now are these terms safe to skip
+                        WrittenTermsFilter.instance.written(mutations);
+                        return null;
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.error("Failed to write " + mutations.length + " mutations", e);
+                        throw e;
+                    }
+                    finally
+                    {
+                        permits.release();
+
+                        if (done != null)
+                            done.run();
+                    }
+                }
+            });
+        }
+        catch (RuntimeException e)
+        {
+            permits.release();
+            throw e;
+        }
+    }
+
+    // writes one chunk, on a flusher thread
+    void write(ConsistencyLevel cl, RowMutation[] mutations)
+    {
+        CassandraUtils.robustInsert(cl, mutations);
+    }
+
+    /**
+     * Queues the mutations in chunks of at most maxBatchBytes
+     *
+     * @return a future that completes once every chunk is written
+     */
+    public Future<Void> submit(ConsistencyLevel cl, Collection<RowMutation> mutations, long maxBatchBytes)
+    {
+        return submit(cl, mutations, maxBatchBytes, null);
+    }
+
+    /**
+     * Same as submit(cl, mutations, maxBatchBytes), running attempted once
+     * every chunk was attempted, before the future completes. It runs
+     * whether the chunks were written or failed: a failed write may still
+     * have been applied in part.
+     */
+    public Future<Void> submit(ConsistencyLevel cl, Collection<RowMutation> mutations, long maxBatchBytes,
+            final Runnable attempted)
+    {
+        List<RowMutation[]> batches = CassandraUtils.batchMutations(mutations, maxBatchBytes);
+
+        if (attempted != null && batches.isEmpty())
+            attempted.run();
+
+        final AtomicInteger remaining = new AtomicInteger(batches.size());
+        Runnable done = attempted == null ? null : new Runnable() {
+            public void run()
+            {
+                if (remaining.decrementAndGet() == 0)
+                    attempted.run();
+            }
+        };
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+        for (RowMutation[] batch : batches)
+            futures.add(submit(cl, done, batch));
+
+        return new BatchFuture(futures);
+    }
+
+    /** Waits for a write to complete, rethrowing its failure */
+    public static void await(Future<Void> future)
+    {
+        try
+        {
+            future.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static class BatchFuture implements Future<Void>
+    {
+        private final List<Future<Void>> futures;
+
+        BatchFuture(List<Future<Void>> futures)
+        {
+            this.futures = futures;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            boolean cancelled = true;
+            for (Future<Void> f : futures)
+                cancelled &= f.cancel(mayInterruptIfRunning);
+
+            return cancelled;
+        }
+
+        public boolean isCancelled()
+        {
+            for (Future<Void> f : futures)
+                if (!f.isCancelled())
+                    return false;
+
+            return true;
+        }
+
+        public boolean isDone()
+        {
+            for (Future<Void> f : futures)
+                if (!f.isDone())
+                    return false;
+
+            return true;
+        }
+
+        public Void get() throws InterruptedException, ExecutionException
+        {
+            for (Future<Void> f : futures)
+                f.get();
+
+            return null;
+        }
+
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException
+        {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+            for (Future<Void> f : futures)
+                f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+            return null;
+        }
+    }
+}
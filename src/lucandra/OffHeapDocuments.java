@@ -0,0 +1,363 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.IColumn;
+
+import com.googlecode.concurrentlinkedhashmap.CapacityLimiter;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+
+/**
+ * The Docs columns of recently read documents, kept in direct memory.
+ *
+ * Materialized Documents are mostly Field objects and Strings, which end up
+ * in the old generation when cached on the heap. This keeps the column
+ * bytes off the heap instead and rebuilds the Document on each hit, which
+ * is cheap next to reading the row again and only creates short lived
+ * garbage.
+ *
+ * Entries are stored in fixed size chunks of direct slabs shared by all
+ * indexes, see Slabs. Slabs are allocated once, up to
+ * -Dlucandra.cache.offheap.bytes for the process, and never released:
+ * evicted entries return their chunks to a free list. Entries are evicted
+ * least recently used first once their chunks reach the capacity, or when
+ * the slabs are full. Each entry is reference counted, so its chunks are
+ * not reused while a reader is still copying it.
+ *
+ * Entry layout:
+ *
+ * <pre>
+ * per column: VInt name length, name, VInt value length, value
+ * </pre>
+ */
+public class OffHeapDocuments
+{
+    private static final Slabs                  slabs = new Slabs(Integer.getInteger(
+                                                              "lucandra.cache.offheap.chunk", 256), Long.getLong(
+                                                              "lucandra.cache.offheap.bytes", 256 << 20));
+
+    private final ConcurrentMap<Integer, Entry> entries;
+
+    public OffHeapDocuments(int capacity, final ReaderCache.Stats stats)
+    {
+        entries = new ConcurrentLinkedHashMap.Builder<Integer, Entry>()
+                .maximumWeightedCapacity(capacity)
+                .weigher(new Weigher<Entry>() {
+                    public int weightOf(Entry entry)
+                    {
+                        return Math.max(1, entry.chunks.length * slabs.chunkSize);
+                    }
+                })
+                .listener(new EvictionListener<Integer, Entry>() {
+                    public void onEviction(Integer docNum, Entry entry)
+                    {
+                        entry.release();
+                        stats.evicted();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Keeps the live columns of a document, all of them but META. Nothing is
+     * kept if the slabs have no room left even after evicting.
+     */
+    public void put(int docNum, Collection<IColumn> columns)
+    {
+        int size = 0;
+        for (IColumn col : columns)
+        {
+            if (isStored(col))
+                size += CassandraUtils.vIntSize(col.name().remaining()) + col.name().remaining()
+                        + CassandraUtils.vIntSize(col.value().remaining()) + col.value().remaining();
+        }
+
+        ByteBuffer entry = ByteBuffer.allocate(size);
+
+        for (IColumn col : columns)
+        {
+            if (!isStored(col))
+                continue;
+
+            CassandraUtils.writeVInt(entry, col.name().remaining());
+            entry.put(col.name().duplicate());
+            CassandraUtils.writeVInt(entry, col.value().remaining());
+            entry.put(col.value().duplicate());
+        }
+
+        int[] chunks = allocate((size + slabs.chunkSize - 1) / slabs.chunkSize);
+
+        if (chunks == null)
+            return;
+
+        slabs.write(chunks, entry.array(), size);
+
+        Entry old = entries.put(docNum, new Entry(chunks, size));
+
+        if (old != null)
+            old.release();
+    }
+
+    /**
+     * @return the columns of docNum, copied back to the heap, or null if it
+     *         is not cached
+     */
+    public List<IColumn> get(int docNum)
+    {
+        Entry entry = entries.get(docNum);
+
+        if (entry == null || !entry.acquire())
+            return null;
+
+        byte[] bytes = new byte[entry.length];
+        try
+        {
+            slabs.read(entry.chunks, bytes);
+        }
+        finally
+        {
+            entry.release();
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+
+        List<IColumn> columns = new ArrayList<IColumn>();
+        while (in.hasRemaining())
+        {
+            ByteBuffer name = slice(in, CassandraUtils.mreadVInt(in));
+            ByteBuffer value = slice(in, CassandraUtils.mreadVInt(in));
+
+            columns.add(new Column(name, value));
+        }
+
+        return columns;
+    }
+
+    public void remove(int docNum)
+    {
+        Entry entry = entries.remove(docNum);
+
+        if (entry != null)
+            entry.release();
+    }
+
+    public boolean contains(int docNum)
+    {
+        return entries.containsKey(docNum);
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return the direct memory held, in bytes
+     */
+    public int weight()
+    {
+        return ((ConcurrentLinkedHashMap<Integer, Entry>) entries).weightedSize();
+    }
+
+    public void clear()
+    {
+        for (Integer docNum : entries.keySet())
+            remove(docNum);
+    }
+
+    /**
+     * @return count chunks, evicting entries of this cache while the slabs
+     *         are full, or null if they can't be had
+     */
+    private int[] allocate(int count)
+    {
+        ConcurrentLinkedHashMap<Integer, Entry> map = (ConcurrentLinkedHashMap<Integer, Entry>) entries;
+
+        if ((long) count * slabs.chunkSize > map.capacity())
+            return null;
+
+        int[] chunks;
+        while ((chunks = slabs.allocate(count)) == null)
+        {
+            int before = map.weightedSize();
+            if (before == 0)
+                return null;
+
+            final long target = Math.max(0, before - count * slabs.chunkSize);
+            map.evictWith(new CapacityLimiter() {
+                public boolean hasExceededCapacity(ConcurrentLinkedHashMap<?, ?> map)
+                {
+                    return map.weightedSize() > target;
+                }
+            });
+
+            if (map.weightedSize() == before)
+                return null;
+        }
+
+        return chunks;
+    }
+
+    private static boolean isStored(IColumn col)
+    {
+        return col.isLive() && !col.name().equals(CassandraUtils.documentMetaFieldBytes);
+    }
+
+    private static ByteBuffer slice(ByteBuffer in, int length)
+    {
+        ByteBuffer slice = in.duplicate();
+        slice.limit(slice.position() + length);
+
+        in.position(in.position() + length);
+
+        return slice;
+    }
+
+    /**
+     * The chunks of a cached document. The cache holds one reference, each
+     * reader copying it another; the chunks go back to the slabs with the
+     * last.
+     */
+    private static class Entry
+    {
+        final int[]         chunks;
+        final int           length;
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Entry(int[] chunks, int length)
+        {
+            this.chunks = chunks;
+            this.length = length;
+        }
+
+        boolean acquire()
+        {
+            for (;;)
+            {
+                int count = refs.get();
+                if (count == 0)
+                    return false;
+
+                if (refs.compareAndSet(count, count + 1))
+                    return true;
+            }
+        }
+
+        void release()
+        {
+            if (refs.decrementAndGet() == 0)
+                slabs.free(chunks);
+        }
+    }
+
+    /**
+     * Direct slabs of 1MB cut into chunks of chunkSize bytes. Slabs are
+     * added as chunks run out, up to limit bytes, and kept for the life of
+     * the process.
+     */
+    static class Slabs
+    {
+        static final int              slabSize = 1 << 20;
+
+        final int                     chunkSize;
+        private final int             chunksPerSlab;
+        private final int             maxSlabs;
+
+        private volatile ByteBuffer[] slabs    = new ByteBuffer[0];
+        private int[]                 free     = new int[0];
+        private int                   freeCount;
+
+        Slabs(int chunkSize, long limit)
+        {
+            this.chunkSize = chunkSize;
+            chunksPerSlab = slabSize / chunkSize;
+            maxSlabs = (int) Math.min(Integer.MAX_VALUE / chunksPerSlab, limit / slabSize);
+        }
+
+        synchronized int[] allocate(int count)
+        {
+            while (freeCount < count && slabs.length < maxSlabs)
+                addSlab();
+
+            if (freeCount < count)
+                return null;
+
+            int[] chunks = new int[count];
+            for (int i = 0; i < count; i++)
+                chunks[i] = free[--freeCount];
+
+            return chunks;
+        }
+
+        synchronized void free(int[] chunks)
+        {
+            for (int chunk : chunks)
+                free[freeCount++] = chunk;
+        }
+
+        void write(int[] chunks, byte[] bytes, int length)
+        {
+            for (int i = 0, offset = 0; offset < length; i++, offset += chunkSize)
+                chunk(chunks[i]).put(bytes, offset, Math.min(chunkSize, length - offset));
+        }
+
+        void read(int[] chunks, byte[] bytes)
+        {
+            for (int i = 0, offset = 0; offset < bytes.length; i++, offset += chunkSize)
+                chunk(chunks[i]).get(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+        }
+
+        private ByteBuffer chunk(int chunk)
+        {
+            ByteBuffer slab = slabs[chunk / chunksPerSlab].duplicate();
+            slab.position((chunk % chunksPerSlab) * chunkSize);
+
+            return slab;
+        }
+
+        private void addSlab()
+        {
+            ByteBuffer[] grown = new ByteBuffer[slabs.length + 1];
+            System.arraycopy(slabs, 0, grown, 0, slabs.length);
+            grown[slabs.length] = ByteBuffer.allocateDirect(slabSize);
+
+            int[] grownFree = new int[grown.length * chunksPerSlab];
+            System.arraycopy(free, 0, grownFree, 0, freeCount);
+            free = grownFree;
+
+            // hand out the new chunks lowest first
+            int first = slabs.length * chunksPerSlab;
+            for (int chunk = first + chunksPerSlab - 1; chunk >= first; chunk--)
+                free[freeCount++] = chunk;
+
+            slabs = grown;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+
+/**
+ * Bulk indexing pipeline on top of an IndexWriter.
+ *
+ * Documents are analyzed and inverted on a pool of indexing threads, each
+ * building the mutations of its share of the batch. The calling thread merges
+ * these by row key as they complete, so a term shared by the whole batch is
+ * still written as one TI and one TL row mutation, then hands the result to
+ * the MutationFlusher.
+ */
+public class ParallelIndexWriter
+{
+    public static final int        indexThreads = Integer.getInteger("lucandra.index.threads", Runtime.getRuntime()
+                                                        .availableProcessors());
+
+    private static final Logger    logger       = Logger.getLogger(ParallelIndexWriter.class);
+
+    // split each batch into a few tasks per thread to even out document sizes
+    private static final int       tasksPerThread = 4;
+
+    private final IndexWriter      writer;
+    private final int              threads;
+    private final ExecutorService  executor;
+
+    public ParallelIndexWriter(IndexWriter writer)
+    {
+        this(writer, indexThreads);
+    }
+
+    public ParallelIndexWriter(IndexWriter writer, int threads)
+    {
+        this.writer = writer;
+        this.threads = threads;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "LucandraIndexer:" + threadCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public Future<Void> addDocuments(Collection<Document> docs, Analyzer analyzer, int[] docNumbers) throws IOException
+    {
+        return addDocuments(writer.getIndexName(), docs, analyzer, docNumbers);
+    }
+
+    /**
+     * Indexes a batch of documents in parallel
+     *
+     * @return a future that completes once the batch is written
+     */
+    public Future<Void> addDocuments(final String indexName, Collection<Document> docs, final Analyzer analyzer,
+            final int[] docNumbers) throws IOException
+    {
+        if (docs.size() != docNumbers.length)
+            throw new IllegalArgumentException("document count != docNumber count: " + docs.size() + " vs "
+                    + docNumbers.length);
+
+        // published for readers once writing the batch was attempted
+        final ChangeLog.Changes changes = ChangeLog.isEnabled() ? new ChangeLog.Changes() : null;
+
+        Map<ByteBuffer, RowMutation> merged = invertDocuments(indexName, docs, analyzer, docNumbers, changes);
+
+        return MutationFlusher.instance.submit(ConsistencyLevel.ONE, merged.values(), CassandraUtils.mutationBatchBytes,
+                changes == null ? null : new Runnable() {
+                    public void run()
+                    {
+                        ChangeLog.publish(indexName, changes);
+                    }
+                });
+    }
+
+    /**
+     * Inverts the batch on the indexing threads
+     *
+     * @return the mutations of the whole batch, merged by row key
+     */
+    Map<ByteBuffer, RowMutation> invertDocuments(final String indexName, Collection<Document> docs,
+            final Analyzer analyzer, final int[] docNumbers, final ChangeLog.Changes changes) throws IOException
+    {
+        final List<Document> docList = docs instanceof List ? (List<Document>) docs : new ArrayList<Document>(docs);
+
+        CompletionService<Map<ByteBuffer, RowMutation>> completions = new ExecutorCompletionService<Map<ByteBuffer, RowMutation>>(
+                executor);
+        List<Future<Map<ByteBuffer, RowMutation>>> tasks = new ArrayList<Future<Map<ByteBuffer, RowMutation>>>();
+
+        int chunkSize = Math.max(1, (docList.size() + threads * tasksPerThread - 1) / (threads * tasksPerThread));
+
+        for (int start = 0; start < docList.size(); start += chunkSize)
+        {
+            final int from = start;
+            final int to = Math.min(docList.size(), start + chunkSize);
+
+            tasks.add(completions.submit(new Callable<Map<ByteBuffer, RowMutation>>() {
+
+                public Map<ByteBuffer, RowMutation> call() throws Exception
+                {
+                    Map<ByteBuffer, RowMutation> mutations = new HashMap<ByteBuffer, RowMutation>();
+
+                    for (int i = from; i < to; i++)
+                    {
+                        DocumentMetadata metadata = writer.invertDocument(docList.get(i), analyzer, indexName,
+                                docNumbers[i], mutations);
+
+                        if (changes != null)
+                        {
+                            synchronized (changes)
+                            {
+                                changes.add(docNumbers[i], metadata.terms);
+                            }
+                        }
+                    }
+
+                    return mutations;
+                }
+            }));
+        }
+
+        Map<ByteBuffer, RowMutation> merged = new ConcurrentSkipListMap<ByteBuffer, RowMutation>();
+
+        try
+        {
+            for (int i = 0; i < tasks.size(); i++)
+                CassandraUtils.mergeMutations(merged, completions.take().get());
+        }
+        catch (InterruptedException e)
+        {
+            cancel(tasks);
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e)
+        {
+            cancel(tasks);
+
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            throw new RuntimeException(e.getCause());
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Inverted " + docList.size() + " documents into " + merged.size() + " row mutations");
+
+        return merged;
+    }
+
+    /** Stops the indexing threads, batches already submitted still complete */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    private static void cancel(List<Future<Map<ByteBuffer, RowMutation>>> tasks)
+    {
+        for (Future<Map<ByteBuffer, RowMutation>> task : tasks)
+            task.cancel(true);
+    }
+}
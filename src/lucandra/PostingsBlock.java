@@ -0,0 +1,530 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.SuperColumn;
+import org.apache.lucene.search.Similarity;
+
+/**
+ * The postings of a term, or a page of them, held column-wise: doc ids,
+ * freqs and norms in parallel arrays rather than one LucandraTermInfo per
+ * doc.
+ *
+ * Positions are only needed by positional queries. The rest of each posting,
+ * its flags byte followed by its positions and offsets, is kept as bytes and
+ * the positions are decoded into one flat array for the whole block the
+ * first time one is asked for.
+ *
+ * Blocks are also the unit BlockPostings packs postings into, see
+ * serialize():
+ *
+ * <pre>
+ * VInt count
+ * per posting: VInt doc id gap
+ * per posting: VInt freq
+ * per posting: norm byte
+ * per posting: VInt length of the rest of the posting
+ * the rest of each posting
+ * </pre>
+ */
+public class PostingsBlock
+{
+    public static final byte          defaultNorm = Similarity.encodeNorm(1.0f);
+
+    public static final PostingsBlock empty       = new Builder(0).build(-1);
+
+    public final int[]                docIds;
+    public final int[]                freqs;
+    public final byte[]               norms;
+
+    /** doc id of the last column read, deleted or not, -1 if none */
+    public final int                  lastDoc;
+
+    // per posting: flags byte then the rest of it, posting i from encodedStarts[i]
+    private final byte[]              encoded;
+    private final int[]               encodedStarts;
+
+    // positions of posting i are positions[positionStarts[i]] to positions[positionStarts[i+1]]
+    private volatile int[]            positionStarts;
+    private volatile int[]            positions;
+
+    private PostingsBlock(int[] docIds, int[] freqs, byte[] norms, byte[] encoded, int[] encodedStarts, int lastDoc)
+    {
+        this.docIds = docIds;
+        this.freqs = freqs;
+        this.norms = norms;
+        this.encoded = encoded;
+        this.encodedStarts = encodedStarts;
+        this.lastDoc = lastDoc;
+    }
+
+    /**
+     * Reads a slice of the doc columns of a TI row, deleted columns and the
+     * empty columns BlockPostings marks deleted docs with are skipped
+     */
+    public static PostingsBlock read(Collection<IColumn> columns)
+    {
+        Builder builder = new Builder(columns.size());
+        int lastDoc = -1;
+
+        for (IColumn col : columns)
+        {
+            int doc = docId(col);
+
+            // BlockPostings columns follow the doc columns
+            if (doc >= CassandraUtils.maxDocsPerShard)
+                break;
+
+            lastDoc = doc;
+
+            if (isPosting(col))
+                builder.add(lastDoc, col.value());
+        }
+
+        return builder.build(lastDoc);
+    }
+
+    /**
+     * The postings of packed, overridden by the doc columns read since it
+     * was packed: a posting in a column replaces that of the block, an empty
+     * column drops it.
+     *
+     * @return the postings from doc id from to upTo
+     */
+    public static PostingsBlock merge(PostingsBlock packed, Collection<IColumn> columns, int from, int upTo)
+    {
+        Builder builder = new Builder(packed.size() + columns.size());
+
+        int p = packed.find(0, from);
+
+        for (IColumn col : columns)
+        {
+            int doc = docId(col);
+
+            if (doc < from)
+                continue;
+
+            if (doc > upTo)
+                break;
+
+            for (; p < packed.size() && packed.docIds[p] < doc; p++)
+                builder.add(packed, p);
+
+            // a tombstone only removes the column, left by packing it
+            if (col.isLive())
+            {
+                if (p < packed.size() && packed.docIds[p] == doc)
+                    p++;
+
+                if (col.value().remaining() > 0)
+                    builder.add(doc, col.value());
+            }
+        }
+
+        for (; p < packed.size() && packed.docIds[p] <= upTo; p++)
+            builder.add(packed, p);
+
+        return builder.build(upTo);
+    }
+
+    /**
+     * Joins consecutive pages of one term
+     */
+    public static PostingsBlock concat(List<PostingsBlock> blocks)
+    {
+        if (blocks.isEmpty())
+            return empty;
+
+        if (blocks.size() == 1)
+            return blocks.get(0);
+
+        int size = 0;
+        for (PostingsBlock block : blocks)
+            size += block.size();
+
+        Builder builder = new Builder(size);
+        for (PostingsBlock block : blocks)
+        {
+            for (int i = 0; i < block.size(); i++)
+                builder.add(block, i);
+        }
+
+        return builder.build(blocks.get(blocks.size() - 1).lastDoc);
+    }
+
+    /**
+     * @return postings from to to, exclusive
+     */
+    public PostingsBlock slice(int from, int to)
+    {
+        Builder builder = new Builder(to - from);
+
+        for (int i = from; i < to; i++)
+            builder.add(this, i);
+
+        return builder.build(docIds[to - 1]);
+    }
+
+    public ByteBuffer serialize()
+    {
+        int size = CassandraUtils.vIntSize(size()) + size() + encodedStarts[size()];
+
+        for (int i = 0, last = 0; i < size(); i++)
+        {
+            size += CassandraUtils.vIntSize(docIds[i] - last) + CassandraUtils.vIntSize(freqs[i])
+                    + CassandraUtils.vIntSize(encodedStarts[i + 1] - encodedStarts[i]);
+            last = docIds[i];
+        }
+
+        ByteBuffer r = ByteBuffer.allocate(size);
+
+        CassandraUtils.writeVInt(r, size());
+
+        for (int i = 0, last = 0; i < size(); i++)
+        {
+            CassandraUtils.writeVInt(r, docIds[i] - last);
+            last = docIds[i];
+        }
+
+        for (int i = 0; i < size(); i++)
+            CassandraUtils.writeVInt(r, freqs[i]);
+
+        r.put(norms);
+
+        for (int i = 0; i < size(); i++)
+            CassandraUtils.writeVInt(r, encodedStarts[i + 1] - encodedStarts[i]);
+
+        r.put(encoded, 0, encodedStarts[size()]);
+
+        r.rewind();
+
+        return r;
+    }
+
+    public static PostingsBlock deserialize(ByteBuffer bytes)
+    {
+        ByteBuffer in = bytes.duplicate();
+
+        int size = CassandraUtils.mreadVInt(in);
+
+        int[] docIds = new int[size];
+        int[] freqs = new int[size];
+        byte[] norms = new byte[size];
+        int[] encodedStarts = new int[size + 1];
+
+        for (int i = 0, last = 0; i < size; i++)
+        {
+            docIds[i] = last + CassandraUtils.mreadVInt(in);
+            last = docIds[i];
+        }
+
+        for (int i = 0; i < size; i++)
+            freqs[i] = CassandraUtils.mreadVInt(in);
+
+        in.get(norms);
+
+        for (int i = 0; i < size; i++)
+            encodedStarts[i + 1] = encodedStarts[i] + CassandraUtils.mreadVInt(in);
+
+        byte[] encoded = new byte[encodedStarts[size]];
+        in.get(encoded);
+
+        return new PostingsBlock(docIds, freqs, norms, encoded, encodedStarts, size == 0 ? -1 : docIds[size - 1]);
+    }
+
+    private static int docId(IColumn col)
+    {
+        if (col instanceof SuperColumn)
+            throw new IllegalStateException(
+                    "TermInfo ColumnFamily is a of type Super: This is no longer supported, please see NEWS.txt");
+
+        if (col == null || col.name() == null || col.value() == null)
+            throw new IllegalStateException("Encountered missing column: " + col);
+
+        return CassandraUtils.readVInt(col.name());
+    }
+
+    /**
+     * @return true unless col is deleted or marks a packed posting deleted
+     */
+    public static boolean isPosting(IColumn col)
+    {
+        return col.isLive() && col.value().remaining() > 0;
+    }
+
+    public int size()
+    {
+        return docIds.length;
+    }
+
+    /**
+     * @return roughly the bytes this block holds on the heap once its
+     *         positions are decoded, what ReaderCache weighs postings by
+     */
+    public int weight()
+    {
+        // each encoded position is at least a byte, decoded an int
+        return 64 + docIds.length * 17 + encoded.length * 5;
+    }
+
+    /**
+     * Gallops from posting from, doubling the step until it passes target,
+     * then binary searches the last step. Conjunctions skip a little at a
+     * time, so this is cheaper than searching the rest of the block.
+     *
+     * @return the first posting from on with a doc id of at least target,
+     *         or size() if there is none
+     */
+    public int find(int from, int target)
+    {
+        int low = from;
+        int high = from;
+        int step = 1;
+
+        while (high < docIds.length && docIds[high] < target)
+        {
+            low = high + 1;
+            high += step;
+            step <<= 1;
+        }
+
+        if (high >= docIds.length)
+            high = docIds.length;
+
+        // docIds[low - 1] < target, docIds[high] >= target or high is the end
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (docIds[mid] < target)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return low;
+    }
+
+    /**
+     * @return true if posting i carries its own norm, rather than norms[i]
+     *         being the default
+     */
+    public boolean hasNorm(int i)
+    {
+        return (encoded[encodedStarts[i]] & 1) == 1;
+    }
+
+    /**
+     * @return true if any posting carries its own norm
+     */
+    public boolean hasNorms()
+    {
+        for (int i = 0; i < docIds.length; i++)
+            if (hasNorm(i))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * @return posting i whole, offsets included
+     */
+    public LucandraTermInfo termInfo(int i)
+    {
+        int start = encodedStarts[i];
+        int length = encodedStarts[i + 1] - start;
+        boolean hasNorm = (encoded[start] & 1) == 1;
+
+        ByteBuffer r = ByteBuffer.allocate(length + CassandraUtils.vIntSize(freqs[i]) + (hasNorm ? 1 : 0));
+
+        r.put(encoded[start]);
+        CassandraUtils.writeVInt(r, freqs[i]);
+
+        if (hasNorm)
+            r.put(norms[i]);
+
+        r.put(encoded, start + 1, length - 1);
+        r.rewind();
+
+        return new LucandraTermInfo(docIds[i], r);
+    }
+
+    /**
+     * @return the positions of posting i, or null if it has none
+     */
+    public int[] positions(int i)
+    {
+        if (positions == null)
+            decodePositions();
+
+        int start = positionStarts[i];
+        int end = positionStarts[i + 1];
+
+        if (start == end)
+            return null;
+
+        int[] r = new int[end - start];
+        System.arraycopy(positions, start, r, 0, r.length);
+
+        return r;
+    }
+
+    // threads racing here decode the same arrays
+    private void decodePositions()
+    {
+        byte[] e = encoded;
+
+        int total = 0;
+        for (int i = 0; i < size(); i++)
+        {
+            if ((e[encodedStarts[i]] & 2) == 2)
+                total += freqs[i];
+        }
+
+        int[] starts = new int[size() + 1];
+        int[] p = new int[total];
+
+        ByteBuffer in = ByteBuffer.wrap(e);
+        int n = 0;
+
+        for (int i = 0; i < size(); i++)
+        {
+            starts[i] = n;
+
+            byte flags = e[encodedStarts[i]];
+            if ((flags & 2) != 2)
+                continue;
+
+            boolean deltas = (flags & LucandraTermInfo.DELTA_ENCODED) == LucandraTermInfo.DELTA_ENCODED;
+
+            in.position(encodedStarts[i] + 1);
+
+            int last = 0;
+            for (int j = 0; j < freqs[i]; j++)
+            {
+                p[n] = CassandraUtils.mreadVInt(in);
+
+                if (deltas)
+                {
+                    p[n] += last;
+                    last = p[n];
+                }
+
+                n++;
+            }
+        }
+
+        starts[size()] = n;
+
+        positionStarts = starts;
+        positions = p;
+    }
+
+    /** Appends postings in doc id order */
+    static class Builder
+    {
+        private int[]  docIds;
+        private int[]  freqs;
+        private byte[] norms;
+        private byte[] encoded;
+        private int[]  encodedStarts;
+        private int    size;
+
+        Builder(int capacity)
+        {
+            docIds = new int[capacity];
+            freqs = new int[capacity];
+            norms = new byte[capacity];
+            encoded = new byte[capacity * 4];
+            encodedStarts = new int[capacity + 1];
+        }
+
+        // a serialized LucandraTermInfo
+        void add(int doc, ByteBuffer value)
+        {
+            byte[] array = value.array();
+            int pos = value.arrayOffset() + value.position();
+            int end = pos + value.remaining();
+
+            // flags, VInt freq and optional norm
+            byte flags = array[pos++];
+
+            int b = array[pos++];
+            int freq = b & 0x7F;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7)
+            {
+                b = array[pos++];
+                freq |= (b & 0x7F) << shift;
+            }
+
+            byte norm = (flags & 1) == 1 ? array[pos++] : defaultNorm;
+
+            add(doc, freq, norm, flags, array, pos, end - pos);
+        }
+
+        void add(PostingsBlock block, int i)
+        {
+            int start = block.encodedStarts[i];
+
+            add(block.docIds[i], block.freqs[i], block.norms[i], block.encoded[start], block.encoded, start + 1,
+                    block.encodedStarts[i + 1] - start - 1);
+        }
+
+        private void add(int doc, int freq, byte norm, byte flags, byte[] rest, int offset, int length)
+        {
+            if (size == docIds.length)
+            {
+                int capacity = Math.max(16, size * 2);
+
+                docIds = Arrays.copyOf(docIds, capacity);
+                freqs = Arrays.copyOf(freqs, capacity);
+                norms = Arrays.copyOf(norms, capacity);
+                encodedStarts = Arrays.copyOf(encodedStarts, capacity + 1);
+            }
+
+            int e = encodedStarts[size];
+
+            if (e + 1 + length > encoded.length)
+                encoded = Arrays.copyOf(encoded, Math.max(e + 1 + length, encoded.length * 2));
+
+            docIds[size] = doc;
+            freqs[size] = freq;
+            norms[size] = norm;
+
+            encoded[e] = flags;
+            System.arraycopy(rest, offset, encoded, e + 1, length);
+
+            size++;
+            encodedStarts[size] = e + 1 + length;
+        }
+
+        PostingsBlock build(int lastDoc)
+        {
+            return new PostingsBlock(Arrays.copyOf(docIds, size), Arrays.copyOf(freqs, size), Arrays.copyOf(norms,
+                    size), Arrays.copyOf(encoded, encodedStarts[size]), Arrays.copyOf(encodedStarts, size + 1), lastDoc);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.ReadCommand;
+import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.SliceByNamesReadCommand;
+import org.apache.cassandra.db.SliceFromReadCommand;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.lucene.index.Term;
+
+/**
+ * Walks the postings of a term in doc id order, reading its TI row one page
+ * of pageSize columns at a time so a frequent term never sits on the heap
+ * whole.
+ *
+ * TI columns are named by the VInt doc id, so a page can start at any doc:
+ * skipTo() past the current page slices from the target directly.
+ *
+ * For a term packed by BlockPostings a page is made of the blocks holding
+ * about pageSize postings, merged with the doc columns in the same range.
+ */
+public class PostingsCursor
+{
+    public static final int          pageSize = Integer.getInteger("lucandra.postings.page", 1024);
+
+    private final IndexReader        reader;
+    private final String             field;
+    private final ByteBuffer         rowKey;
+
+    // skip data of a packed term, looked up with the first page if unknown
+    private BlockPostings            blocks;
+    private boolean                  blocksChecked;
+
+    private PostingsBlock            page;
+    private int                      position = -1;
+    private boolean                  lastPage;
+
+    /**
+     * @param reader given the norms of the postings read, may be null
+     */
+    public PostingsCursor(IndexReader reader, String indexName, Term term)
+    {
+        this.reader = reader;
+        this.field = term.field();
+        this.rowKey = CassandraUtils.termKey(indexName, term);
+        this.blocksChecked = !BlockPostings.isEnabled(indexName);
+    }
+
+    /**
+     * @param blocks the skip data of the term, null if it is not packed
+     */
+    public PostingsCursor(IndexReader reader, String indexName, Term term, BlockPostings blocks)
+    {
+        this(reader, indexName, term);
+
+        this.blocks = blocks;
+        this.blocksChecked = true;
+    }
+
+    /**
+     * Starting from firstPage, the postings of term already read from the
+     * start of its row, with the rest read as it moves past them
+     */
+    public PostingsCursor(IndexReader reader, String indexName, Term term, PostingsBlock firstPage)
+    {
+        this(reader, indexName, term, (BlockPostings) null);
+
+        this.page = firstPage;
+    }
+
+    /** Over postings already read */
+    public PostingsCursor(PostingsBlock postings)
+    {
+        this.reader = null;
+        this.field = null;
+        this.rowKey = null;
+        this.blocksChecked = true;
+
+        this.page = postings;
+        this.lastPage = true;
+    }
+
+    public boolean next()
+    {
+        if (page == null)
+            return loadPage(0);
+
+        if (++position < page.size())
+            return true;
+
+        if (lastPage)
+            return false;
+
+        return loadPage(page.lastDoc + 1);
+    }
+
+    /**
+     * Copies the doc ids and freqs of the postings after the current one,
+     * leaving the cursor on the last one copied as next() would
+     *
+     * @return the number copied, 0 at the end
+     */
+    public int read(int[] docs, int[] freqs)
+    {
+        int n = 0;
+
+        while (n < docs.length)
+        {
+            if (page == null || position + 1 >= page.size())
+            {
+                if (!next())
+                    break;
+
+                position--;
+            }
+
+            int length = Math.min(page.size() - position - 1, docs.length - n);
+
+            System.arraycopy(page.docIds, position + 1, docs, n, length);
+            System.arraycopy(page.freqs, position + 1, freqs, n, length);
+
+            position += length;
+            n += length;
+        }
+
+        return n;
+    }
+
+    /**
+     * Reads every posting on a new cursor, leaving it at the end
+     */
+    public PostingsBlock readAll()
+    {
+        if (page == null && !loadPage(0))
+            return PostingsBlock.empty;
+
+        List<PostingsBlock> pages = new ArrayList<PostingsBlock>();
+        pages.add(page);
+
+        while (!lastPage && loadPage(page.lastDoc + 1))
+            pages.add(page);
+
+        position = page.size();
+
+        return PostingsBlock.concat(pages);
+    }
+
+    /**
+     * Moves to the first posting after the current one with a doc id of at
+     * least target
+     */
+    public boolean skipTo(int target)
+    {
+        if (page != null && position + 1 < page.size() && page.docIds[page.size() - 1] >= target)
+        {
+            // the target is in this page
+            position = page.find(position + 1, target);
+
+            return true;
+        }
+
+        if (page != null && lastPage)
+        {
+            position = page.size();
+            return false;
+        }
+
+        int from = target;
+        if (page != null && position >= 0 && position < page.size())
+            from = Math.max(target, page.docIds[position] + 1);
+
+        return loadPage(from);
+    }
+
+    public int doc()
+    {
+        return page.docIds[position];
+    }
+
+    public int freq()
+    {
+        return page.freqs[position];
+    }
+
+    public byte norm()
+    {
+        return page.norms[position];
+    }
+
+    /**
+     * @return the positions of the current posting, or null if none were stored
+     */
+    public int[] positions()
+    {
+        return page.positions(position);
+    }
+
+    /** Appends the current posting to builder */
+    void copyTo(PostingsBlock.Builder builder)
+    {
+        builder.add(page, position);
+    }
+
+    /**
+     * @return the current posting whole, offsets included
+     */
+    public LucandraTermInfo termInfo()
+    {
+        return page.termInfo(position);
+    }
+
+    // reads the page starting at doc id from, skipping pages of only tombstones
+    private boolean loadPage(int from)
+    {
+        ColumnParent parent = new ColumnParent(CassandraUtils.termVecColumnFamily);
+
+        while (true)
+        {
+            List<ReadCommand> reads = new ArrayList<ReadCommand>(3);
+
+            reads.add(new SliceFromReadCommand(CassandraUtils.keySpace, rowKey, parent, ByteBuffer.wrap(CassandraUtils
+                    .writeVInt(from)), BlockPostings.lastDocColumn, false, pageSize));
+
+            if (!blocksChecked)
+                reads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, rowKey, parent, Arrays
+                        .asList(BlockPostings.skipColumn)));
+
+            // blocks from the one holding from until there are about pageSize postings
+            int firstBlock = 0;
+            int endBlock = 0;
+            if (blocks != null)
+            {
+                firstBlock = blocks.blockOf(from);
+                endBlock = firstBlock;
+
+                List<ByteBuffer> names = new ArrayList<ByteBuffer>();
+                for (int count = 0; endBlock < blocks.size() && count < pageSize; endBlock++)
+                {
+                    names.add(BlockPostings.blockColumn(blocks.firstDocs[endBlock]));
+                    count += blocks.counts[endBlock];
+                }
+
+                if (!names.isEmpty())
+                    reads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, rowKey, parent, names));
+            }
+
+            List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, reads.toArray(new ReadCommand[reads.size()]));
+
+            Collection<IColumn> columns = new ArrayList<IColumn>();
+            List<PostingsBlock> packed = new ArrayList<PostingsBlock>();
+            BlockPostings skip = null;
+
+            // tell the rows apart by their columns, doc columns all sort first
+            for (Row row : rows)
+            {
+                if (row.cf == null || row.cf.getSortedColumns().isEmpty())
+                    continue;
+
+                IColumn first = row.cf.getSortedColumns().iterator().next();
+
+                if (!BlockPostings.isBlockColumn(first.name()))
+                {
+                    columns = row.cf.getSortedColumns();
+                }
+                else
+                {
+                    for (IColumn col : row.cf.getSortedColumns())
+                    {
+                        if (!col.isLive())
+                            continue;
+
+                        if (col.name().equals(BlockPostings.skipColumn))
+                            skip = BlockPostings.deserialize(col.value());
+                        else
+                            packed.add(PostingsBlock.deserialize(col.value()));
+                    }
+                }
+            }
+
+            if (!blocksChecked)
+            {
+                blocksChecked = true;
+                blocks = skip;
+
+                // read again with its blocks
+                if (blocks != null)
+                    continue;
+            }
+
+            boolean lastColumns = columns.size() < pageSize;
+
+            if (blocks == null)
+            {
+                lastPage = lastColumns;
+                page = PostingsBlock.read(columns);
+            }
+            else
+            {
+                // up to the end of the columns read and the start of the next block
+                int upTo = Integer.MAX_VALUE;
+                if (!lastColumns)
+                    upTo = CassandraUtils.readVInt(lastName(columns));
+                if (endBlock < blocks.size())
+                    upTo = Math.min(upTo, blocks.firstDocs[endBlock] - 1);
+
+                lastPage = lastColumns && endBlock >= blocks.size();
+                page = PostingsBlock.merge(PostingsBlock.concat(packed), columns, from, upTo);
+            }
+
+            position = 0;
+
+            if (reader != null)
+                reader.addDocumentNormalizations(page, field);
+
+            if (page.size() > 0)
+                return true;
+
+            if (lastPage)
+                return false;
+
+            from = page.lastDoc + 1;
+        }
+    }
+
+    private static ByteBuffer lastName(Collection<IColumn> columns)
+    {
+        ByteBuffer name = null;
+        for (IColumn col : columns)
+            name = col.name();
+
+        return name;
+    }
+}
@@ -1,6 +1,6 @@
 /**
  * Copyright T Jake Luciani
- * 
+ *
  * Licensed to the Apache Software Foundation (ASF) under one
  * or more contributor license agreements.  See the NOTICE file
  * distributed with this work for additional information
@@ -19,35 +19,546 @@
  */
 package lucandra;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.util.OpenBitSet;
 
 import com.google.common.collect.MapMaker;
+import com.googlecode.concurrentlinkedhashmap.CapacityLimiter;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
 
+/**
+ * What IndexReader keeps of an index between queries.
+ *
+ * Each cache is bounded and evicts its least recently used entries:
+ * documents, postings and norms by their approximate size in bytes, term
+ * enums by the number of terms mapped to them. The sizes can be set with
+ * -Dlucandra.cache.documents.bytes, -Dlucandra.cache.postings.bytes,
+ * -Dlucandra.cache.norms.bytes and -Dlucandra.cache.terms.
+ *
+ * LucandraFilter results are kept per set of filter terms, in up to
+ * -Dlucandra.cache.filters.bytes.
+ *
+ * Documents are kept off the heap, see OffHeapDocuments, in up to
+ * -Dlucandra.cache.documents.offheap.bytes of direct memory. Setting it to 0
+ * caches them on the heap instead. The slabs holding them are shared by all
+ * indexes and bounded by -Dlucandra.cache.offheap.bytes.
+ *
+ * The bytes held by all indexes together are bounded too, by
+ * -Dlucandra.cache.bytes (a quarter of the heap by default). Once over it the
+ * largest caches are trimmed first, see enforceGlobalCapacity().
+ */
 public class ReaderCache
 {
+    public static final int                documentsCapacity = capacity("lucandra.cache.documents.bytes", 32 << 20);
+    public static final int                postingsCapacity  = capacity("lucandra.cache.postings.bytes", 64 << 20);
+    public static final int                normsCapacity     = capacity("lucandra.cache.norms.bytes", 16 << 20);
+    public static final int                termsCapacity     = Integer.getInteger("lucandra.cache.terms", 1 << 16);
+    public static final int                filtersCapacity   = capacity("lucandra.cache.filters.bytes", 16 << 20);
+    public static final int                offHeapCapacity   = capacity("lucandra.cache.documents.offheap.bytes",
+                                                                     64 << 20);
+
+    private static volatile long           globalCapacity    = Long.getLong("lucandra.cache.bytes", Runtime
+                                                                     .getRuntime().maxMemory() / 4);
+
+    // every cache in use, what the global capacity is measured against
+    private static final Set<ReaderCache>  caches            = Collections.newSetFromMap(new MapMaker()
+                                                                     .<ReaderCache, Boolean> makeMap());
+
     public final String indexName;
-    public final Map<Integer, Document> documents;
-    public final Map<Term, LucandraTermEnum> termEnum;
-    public final Map<String, byte[]>  fieldNorms;
+    public final ConcurrentMap<Integer, Document> documents;
+    public final OffHeapDocuments offHeapDocuments;
+    public final ConcurrentMap<Term, LucandraTermEnum> termEnum;
+    public final ConcurrentMap<PostingsKey, PostingsBlock> postings;
+    public final ConcurrentMap<String, byte[]> fieldNorms;
+    public final ConcurrentMap<Set<Term>, LucandraFilter.Result> filters;
     public final OpenBitSet docHits;
-    public final Object fieldCacheKey;
-    
+
+    // cached postings carrying the norms of docs written before the norms
+    // row, by field, dropped along with the norms of their field
+    private final ConcurrentMap<String, Set<PostingsKey>> normsPostings = new MapMaker().makeMap();
+
+    // renewed when documents change, FieldCache entries can not be patched
+    private volatile Object fieldCacheKey;
+    private volatile boolean released;
+
+    // replaced rather than changed, LucandraAllTermDocs iterate it unlocked
+    private volatile OpenBitSet liveDocs;
+
+    public final Stats documentStats = new Stats();
+    public final Stats termEnumStats = new Stats();
+    public final Stats postingsStats = new Stats();
+    public final Stats normsStats    = new Stats();
+    public final Stats filterStats   = new Stats();
+
     public ReaderCache(String indexName)
+    {
+        this(indexName, documentsCapacity, offHeapCapacity, postingsCapacity, normsCapacity, termsCapacity,
+                filtersCapacity);
+    }
+
+    ReaderCache(String indexName, int documentsCapacity, int offHeapCapacity, int postingsCapacity, int normsCapacity,
+            int termsCapacity, int filtersCapacity)
     {
         this.indexName = indexName;
-        
-        documents  = new MapMaker().makeMap();
-        termEnum   = new MapMaker().makeMap();
-        fieldNorms = new MapMaker().makeMap();
+
+        offHeapDocuments = offHeapCapacity > 0 ? new OffHeapDocuments(offHeapCapacity, documentStats) : null;
+
+        documents = new ConcurrentLinkedHashMap.Builder<Integer, Document>()
+                .maximumWeightedCapacity(documentsCapacity)
+                .weigher(new Weigher<Document>() {
+                    public int weightOf(Document doc)
+                    {
+                        return weight(doc);
+                    }
+                })
+                .listener(new CountingListener<Integer, Document>(documentStats))
+                .build();
+
+        termEnum = new ConcurrentLinkedHashMap.Builder<Term, LucandraTermEnum>()
+                .maximumWeightedCapacity(termsCapacity)
+                .listener(new CountingListener<Term, LucandraTermEnum>(termEnumStats))
+                .build();
+
+        postings = new ConcurrentLinkedHashMap.Builder<PostingsKey, PostingsBlock>()
+                .maximumWeightedCapacity(postingsCapacity)
+                .weigher(new Weigher<PostingsBlock>() {
+                    public int weightOf(PostingsBlock block)
+                    {
+                        return block.weight();
+                    }
+                })
+                .listener(new CountingListener<PostingsKey, PostingsBlock>(postingsStats) {
+                    public void onEviction(PostingsKey key, PostingsBlock block)
+                    {
+                        super.onEviction(key, block);
+
+                        Set<PostingsKey> keys = normsPostings.get(key.term.field());
+                        if (keys != null)
+                            keys.remove(key);
+
+                        key.termEnum.evictPostings(key.term);
+                    }
+                })
+                .build();
+
+        fieldNorms = new ConcurrentLinkedHashMap.Builder<String, byte[]>()
+                .maximumWeightedCapacity(normsCapacity)
+                .weigher(new Weigher<byte[]>() {
+                    public int weightOf(byte[] norms)
+                    {
+                        return Math.max(1, norms.length);
+                    }
+                })
+                .listener(new CountingListener<String, byte[]>(normsStats) {
+                    public void onEviction(String field, byte[] norms)
+                    {
+                        super.onEviction(field, norms);
+
+                        // norms of docs written before the norms row come from
+                        // their postings, read them again along with the norms
+                        Set<PostingsKey> keys = normsPostings.remove(field);
+                        if (keys == null)
+                            return;
+
+                        for (PostingsKey key : keys)
+                        {
+                            if (postings.remove(key) != null)
+                                key.termEnum.evictPostings(key.term);
+                        }
+                    }
+                })
+                .build();
+
+        filters = new ConcurrentLinkedHashMap.Builder<Set<Term>, LucandraFilter.Result>()
+                .maximumWeightedCapacity(filtersCapacity)
+                .weigher(new Weigher<LucandraFilter.Result>() {
+                    public int weightOf(LucandraFilter.Result result)
+                    {
+                        return result.weight();
+                    }
+                })
+                .listener(new CountingListener<Set<Term>, LucandraFilter.Result>(filterStats))
+                .build();
+
         docHits    = new OpenBitSet(CassandraUtils.maxDocsPerShard);
-        
+
         fieldCacheKey = UUID.randomUUID();
+
+        caches.add(this);
+    }
+
+    public Object getFieldCacheKey()
+    {
+        return fieldCacheKey;
+    }
+
+    /**
+     * @return the live documents of the index, null until read
+     */
+    public OpenBitSet getLiveDocs()
+    {
+        return liveDocs;
+    }
+
+    public void setLiveDocs(OpenBitSet liveDocs)
+    {
+        this.liveDocs = liveDocs;
+    }
+
+    /**
+     * Evicts what changes touched: the changed documents, the term enums
+     * holding a changed term along with the postings they read, the filter
+     * results of a changed term, and the FieldCache entries of the index.
+     * Everything else stays cached. Norms are patched by
+     * IndexReader.invalidate().
+     */
+    public void invalidate(ChangeLog.Changes changes)
+    {
+        for (Integer doc : changes.docs)
+        {
+            documents.remove(doc);
+
+            if (offHeapDocuments != null)
+                offHeapDocuments.remove(doc);
+        }
+
+        if (!changes.docs.isEmpty())
+            fieldCacheKey = UUID.randomUUID();
+
+        if (changes.terms.isEmpty())
+            return;
+
+        TreeSet<Term> changedTerms = new TreeSet<Term>(changes.terms);
+
+        for (Iterator<Set<Term>> it = filters.keySet().iterator(); it.hasNext();)
+        {
+            if (!Collections.disjoint(it.next(), changedTerms))
+                it.remove();
+        }
+        Map<LucandraTermEnum, Boolean> stale = new IdentityHashMap<LucandraTermEnum, Boolean>();
+
+        for (Iterator<LucandraTermEnum> it = termEnum.values().iterator(); it.hasNext();)
+        {
+            LucandraTermEnum e = it.next();
+
+            Boolean covers = stale.get(e);
+            if (covers == null)
+            {
+                covers = e.covers(changedTerms);
+                stale.put(e, covers);
+            }
+
+            if (covers)
+                it.remove();
+        }
+
+        for (Iterator<PostingsKey> it = postings.keySet().iterator(); it.hasNext();)
+        {
+            PostingsKey key = it.next();
+
+            if (changedTerms.contains(key.term) || Boolean.TRUE.equals(stale.get(key.termEnum)))
+            {
+                it.remove();
+                key.termEnum.evictPostings(key.term);
+            }
+        }
+    }
+
+    /**
+     * Caches the postings read by a term enum, see PostingsKey
+     */
+    public void cachePostings(PostingsKey key, PostingsBlock block)
+    {
+        if (block.hasNorms())
+        {
+            String field = key.term.field();
+
+            Set<PostingsKey> keys = normsPostings.get(field);
+            if (keys == null)
+            {
+                Set<PostingsKey> newKeys = Collections.newSetFromMap(new MapMaker().<PostingsKey, Boolean> makeMap());
+
+                keys = normsPostings.putIfAbsent(field, newKeys);
+                if (keys == null)
+                    keys = newKeys;
+            }
+
+            keys.add(key);
+        }
+
+        postings.put(key, block);
+    }
+
+    /**
+     * Empties the cache and stops counting it against the global capacity,
+     * called when an index is reopened
+     */
+    public void release()
+    {
+        released = true;
+        caches.remove(this);
+
+        documents.clear();
+        if (offHeapDocuments != null)
+            offHeapDocuments.clear();
+        termEnum.clear();
+        postings.clear();
+        normsPostings.clear();
+        fieldNorms.clear();
+        filters.clear();
+        liveDocs = null;
+    }
+
+    /**
+     * @return true once the index was reopened, possibly by another thread
+     */
+    public boolean isReleased()
+    {
+        return released;
+    }
+
+    /**
+     * @return the bytes held by documents, postings, norms and filters
+     */
+    public long weight()
+    {
+        return weightedSize(documents) + weightedSize(postings) + weightedSize(fieldNorms) + weightedSize(filters);
+    }
+
+    public static long getGlobalCapacity()
+    {
+        return globalCapacity;
+    }
+
+    /** Overrides lucandra.cache.bytes, 0 leaves only the per index bounds */
+    public static void setGlobalCapacity(long bytes)
+    {
+        globalCapacity = bytes;
+
+        enforceGlobalCapacity();
+    }
+
+    /**
+     * @return the bytes held by the caches of every index
+     */
+    public static long globalWeight()
+    {
+        long weight = 0;
+
+        for (ReaderCache cache : caches)
+            weight += cache.weight();
+
+        return weight;
+    }
+
+    /**
+     * Trims the largest caches of all indexes until they fit the global
+     * capacity together. Each cache evicts from its least recently used
+     * end, so an index that is busy keeps its hot entries while the one
+     * holding the most gives up its cold ones. Called after loading into a
+     * cache, never while holding one of their locks.
+     */
+    public static void enforceGlobalCapacity()
+    {
+        long capacity = globalCapacity;
+        if (capacity <= 0)
+            return;
+
+        long excess = globalWeight() - capacity;
+        if (excess <= 0)
+            return;
+
+        List<ConcurrentLinkedHashMap<?, ?>> maps = new ArrayList<ConcurrentLinkedHashMap<?, ?>>();
+        for (ReaderCache cache : caches)
+        {
+            maps.add((ConcurrentLinkedHashMap<?, ?>) cache.documents);
+            maps.add((ConcurrentLinkedHashMap<?, ?>) cache.postings);
+            maps.add((ConcurrentLinkedHashMap<?, ?>) cache.fieldNorms);
+            maps.add((ConcurrentLinkedHashMap<?, ?>) cache.filters);
+        }
+
+        Collections.sort(maps, new Comparator<ConcurrentLinkedHashMap<?, ?>>() {
+            public int compare(ConcurrentLinkedHashMap<?, ?> a, ConcurrentLinkedHashMap<?, ?> b)
+            {
+                return b.weightedSize() - a.weightedSize();
+            }
+        });
+
+        for (ConcurrentLinkedHashMap<?, ?> map : maps)
+        {
+            if (excess <= 0)
+                break;
+
+            int before = map.weightedSize();
+            final long target = Math.max(0, before - excess);
+
+            map.evictWith(new CapacityLimiter() {
+                public boolean hasExceededCapacity(ConcurrentLinkedHashMap<?, ?> map)
+                {
+                    return map.weightedSize() > target;
+                }
+            });
+
+            excess -= before - map.weightedSize();
+        }
+    }
+
+    /**
+     * @return roughly the bytes doc holds on the heap
+     */
+    static int weight(Document doc)
+    {
+        int weight = 64;
+
+        for (Object f : doc.getFields())
+        {
+            Fieldable field = (Fieldable) f;
+
+            weight += 64 + field.name().length() * 2;
+
+            if (field.isBinary())
+                weight += field.getBinaryLength();
+            else if (field.stringValue() != null)
+                weight += field.stringValue().length() * 2;
+        }
+
+        return weight;
+    }
+
+    private static int weightedSize(ConcurrentMap<?, ?> map)
+    {
+        return ((ConcurrentLinkedHashMap<?, ?>) map).weightedSize();
+    }
+
+    private static int capacity(String property, int defaultBytes)
+    {
+        return (int) Math.min(Integer.MAX_VALUE, Long.getLong(property, defaultBytes));
+    }
+
+    @Override
+    public String toString()
+    {
+        return indexName + ": " + weight() + " bytes, documents " + documentStats + ", terms " + termEnumStats
+                + ", postings " + postingsStats + ", norms " + normsStats + ", filters " + filterStats;
+    }
+
+    /**
+     * Postings are read and held by the term enum that asked for them, so a
+     * new enum sees the postings written since. The cache bounds what all
+     * enums of the index hold and has them drop what it evicts.
+     */
+    public static final class PostingsKey
+    {
+        final LucandraTermEnum termEnum;
+        final Term             term;
+
+        PostingsKey(LucandraTermEnum termEnum, Term term)
+        {
+            this.termEnum = termEnum;
+            this.term = term;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(termEnum) * 31 + term.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof PostingsKey))
+                return false;
+
+            PostingsKey other = (PostingsKey) o;
+
+            return termEnum == other.termEnum && term.equals(other.term);
+        }
+    }
+
+    /**
+     * Hit, miss and eviction counts of one cache
+     */
+    public static class Stats
+    {
+        private final AtomicLong hits      = new AtomicLong();
+        private final AtomicLong misses    = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        public void hit()
+        {
+            hits.incrementAndGet();
+        }
+
+        public void miss()
+        {
+            misses.incrementAndGet();
+        }
+
+        void evicted()
+        {
+            evictions.incrementAndGet();
+        }
+
+        public long getHits()
+        {
+            return hits.get();
+        }
+
+        public long getMisses()
+        {
+            return misses.get();
+        }
+
+        public long getEvictions()
+        {
+            return evictions.get();
+        }
+
+        public double getHitRate()
+        {
+            long h = hits.get();
+            long total = h + misses.get();
+
+            return total == 0 ? 0 : (double) h / total;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+        }
+    }
+
+    private static class CountingListener<K, V> implements EvictionListener<K, V>
+    {
+        private final Stats stats;
+
+        CountingListener(Stats stats)
+        {
+            this.stats = stats;
+        }
+
+        public void onEviction(K key, V value)
+        {
+            stats.evicted();
+        }
     }
-    
-    
 }
@@ -0,0 +1,368 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.CorruptIndexException;
+
+/**
+ * Packs the stored fields of a document into the single Docs column
+ * CassandraUtils.packedFieldsColumn, optionally deflated.
+ *
+ * Indexes store one column per field unless packing is enabled for them,
+ * with -Dlucandra.compress.stored=index1,index2 (or * for all indexes) or
+ * setCompressed(). Readers handle both layouts so it can be switched on for
+ * an existing index; documents are packed as they are rewritten.
+ *
+ * Layout:
+ *
+ * <pre>
+ * format byte (RAW or DEFLATE)
+ * VInt length of the packed fields
+ * packed fields, deflated for DEFLATE:
+ *   VInt field count, then per field: VInt length, UTF-8 name, VInt length, value
+ * </pre>
+ *
+ * Values are encoded as for the per field columns: the value followed by a
+ * BINARY_VALUE or STRING_VALUE flag byte. A field with several values (or
+ * a string holding the delimiter) is stored as
+ *
+ * <pre>
+ * VInt value count, then per value: VInt length, value and its flag byte
+ * MULTI_VALUE flag byte
+ * </pre>
+ *
+ * Older rows join string values with CassandraUtils.delimeter instead.
+ */
+public class StoredFields
+{
+    public static final byte                    RAW          = 0;
+    public static final byte                    DEFLATE      = 1;
+
+    // last byte of a stored value
+    public static final byte                    BINARY_VALUE = Byte.MAX_VALUE;
+    public static final byte                    STRING_VALUE = Byte.MIN_VALUE;
+    public static final byte                    MULTI_VALUE  = 1;
+
+    private static final Set<String>            configured;
+    private static final Map<String, Boolean>   overrides  = new ConcurrentHashMap<String, Boolean>();
+
+    // zlib streams hold native buffers, keep one of each per thread
+    private static final ThreadLocal<Deflater>  deflaters  = new ThreadLocal<Deflater>() {
+                                                               protected Deflater initialValue()
+                                                               {
+                                                                   return new Deflater(Deflater.BEST_SPEED);
+                                                               }
+                                                           };
+
+    private static final ThreadLocal<Inflater>  inflaters  = new ThreadLocal<Inflater>() {
+                                                               protected Inflater initialValue()
+                                                               {
+                                                                   return new Inflater();
+                                                               }
+                                                           };
+
+    static
+    {
+        Set<String> names = new HashSet<String>();
+
+        for (String name : System.getProperty("lucandra.compress.stored", "").split(","))
+        {
+            if (name.trim().length() > 0)
+                names.add(name.trim());
+        }
+
+        configured = Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * @return the stored value of the field followed by its flag byte
+     */
+    public static byte[] encode(Fieldable field)
+    {
+        byte[] value;
+        byte[] encoded;
+
+        if (field.isBinary())
+        {
+            value = field.getBinaryValue();
+            encoded = new byte[field.getBinaryLength() + 1];
+            System.arraycopy(value, field.getBinaryOffset(), encoded, 0, field.getBinaryLength());
+        }
+        else
+        {
+            value = field.stringValue().getBytes(CassandraUtils.UTF_8);
+            encoded = new byte[value.length + 1];
+            System.arraycopy(value, 0, encoded, 0, value.length);
+        }
+
+        encoded[encoded.length - 1] = field.isBinary() ? BINARY_VALUE : STRING_VALUE;
+
+        return encoded;
+    }
+
+    /**
+     * Joins values from encode() into the column value of their field
+     */
+    public static byte[] join(List<byte[]> values)
+    {
+        byte[] first = values.get(0);
+
+        // a lone string holding the delimiter would be split by old readers
+        if (values.size() == 1 && (first[first.length - 1] == BINARY_VALUE || indexOf(first, CassandraUtils.delimeterBytes) < 0))
+            return first;
+
+        int size = CassandraUtils.vIntSize(values.size()) + 1;
+        for (byte[] value : values)
+            size += CassandraUtils.vIntSize(value.length) + value.length;
+
+        ByteBuffer r = ByteBuffer.allocate(size);
+
+        CassandraUtils.writeVInt(r, values.size());
+        for (byte[] value : values)
+        {
+            CassandraUtils.writeVInt(r, value.length);
+            r.put(value);
+        }
+
+        r.put(MULTI_VALUE);
+
+        return r.array();
+    }
+
+    /**
+     * @param joined a MULTI_VALUE column value
+     * @return the values, each with its flag byte, sharing the column bytes
+     */
+    public static List<ByteBuffer> split(ByteBuffer joined)
+    {
+        ByteBuffer in = joined.duplicate();
+        in.limit(in.limit() - 1);
+
+        int count = CassandraUtils.mreadVInt(in);
+        List<ByteBuffer> values = new ArrayList<ByteBuffer>(count);
+
+        for (int i = 0; i < count; i++)
+        {
+            int length = CassandraUtils.mreadVInt(in);
+
+            ByteBuffer value = in.slice();
+            value.limit(length);
+            in.position(in.position() + length);
+
+            values.add(value);
+        }
+
+        return values;
+    }
+
+    /**
+     * @return the offset of bytes within the first length bytes of array, or -1
+     */
+    static int indexOf(byte[] array, int offset, int length, byte[] bytes)
+    {
+        outer: for (int i = offset, end = offset + length - bytes.length; i <= end; i++)
+        {
+            for (int j = 0; j < bytes.length; j++)
+            {
+                if (array[i + j] != bytes[j])
+                    continue outer;
+            }
+
+            return i - offset;
+        }
+
+        return -1;
+    }
+
+    private static int indexOf(byte[] array, byte[] bytes)
+    {
+        return indexOf(array, 0, array.length, bytes);
+    }
+
+    /** Overrides lucandra.compress.stored for one index */
+    public static void setCompressed(String indexName, boolean compressed)
+    {
+        overrides.put(indexName, compressed);
+    }
+
+    /**
+     * Solandra shards (core~shard) follow the setting of their core
+     */
+    public static boolean isCompressed(String indexName)
+    {
+        Boolean compressed = overrides.get(indexName);
+
+        int shard = indexName.indexOf('~');
+        if (compressed == null && shard > 0)
+            compressed = overrides.get(indexName.substring(0, shard));
+
+        if (compressed != null)
+            return compressed;
+
+        return configured.contains("*") || configured.contains(indexName)
+                || (shard > 0 && configured.contains(indexName.substring(0, shard)));
+    }
+
+    public static ByteBuffer pack(Map<String, byte[]> fields)
+    {
+        byte[][] names = new byte[fields.size()][];
+
+        int size = CassandraUtils.vIntSize(fields.size());
+        int i = 0;
+        for (Map.Entry<String, byte[]> field : fields.entrySet())
+        {
+            names[i] = field.getKey().getBytes(CassandraUtils.UTF_8);
+
+            size += CassandraUtils.vIntSize(names[i].length) + names[i].length;
+            size += CassandraUtils.vIntSize(field.getValue().length) + field.getValue().length;
+            i++;
+        }
+
+        ByteBuffer raw = ByteBuffer.allocate(size);
+
+        CassandraUtils.writeVInt(raw, fields.size());
+        i = 0;
+        for (byte[] value : fields.values())
+        {
+            CassandraUtils.writeVInt(raw, names[i].length);
+            raw.put(names[i++]);
+            CassandraUtils.writeVInt(raw, value.length);
+            raw.put(value);
+        }
+
+        int header = 1 + CassandraUtils.vIntSize(size);
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(raw.array(), 0, size);
+        deflater.finish();
+
+        // only keep the deflated form if it is smaller
+        byte[] packed = new byte[header + size];
+        int deflated = 0;
+        while (!deflater.finished() && header + deflated < packed.length)
+            deflated += deflater.deflate(packed, header + deflated, packed.length - header - deflated);
+
+        ByteBuffer r = ByteBuffer.wrap(packed);
+
+        if (deflater.finished() && deflated < size)
+        {
+            r.put(DEFLATE);
+            CassandraUtils.writeVInt(r, size);
+            r.limit(header + deflated);
+        }
+        else
+        {
+            r.put(RAW);
+            CassandraUtils.writeVInt(r, size);
+            r.put(raw.array(), 0, size);
+            r.limit(header + size);
+        }
+
+        r.rewind();
+
+        return r;
+    }
+
+    /**
+     * @return field name to encoded value, the values share one buffer
+     */
+    public static Map<String, ByteBuffer> unpack(ByteBuffer packed) throws CorruptIndexException
+    {
+        ByteBuffer in = packed.duplicate();
+
+        byte format = in.get();
+        int size = CassandraUtils.mreadVInt(in);
+
+        ByteBuffer raw;
+
+        if (format == RAW)
+        {
+            raw = in.slice();
+        }
+        else if (format == DEFLATE)
+        {
+            byte[] bytes = new byte[size];
+
+            Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(in.array(), in.arrayOffset() + in.position(), in.remaining());
+
+            try
+            {
+                int inflated = 0;
+                while (inflated < size && !inflater.finished())
+                {
+                    int n = inflater.inflate(bytes, inflated, size - inflated);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+
+                    inflated += n;
+                }
+
+                if (inflated != size)
+                    throw new CorruptIndexException("Packed fields truncated: " + inflated + " of " + size + " bytes");
+            }
+            catch (DataFormatException e)
+            {
+                throw new CorruptIndexException("Packed fields are not properly deflated: " + e.getMessage());
+            }
+
+            raw = ByteBuffer.wrap(bytes);
+        }
+        else
+        {
+            throw new CorruptIndexException("Unknown packed fields format: " + format);
+        }
+
+        int count = CassandraUtils.mreadVInt(raw);
+        Map<String, ByteBuffer> fields = new LinkedHashMap<String, ByteBuffer>(count * 2);
+
+        for (int i = 0; i < count; i++)
+        {
+            int nameLength = CassandraUtils.mreadVInt(raw);
+            String name = new String(raw.array(), raw.arrayOffset() + raw.position(), nameLength, CassandraUtils.UTF_8);
+            raw.position(raw.position() + nameLength);
+
+            int valueLength = CassandraUtils.mreadVInt(raw);
+            ByteBuffer value = raw.slice();
+            value.limit(valueLength);
+            raw.position(raw.position() + valueLength);
+
+            fields.put(name, value);
+        }
+
+        return fields;
+    }
+}
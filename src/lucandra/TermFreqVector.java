@@ -19,13 +19,12 @@
  */
 package lucandra;
 
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.SliceByNamesReadCommand;
@@ -38,7 +37,6 @@ import org.apache.lucene.index.TermVectorOffsetInfo;
 public class TermFreqVector implements org.apache.lucene.index.TermFreqVector, org.apache.lucene.index.TermPositionVector {
 
     private String field;
-    private byte[] docId;
     private String[] terms;
     private int[] freqVec;
     private int[][] termPositions;
@@ -46,9 +44,8 @@ public class TermFreqVector implements org.apache.lucene.index.TermFreqVector, o
 
     public TermFreqVector(String indexName, String field, int docI) {
         this.field = field;
-        this.docId = Integer.toHexString(docI).getBytes();
 
-        ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, docId );
+        ByteBuffer key = CassandraUtils.docKey(indexName, docI);
 
         ReadCommand rc = new SliceByNamesReadCommand(CassandraUtils.keySpace, key, CassandraUtils.metaColumnPath, Arrays
                 .asList(CassandraUtils.documentMetaFieldBytes));
@@ -60,14 +57,7 @@ public class TermFreqVector implements org.apache.lucene.index.TermFreqVector, o
             return; // this docId is missing
         }
         
-        List<Term> allTerms;
-        try {
-            allTerms = (List<Term>) CassandraUtils.fromBytes(rows.get(0).cf.getColumn(CassandraUtils.documentMetaFieldBytes).value());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        }
+        List<Term> allTerms = DocumentMetadata.deserialize(rows.get(0).cf.getColumn(CassandraUtils.documentMetaFieldBytes).value()).terms;
 
         List<ReadCommand> readCommands = new ArrayList<ReadCommand>();
 
@@ -78,11 +68,7 @@ public class TermFreqVector implements org.apache.lucene.index.TermFreqVector, o
                 continue;
 
             // add to multiget params
-            try {
-                key = CassandraUtils.hashKeyBytes(indexName.getBytes(),  CassandraUtils.delimeterBytes, t.field().getBytes("UTF-8"), CassandraUtils.delimeterBytes, t.text().getBytes("UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException("JVM doesn't support UTF-8",e);
-            }
+            key = CassandraUtils.termKey(indexName, t);
 
             readCommands.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, new ColumnParent().setColumn_family(CassandraUtils.termVecColumnFamily), Arrays.asList(ByteBuffer.wrap(CassandraUtils.writeVInt(docI)))));
         }
@@ -108,19 +94,29 @@ public class TermFreqVector implements org.apache.lucene.index.TermFreqVector, o
             // Find the offsets and positions
             LucandraTermInfo termInfo = null;
             
-            if(row.cf != null){
-                termInfo = new LucandraTermInfo(0, row.cf.getSortedColumns().iterator().next().value());
+            IColumn col = row.cf == null ? null : row.cf.getColumn(ByteBuffer.wrap(CassandraUtils.writeVInt(docI)));
+            
+            if(col != null && PostingsBlock.isPosting(col)){
+                termInfo = new LucandraTermInfo(0, col.value());
+            }
+            else if((col == null || !col.isLive()) && BlockPostings.isEnabled(indexName)){
+                // packed away, look in the blocks
+                PostingsCursor postings = new PostingsCursor(null, indexName, t);
                 
-                termPositions[i] = termInfo.positions;
+                if(postings.skipTo(docI) && postings.doc() == docI)
+                    termInfo = postings.termInfo();
             }
             
+            if(termInfo != null)
+                termPositions[i] = termInfo.getPositions();
+            
             freqVec[i] = termPositions[i].length;
 
             if (termInfo == null || !termInfo.hasOffsets) {
                 termOffsets[i] = TermVectorOffsetInfo.EMPTY_OFFSET_INFO;
             } else {
 
-                int[] offsets = termInfo.offsets;
+                int[] offsets = termInfo.getOffsets();
 
                 termOffsets[i] = new TermVectorOffsetInfo[freqVec[i]];
                 for (int j = 0, k = 0; j < offsets.length; j += 2, k++) {
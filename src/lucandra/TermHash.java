@@ -0,0 +1,247 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.util.Arrays;
+
+import org.apache.lucene.index.Term;
+
+/**
+ * Inverts the tokens of a single field into per-term frequency, position and
+ * offset vectors.
+ *
+ * Instances are meant to be reused (one per indexing thread) so the hash table
+ * and the primitive position/offset buffers only grow, they are never
+ * reallocated per document.
+ */
+public class TermHash
+{
+    private static final int INIT_SIZE = 64;
+
+    private String           field;
+
+    // open addressed table of slot ids, -1 is empty
+    private int[]            table;
+    private int              mask;
+
+    // per slot data, indexed by slot id
+    private Term[]           terms;
+    private int[]            hashes;
+    private int[]            freqs;
+    private int[][]          positions;
+    private int[]            positionCount;
+    private int[][]          offsets;
+    private int[]            offsetCount;
+
+    private int              size;
+
+    public TermHash()
+    {
+        table = new int[INIT_SIZE * 2];
+        mask = table.length - 1;
+        Arrays.fill(table, -1);
+
+        terms = new Term[INIT_SIZE];
+        hashes = new int[INIT_SIZE];
+        freqs = new int[INIT_SIZE];
+        positions = new int[INIT_SIZE][];
+        positionCount = new int[INIT_SIZE];
+        offsets = new int[INIT_SIZE][];
+        offsetCount = new int[INIT_SIZE];
+    }
+
+    /**
+     * Clears the hash for a new field, keeping all allocated buffers
+     */
+    public void reset(String field)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            terms[i] = null;
+            freqs[i] = 0;
+            positionCount[i] = 0;
+            offsetCount[i] = 0;
+        }
+
+        if (size > 0)
+            Arrays.fill(table, -1);
+
+        size = 0;
+        this.field = field;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Records one occurrence of the term held in the given char buffer
+     *
+     * @return the slot of the term
+     */
+    public int add(char[] buffer, int length)
+    {
+        int hash = hash(buffer, length);
+        int bucket = hash & mask;
+
+        int slot;
+        while ((slot = table[bucket]) != -1)
+        {
+            if (hashes[slot] == hash && equals(terms[slot].text(), buffer, length))
+            {
+                freqs[slot]++;
+                return slot;
+            }
+
+            bucket = (bucket + 1) & mask;
+        }
+
+        // new term
+        if (size == terms.length)
+            growSlots();
+
+        slot = size++;
+        terms[slot] = new Term(field, new String(buffer, 0, length));
+        hashes[slot] = hash;
+        freqs[slot] = 1;
+        table[bucket] = slot;
+
+        if (size * 2 > table.length)
+            rehash();
+
+        return slot;
+    }
+
+    public int add(String text)
+    {
+        return add(text.toCharArray(), text.length());
+    }
+
+    public void addPosition(int slot, int position)
+    {
+        int[] p = positions[slot];
+
+        if (p == null)
+        {
+            p = new int[4];
+            positions[slot] = p;
+        }
+        else if (positionCount[slot] == p.length)
+        {
+            p = Arrays.copyOf(p, p.length * 2);
+            positions[slot] = p;
+        }
+
+        p[positionCount[slot]++] = position;
+    }
+
+    public void addOffsets(int slot, int startOffset, int endOffset)
+    {
+        int[] o = offsets[slot];
+
+        if (o == null)
+        {
+            o = new int[8];
+            offsets[slot] = o;
+        }
+        else if (offsetCount[slot] + 2 > o.length)
+        {
+            o = Arrays.copyOf(o, o.length * 2);
+            offsets[slot] = o;
+        }
+
+        o[offsetCount[slot]++] = startOffset;
+        o[offsetCount[slot]++] = endOffset;
+    }
+
+    public Term term(int slot)
+    {
+        return terms[slot];
+    }
+
+    public int freq(int slot)
+    {
+        return freqs[slot];
+    }
+
+    /**
+     * Builds the posting of a term for the given document
+     */
+    public LucandraTermInfo termInfo(int slot, int docId, Byte norm)
+    {
+        int[] p = positionCount[slot] == 0 ? null : Arrays.copyOf(positions[slot], positionCount[slot]);
+        int[] o = offsetCount[slot] == 0 ? null : Arrays.copyOf(offsets[slot], offsetCount[slot]);
+
+        return new LucandraTermInfo(docId, freqs[slot], p, o, norm);
+    }
+
+    private void growSlots()
+    {
+        int newSize = terms.length * 2;
+
+        terms = Arrays.copyOf(terms, newSize);
+        hashes = Arrays.copyOf(hashes, newSize);
+        freqs = Arrays.copyOf(freqs, newSize);
+        positions = Arrays.copyOf(positions, newSize);
+        positionCount = Arrays.copyOf(positionCount, newSize);
+        offsets = Arrays.copyOf(offsets, newSize);
+        offsetCount = Arrays.copyOf(offsetCount, newSize);
+    }
+
+    private void rehash()
+    {
+        table = new int[table.length * 2];
+        mask = table.length - 1;
+        Arrays.fill(table, -1);
+
+        for (int slot = 0; slot < size; slot++)
+        {
+            int bucket = hashes[slot] & mask;
+            while (table[bucket] != -1)
+                bucket = (bucket + 1) & mask;
+
+            table[bucket] = slot;
+        }
+    }
+
+    private static int hash(char[] buffer, int length)
+    {
+        // same as String.hashCode() with extra bit spreading
+        int h = 0;
+        for (int i = 0; i < length; i++)
+            h = 31 * h + buffer[i];
+
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    private static boolean equals(String text, char[] buffer, int length)
+    {
+        if (text.length() != length)
+            return false;
+
+        for (int i = 0; i < length; i++)
+            if (text.charAt(i) != buffer[i])
+                return false;
+
+        return true;
+    }
+}
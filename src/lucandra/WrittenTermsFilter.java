@@ -0,0 +1,344 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.ReadCommand;
+import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.SliceFromReadCommand;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.utils.FBUtilities;
+import org.apache.cassandra.utils.MurmurHash;
+import org.apache.log4j.Logger;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+
+/**
+ * Remembers which terms are already in the TL dictionary row of a field so
+ * IndexWriter can skip rewriting them.
+ *
+ * Each field key maps to a set of 64 bit term fingerprints. Terms are only
+ * added once their TL column is known to exist: after the mutation holding it
+ * was written, or when read back from TL by the background warmer. A term
+ * that is not found is always written, so a cold, full or evicted filter
+ * only costs the redundant writes it would have saved.
+ *
+ * Field keys include the index name, so there is one set per field of each
+ * core and shard. Sets are weighed by their table size against maxBytes for
+ * all of them together, so many small fields fit and only the least recently
+ * used ones are evicted, and read back from TL when used again.
+ *
+ * A plain bloom filter is not used since a false positive would drop the
+ * term from the dictionary; with 64 bit fingerprints a collision needs
+ * billions of terms in a single field.
+ */
+public class WrittenTermsFilter
+{
+    public static final boolean             enabled       = Boolean.valueOf(System.getProperty(
+                                                                  "lucandra.termfilter.enabled", "true"));
+
+    // heap for all fields together, 1/64th of the max heap by default
+    public static final long                maxBytes      = Long.getLong("lucandra.termfilter.bytes", Runtime
+                                                                  .getRuntime().maxMemory() / 64);
+
+    // max terms remembered per field (16 to 32 bytes each), by default a
+    // quarter of maxBytes so one large field can't push out all others
+    public static final int                 maxTerms      = Integer.getInteger("lucandra.termfilter.terms",
+                                                                  (int) Math.max(1024, Math.min(1 << 20,
+                                                                          maxBytes / 4 / 32)));
+
+    public static final WrittenTermsFilter  instance      = new WrittenTermsFilter(maxBytes, maxTerms);
+
+    private static final Logger             logger        = Logger.getLogger(WrittenTermsFilter.class);
+
+    private static final int                warmPageSize  = 4096;
+
+    private static final MurmurHash         murmur        = new MurmurHash();
+
+    private final ConcurrentMap<ByteBuffer, TermSet> filters;
+    private final int                       termsPerField;
+    private final ExecutorService           warmer;
+
+    public WrittenTermsFilter(long bytes, int termsPerField)
+    {
+        this.termsPerField = termsPerField;
+
+        // weighed in 8 byte table slots
+        filters = new ConcurrentLinkedHashMap.Builder<ByteBuffer, TermSet>()
+                .maximumWeightedCapacity((int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes / 8)))
+                .weigher(new Weigher<TermSet>() {
+                    public int weightOf(TermSet terms)
+                    {
+                        return terms.slots();
+                    }
+                })
+                .build();
+
+        warmer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "LucandraTermFilterWarmer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return true only if the term is known to be in the TL row of fieldKey
+     */
+    public boolean contains(ByteBuffer fieldKey, byte[] term)
+    {
+        if (!enabled)
+            return false;
+
+        return getTermSet(fieldKey).contains(fingerprint(term, 0, term.length));
+    }
+
+    /**
+     * Records the TL columns of mutations that were successfully written
+     */
+    public void written(RowMutation... mutations)
+    {
+        if (!enabled)
+            return;
+
+        for (RowMutation rm : mutations)
+        {
+            for (ColumnFamily cf : rm.getColumnFamilies())
+            {
+                if (!cf.metadata().cfName.equals(CassandraUtils.metaInfoColumnFamily))
+                    continue;
+
+                TermSet terms = filters.get(rm.key());
+                if (terms == null)
+                    continue; // no writer consulted this field, nothing to save
+
+                addColumns(rm.key(), terms, cf.getSortedColumns());
+            }
+        }
+    }
+
+    private TermSet getTermSet(final ByteBuffer fieldKey)
+    {
+        TermSet terms = filters.get(fieldKey);
+
+        if (terms == null)
+        {
+            terms = new TermSet(termsPerField);
+
+            TermSet existing = filters.putIfAbsent(fieldKey, terms);
+            if (existing != null)
+                return existing;
+
+            final TermSet newTerms = terms;
+            warmer.submit(new Runnable() {
+                public void run()
+                {
+                    warm(fieldKey, newTerms);
+                }
+            });
+        }
+
+        return terms;
+    }
+
+    // pages through the TL row, filling at most half the set so there is
+    // room left for the terms seen while indexing
+    private void warm(ByteBuffer fieldKey, TermSet terms)
+    {
+        long start = System.currentTimeMillis();
+
+        ColumnParent parent = new ColumnParent(CassandraUtils.metaInfoColumnFamily);
+        ByteBuffer startTerm = FBUtilities.EMPTY_BYTE_BUFFER;
+        int count = 0;
+
+        try
+        {
+            // stops once the set is evicted, nothing would use it
+            while (terms.size() < termsPerField / 2 && filters.get(fieldKey) == terms)
+            {
+                ReadCommand rc = new SliceFromReadCommand(CassandraUtils.keySpace, fieldKey, parent, startTerm,
+                        FBUtilities.EMPTY_BYTE_BUFFER, false, warmPageSize);
+
+                List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, rc);
+
+                if (rows.isEmpty() || rows.get(0).cf == null)
+                    break;
+
+                Collection<IColumn> columns = rows.get(0).cf.getSortedColumns();
+
+                addColumns(fieldKey, terms, columns);
+                count += columns.size();
+
+                if (columns.size() < warmPageSize)
+                    break;
+
+                // next page starts at the last term, which is read again
+                IColumn last = null;
+                for (IColumn column : columns)
+                    last = column;
+
+                startTerm = last.name();
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // filter stays partially warm, which is still correct
+            logger.warn("Failed to warm written terms filter", e);
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Warmed written terms filter with " + count + " terms in "
+                    + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void addColumns(ByteBuffer fieldKey, TermSet terms, Collection<IColumn> columns)
+    {
+        boolean grown = false;
+
+        for (IColumn column : columns)
+        {
+            if (column.isMarkedForDelete())
+                continue;
+
+            ByteBuffer name = column.name();
+            grown |= terms.add(fingerprint(name.array(), name.position() + name.arrayOffset(), name.remaining()));
+        }
+
+        // weighs the set again, evicting other fields if needed
+        if (grown)
+            filters.replace(fieldKey, terms, terms);
+    }
+
+    static long fingerprint(byte[] bytes, int offset, int length)
+    {
+        long high = murmur.hash(bytes, offset, length, 0x9747b28c);
+        long low = murmur.hash(bytes, offset, length, 0x5bd1e995);
+
+        long fp = (high << 32) | (low & 0xFFFFFFFFL);
+
+        return fp == 0 ? 1 : fp; // 0 marks an empty slot
+    }
+
+    /**
+     * Open addressed set of fingerprints. Lookups don't lock: a lookup racing
+     * an insert or a resize can only miss, which is safe here.
+     */
+    static class TermSet
+    {
+        private final int               maxSize;
+        private volatile AtomicLongArray table;
+        private int                     size;
+
+        TermSet(int maxSize)
+        {
+            this.maxSize = maxSize;
+            this.table = new AtomicLongArray(64);
+        }
+
+        boolean contains(long fp)
+        {
+            AtomicLongArray t = table;
+            int mask = t.length() - 1;
+
+            for (int i = (int) (fp ^ (fp >>> 32)) & mask;; i = (i + 1) & mask)
+            {
+                long v = t.get(i);
+
+                if (v == fp)
+                    return true;
+
+                if (v == 0)
+                    return false;
+            }
+        }
+
+        /**
+         * @return true if the table grew
+         */
+        synchronized boolean add(long fp)
+        {
+            if (size >= maxSize)
+                return false;
+
+            if (insert(table, fp))
+                size++;
+
+            if (size * 2 > table.length())
+            {
+                AtomicLongArray old = table;
+                AtomicLongArray bigger = new AtomicLongArray(old.length() * 2);
+
+                for (int i = 0; i < old.length(); i++)
+                    if (old.get(i) != 0)
+                        insert(bigger, old.get(i));
+
+                table = bigger;
+                return true;
+            }
+
+            return false;
+        }
+
+        int slots()
+        {
+            return table.length();
+        }
+
+        synchronized int size()
+        {
+            return size;
+        }
+
+        private static boolean insert(AtomicLongArray t, long fp)
+        {
+            int mask = t.length() - 1;
+
+            for (int i = (int) (fp ^ (fp >>> 32)) & mask;; i = (i + 1) & mask)
+            {
+                long v = t.get(i);
+
+                if (v == fp)
+                    return false;
+
+                if (v == 0)
+                {
+                    t.set(i, fp);
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra.cluster;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import lucandra.CassandraUtils;
+import lucandra.ChangeLog;
+import lucandra.IndexReader;
+
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.gms.Gossiper;
+import org.apache.cassandra.net.IVerbHandler;
+import org.apache.cassandra.net.Message;
+import org.apache.cassandra.net.MessagingService;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.FBUtilities;
+import org.apache.log4j.Logger;
+
+/**
+ * Pushes the ChangeLog entries a writer flushes to the readers of every live
+ * node, so they evict what changed within milliseconds rather than at their
+ * next poll of the cache row.
+ *
+ * Cassandra has no verbs for applications, so the messages travel as BINARY
+ * messages carrying the invalidate header. register() wraps the BINARY
+ * handler of the node, which keeps handling the messages without the header.
+ * Messages are one way: one lost to a node going down or a full queue is
+ * picked up by the poll, which readers keep doing at the longer
+ * CassandraUtils.cacheFallbackInterval once registered. Received entries are
+ * applied on a thread of their own, patching norms reads from Cassandra and
+ * must not hold up the messaging stage.
+ *
+ * Message layout:
+ *
+ * <pre>
+ * VInt index name length, index name, 16 byte entry name, entry
+ * </pre>
+ */
+public class InvalidationService
+{
+    public static final String           header      = "lucandra-invalidate";
+
+    private static final Logger          logger      = Logger.getLogger(InvalidationService.class);
+
+    private static volatile boolean      registered  = false;
+
+    private static final ExecutorService invalidator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "LucandraInvalidator");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Starts handling invalidations on this node. Call after
+     * CassandraUtils.startup(), which registers the handlers of the node.
+     */
+    public static synchronized void register()
+    {
+        if (registered)
+            return;
+
+        StorageService.Verb verb = StorageService.Verb.BINARY;
+        final IVerbHandler binaryHandler = MessagingService.instance.getVerbHandler(verb);
+
+        MessagingService.instance.registerVerbHandlers(verb, new IVerbHandler() {
+            public void doVerb(Message message)
+            {
+                if (message.getHeader(header) != null)
+                    receive(message);
+                else if (binaryHandler != null)
+                    binaryHandler.doVerb(message);
+            }
+        });
+
+        registered = true;
+    }
+
+    public static boolean isRegistered()
+    {
+        return registered;
+    }
+
+    /**
+     * Applies entry, as written by ChangeLog.write(), on this node and sends
+     * it to the other live nodes
+     */
+    public static void broadcast(String indexName, IColumn entry)
+    {
+        apply(indexName, entry.name(), entry.value());
+
+        if (!registered)
+            return;
+
+        Message message = message(indexName, entry);
+        InetAddress local = FBUtilities.getLocalAddress();
+
+        for (InetAddress endpoint : Gossiper.instance.getLiveMembers())
+        {
+            if (!endpoint.equals(local))
+                MessagingService.instance.sendOneWay(message, endpoint);
+        }
+    }
+
+    /**
+     * @return the message pushing entry of indexName
+     */
+    public static Message message(String indexName, IColumn entry)
+    {
+        byte[] name = indexName.getBytes(CassandraUtils.UTF_8);
+
+        ByteBuffer body = ByteBuffer.allocate(CassandraUtils.vIntSize(name.length) + name.length
+                + entry.name().remaining() + entry.value().remaining());
+
+        CassandraUtils.writeVInt(body, name.length);
+        body.put(name);
+        body.put(entry.name().duplicate());
+        body.put(entry.value().duplicate());
+
+        Message message = new Message(FBUtilities.getLocalAddress(), StorageService.Verb.BINARY, body.array());
+        message.setHeader(header, new byte[0]);
+
+        return message;
+    }
+
+    private static void receive(Message message)
+    {
+        final ByteBuffer in = ByteBuffer.wrap(message.getMessageBody());
+
+        byte[] name = new byte[CassandraUtils.mreadVInt(in)];
+        in.get(name);
+
+        final ByteBuffer entryName = in.duplicate();
+        entryName.limit(entryName.position() + 16);
+        in.position(in.position() + 16);
+
+        final String indexName = new String(name, CassandraUtils.UTF_8);
+
+        if (logger.isDebugEnabled())
+            logger.debug("Invalidating " + indexName + " for " + message.getFrom());
+
+        invalidator.submit(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    apply(indexName, entryName, in);
+                }
+                catch (RuntimeException e)
+                {
+                    // the entry counts as applied, the poll would skip it
+                    logger.warn("Invalidating " + indexName + " failed, reopening", e);
+                    IndexReader.invalidate(indexName, null);
+                }
+            }
+        });
+    }
+
+    private static void apply(String indexName, ByteBuffer entryName, ByteBuffer entry)
+    {
+        if (ChangeLog.markApplied(entryName))
+            IndexReader.invalidate(indexName, ChangeLog.Changes.deserialize(entry));
+    }
+}
@@ -26,16 +26,16 @@ import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import lucandra.CassandraUtils;
+import lucandra.ChangeLog;
 import lucandra.IndexReader;
 import lucandra.cluster.CassandraIndexManager;
 import lucandra.cluster.IndexManagerService;
+import lucandra.cluster.InvalidationService;
 
 import com.google.common.collect.MapMaker;
 
 import org.apache.cassandra.config.DatabaseDescriptor;
-import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.Table;
-import org.apache.cassandra.db.filter.QueryPath;
 import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.thrift.ConsistencyLevel;
@@ -83,35 +83,36 @@ public class SolandraComponent extends SearchComponent
         return "1.0";
     }
 
-    private boolean flushCache(String indexName)
+    // evicts what was written to the index since the last check, see ChangeLog.
+    // Once writers push what they write this only catches what got lost.
+    private void flushCache(String indexName, IndexReader reader) throws IOException
     {   
-        //if(CassandraUtils.cacheInvalidationInterval == 0)
-        //    return true;
-        
         Long lastCheck = SolandraComponent.cacheCheck.get(indexName);
     
-        if(lastCheck == null || lastCheck < (System.currentTimeMillis() - CassandraUtils.cacheInvalidationInterval))
-        {
+        int interval = InvalidationService.isRegistered() ? CassandraUtils.cacheFallbackInterval
+                : CassandraUtils.cacheInvalidationInterval;
         
-            ByteBuffer keyKey = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, "cache".getBytes());
+        if(lastCheck != null && lastCheck >= (System.currentTimeMillis() - interval))
+            return;
 
-            List<Row> rows = CassandraUtils.robustRead(keyKey, new QueryPath(CassandraUtils.schemaInfoColumnFamily), Arrays
-                    .asList(CassandraUtils.cachedColBytes), ConsistencyLevel.QUORUM);
-            
-            
-            SolandraComponent.cacheCheck.put(indexName, System.currentTimeMillis());
-            
-            
-            if(lastCheck == null || rows == null || rows.isEmpty() || rows.get(0).cf == null ||             
-                    rows.get(0).cf.getColumn(CassandraUtils.cachedColBytes).getSubColumn(CassandraUtils.cachedColBytes).timestamp() >= lastCheck)
-            {
-                logger.info("Flushed cache: "+indexName);
-                return true;
-            }
+        long now = System.currentTimeMillis();
+
+        ChangeLog.Changes changes = lastCheck == null ? null : ChangeLog.read(indexName, lastCheck, ConsistencyLevel.QUORUM);
+
+        SolandraComponent.cacheCheck.put(indexName, now);
+
+        if(changes == null)
+        {
+            logger.info("Flushed cache: "+indexName);
+            reader.reopen();
+        }
+        else if(!changes.isEmpty())
+        {
+            if(logger.isDebugEnabled())
+                logger.debug("Invalidated "+changes.terms.size()+" terms and "+changes.docs.size()+" docs of "+indexName);
+
+            reader.invalidate(changes);
         }
-    
-            
-        return false;
     }
     
     public void prepare(ResponseBuilder rb) throws IOException
@@ -141,8 +142,7 @@ public class SolandraComponent extends SearchComponent
             IndexReader reader = (IndexReader) ((SolrIndexReader) rb.req.getSearcher().getIndexReader()).getWrappedReader();
 
             reader.setIndexName(indexName);
-            if(flushCache(indexName))
-                reader.reopen();
+            flushCache(indexName, reader);
             
             
             logger.debug(indexName);
@@ -175,8 +175,7 @@ public class SolandraComponent extends SearchComponent
 
                 String subIndex = indexName+"~0";
                 reader.setIndexName(subIndex);
-                if(flushCache(subIndex))
-                    reader.reopen();
+                flushCache(subIndex, reader);
                 
                 return;
             }
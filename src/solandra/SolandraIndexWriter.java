@@ -29,8 +29,10 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
 import lucandra.CassandraUtils;
+import lucandra.ChangeLog;
 import lucandra.cluster.CassandraIndexManager;
 import lucandra.cluster.IndexManagerService;
+import lucandra.cluster.InvalidationService;
 
 import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.Row;
@@ -85,29 +87,36 @@ public class SolandraIndexWriter extends UpdateHandler
         {
             writer = new lucandra.IndexWriter();
 
+            // readers evict what changed rather than reopen
+            ChangeLog.setEnabled(true);
+
             flushMonitor.execute(new Runnable() {            
                 
                 public void run()
                 {
-                    Map<String,Long> lastCoreFlush = new HashMap<String,Long>();
+                    Set<String> cores = new HashSet<String>();
                     
                     while(true)
                     {
                         try
                         {
-                            String core = flushQueue.take();
+                            cores.add(flushQueue.take());
                             
-                            //if(CassandraUtils.cacheInvalidationInterval == 0)
-                            //    continue;
+                            // everything queued since the last round goes in one flush per core
+                            flushQueue.drainTo(cores);
                             
-                            Long lastFlush = lastCoreFlush.get(core);
-                            if(lastFlush == null || lastFlush <= (System.currentTimeMillis() - CassandraUtils.cacheInvalidationInterval))
-                            {                               
+                            for(String core : cores)
+                            {
                                 flush(core);
-                                lastCoreFlush.put(core, System.currentTimeMillis());
-                                logger.info("Flushed cache: "+core);
+                                
+                                if(logger.isDebugEnabled())
+                                    logger.debug("Flushed cache: "+core);
                             }
                             
+                            cores.clear();
+                            
+                            Thread.sleep(InvalidationService.isRegistered() ? CassandraUtils.cachePushInterval
+                                    : CassandraUtils.cacheInvalidationInterval);
                         }
                         catch (InterruptedException e)
                         {
@@ -118,11 +127,21 @@ public class SolandraIndexWriter extends UpdateHandler
                 
                 private void flush(String core)
                 {
-                    ByteBuffer cacheKey = CassandraUtils.hashKeyBytes((core).getBytes(), CassandraUtils.delimeterBytes, "cache".getBytes());
+                    ByteBuffer cacheKey = CassandraUtils.indexKey(core, "cache");
                                    
+                    long timestamp = System.currentTimeMillis();
+
                     RowMutation rm = new RowMutation(CassandraUtils.keySpace, cacheKey);
-                    rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, CassandraUtils.cachedColBytes, CassandraUtils.cachedColBytes), FBUtilities.EMPTY_BYTE_BUFFER, System.currentTimeMillis());                   
+                    IColumn entry = ChangeLog.write(rm, core, timestamp);
+                    
+                    //already told with an earlier entry
+                    if(entry == null)
+                        return;
+                    
+                    rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, CassandraUtils.cachedColBytes, CassandraUtils.cachedColBytes), FBUtilities.EMPTY_BYTE_BUFFER, timestamp);
                     CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+                    
+                    InvalidationService.broadcast(core, entry);
                 }
                 
             });
@@ -263,23 +282,30 @@ public class SolandraIndexWriter extends UpdateHandler
                    
                    String subIndex = core.getName() + "~" + shard;
                   
-                   //Delete all terms/fields/etc
-                   writer.setIndexName(subIndex);
-                   writer.deleteDocuments(term);
-                   
-                   //Delete key -> docId lookup
-                   RowMutation rm = new RowMutation(CassandraUtils.keySpace, keyKey);
-                   rm.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, keyCol), System.currentTimeMillis()-10);
-                   
-                   //Delete docId so it can be reused
-                   //TODO: update shard info with this docid
-                   ByteBuffer idKey = CassandraUtils.hashKeyBytes(subIndex.getBytes(), CassandraUtils.delimeterBytes, "ids".getBytes());
-                   RowMutation rm2 = new RowMutation(CassandraUtils.keySpace, idKey);
-                   rm2.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, sidName), System.currentTimeMillis()-10);
+                   //Readers are told once the id is freed too, or they would find it taken
+                   ChangeLog.hold();
+                   try
+                   {
+                       //Delete all terms/fields/etc
+                       writer.setIndexName(subIndex);
+                       writer.deleteDocuments(term);
                    
-                   CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm, rm2);
+                       //Delete key -> docId lookup
+                       RowMutation rm = new RowMutation(CassandraUtils.keySpace, keyKey);
+                       rm.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, keyCol), System.currentTimeMillis()-10);
                    
+                       //Delete docId so it can be reused
+                       //TODO: update shard info with this docid
+                       ByteBuffer idKey = CassandraUtils.indexKey(subIndex, "ids");
+                       RowMutation rm2 = new RowMutation(CassandraUtils.keySpace, idKey);
+                       rm2.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, sidName), System.currentTimeMillis()-10);
                    
+                       CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm, rm2);
+                   }
+                   finally
+                   {
+                       ChangeLog.release();
+                   }
                    
                    //Notify readers
                    SolandraIndexWriter.flushQueue.add(subIndex);
@@ -406,6 +432,7 @@ public class SolandraIndexWriter extends UpdateHandler
     
     private void clearCache(String core)
     {
+        ChangeLog.recordAll(core);
         SolandraIndexWriter.flushQueue.add(core);
     }
     
@@ -24,6 +24,7 @@ import java.io.IOException;
 import javax.xml.parsers.ParserConfigurationException;
 
 import lucandra.CassandraUtils;
+import lucandra.cluster.InvalidationService;
 
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.solr.core.CoreContainer;
@@ -43,6 +44,9 @@ public class SolandraInitializer extends Initializer {
         //Startup cassandra
         CassandraUtils.startup();  
         
+        //Take invalidations from writers on other nodes
+        InvalidationService.register();
+        
         return cores;
     }
 }
@@ -19,11 +19,29 @@
  */
 package lucandra;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
+import lucandra.cluster.InvalidationService;
+
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.net.MessagingService;
+import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.thrift.SlicePredicate;
 import org.apache.cassandra.thrift.SliceRange;
 import org.apache.cassandra.utils.FBUtilities;
@@ -32,11 +50,19 @@ import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.cjk.CJKAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
 import org.apache.lucene.document.Field.TermVector;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.index.TermPositionVector;
 import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Similarity;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
@@ -46,6 +72,7 @@ import org.apache.lucene.search.highlight.QueryScorer;
 import org.apache.lucene.search.highlight.SimpleFragmenter;
 import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
 import org.apache.lucene.search.highlight.TokenSources;
+import org.apache.lucene.util.OpenBitSet;
 import org.apache.lucene.util.Version;
 
 public class LucandraTests extends TestCase {
@@ -387,4 +414,880 @@ public class LucandraTests extends TestCase {
         }
 
     }
+
+    public void testAddDocuments() throws Exception {
+
+        List<Document> docs = new ArrayList<Document>();
+        int[] docNumbers = new int[50];
+
+        for (int i = 0; i < docNumbers.length; i++) {
+            Document doc = new Document();
+            doc.add(new Field("batch", "common batch" + i, Field.Store.YES, Field.Index.ANALYZED));
+
+            docs.add(doc);
+            docNumbers[i] = docId.incrementAndGet();
+        }
+
+        indexWriter.addDocuments(docs, analyzer, docNumbers);
+
+        IndexReader indexReader = new IndexReader(indexName);
+        IndexSearcher searcher = new IndexSearcher(indexReader);
+        QueryParser qp = new QueryParser(Version.LUCENE_CURRENT, "batch", analyzer);
+
+        TopDocs topDocs = searcher.search(qp.parse("+batch:common"), 10);
+        assertEquals(50, topDocs.totalHits);
+
+        topDocs = searcher.search(qp.parse("+batch:batch7"), 10);
+        assertEquals(1, topDocs.totalHits);
+    }
+
+    public void testAddDocumentsFailure() throws Exception {
+
+        Document good = new Document();
+        good.add(new Field("halfbatch", "kept", Field.Store.YES, Field.Index.ANALYZED));
+
+        Document bad = new Document();
+        bad.add(new Field("halfbatch", new TokenStream() {
+            public boolean incrementToken() throws IOException {
+                throw new IOException("unreadable");
+            }
+        }));
+
+        try {
+            indexWriter.addDocuments(Arrays.asList(good, bad), analyzer, new int[] { docId.incrementAndGet(),
+                    docId.incrementAndGet() });
+            fail("the second document can't be read");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // the next write on this thread commits nothing of the failed batch
+        Document next = new Document();
+        next.add(new Field("halfbatch", "next", Field.Store.YES, Field.Index.ANALYZED));
+        indexWriter.addDocument(next, analyzer, docId.incrementAndGet());
+
+        IndexSearcher searcher = new IndexSearcher(new IndexReader(indexName));
+        assertEquals(0, searcher.search(new TermQuery(new Term("halfbatch", "kept")), 10).totalHits);
+        assertEquals(1, searcher.search(new TermQuery(new Term("halfbatch", "next")), 10).totalHits);
+    }
+
+    public void testParallelAddDocuments() throws Exception {
+
+        List<Document> docs = new ArrayList<Document>();
+        int[] docNumbers = new int[100];
+
+        for (int i = 0; i < docNumbers.length; i++) {
+            Document doc = new Document();
+            doc.add(new Field("parallel", "shared parallel" + i, Field.Store.YES, Field.Index.ANALYZED));
+
+            docs.add(doc);
+            docNumbers[i] = docId.incrementAndGet();
+        }
+
+        ParallelIndexWriter parallelWriter = new ParallelIndexWriter(indexWriter, 4);
+        MutationFlusher.await(parallelWriter.addDocuments(docs, analyzer, docNumbers));
+
+        IndexReader indexReader = new IndexReader(indexName);
+        IndexSearcher searcher = new IndexSearcher(indexReader);
+        QueryParser qp = new QueryParser(Version.LUCENE_CURRENT, "parallel", analyzer);
+
+        TopDocs topDocs = searcher.search(qp.parse("+parallel:shared"), 10);
+        assertEquals(100, topDocs.totalHits);
+
+        topDocs = searcher.search(qp.parse("+parallel:parallel42"), 10);
+        assertEquals(1, topDocs.totalHits);
+        assertEquals("shared parallel42", searcher.doc(topDocs.scoreDocs[0].doc).get("parallel"));
+
+        // the same batch through addDocuments gives the same TI, TL and
+        // Docs rows, column by column
+        List<Document> batch = new ArrayList<Document>();
+        int[] batchNumbers = new int[50];
+
+        for (int i = 0; i < batchNumbers.length; i++) {
+            Document doc = new Document();
+            doc.add(new Field("pbatch", "common text" + (i % 7) + " unique" + i, Field.Store.YES,
+                    Field.Index.ANALYZED, TermVector.WITH_POSITIONS_OFFSETS));
+            doc.add(new Field("pbatchid", "id" + i, Field.Store.YES, Field.Index.NOT_ANALYZED));
+
+            batch.add(doc);
+            batchNumbers[i] = docId.incrementAndGet();
+        }
+
+        Map<ByteBuffer, RowMutation> sequential;
+
+        indexWriter.setAutoCommit(false);
+        try {
+            indexWriter.addDocuments(batch, analyzer, batchNumbers);
+
+            // taken from this thread's list unwritten, so the parallel run
+            // doesn't skip the TL columns of terms already written
+            sequential = new HashMap<ByteBuffer, RowMutation>(indexWriter.getMutationList());
+            indexWriter.getMutationList().clear();
+        } finally {
+            indexWriter.setAutoCommit(true);
+        }
+
+        Map<ByteBuffer, RowMutation> parallel = parallelWriter.invertDocuments(indexName, batch, analyzer,
+                batchNumbers, null);
+        parallelWriter.shutdown();
+
+        assertFalse(sequential.isEmpty());
+        assertEquals(sequential.keySet(), parallel.keySet());
+
+        for (Map.Entry<ByteBuffer, RowMutation> row : sequential.entrySet()) {
+            Map<Integer, ColumnFamily> expected = columnFamilies(row.getValue());
+            Map<Integer, ColumnFamily> actual = columnFamilies(parallel.get(row.getKey()));
+
+            assertEquals(expected.keySet(), actual.keySet());
+
+            for (ColumnFamily cf : expected.values()) {
+                Collection<IColumn> columns = actual.get(cf.id()).getSortedColumns();
+                assertEquals(cf.getSortedColumns().size(), columns.size());
+
+                Iterator<IColumn> it = columns.iterator();
+                for (IColumn column : cf.getSortedColumns()) {
+                    IColumn other = it.next();
+
+                    assertEquals(column.name(), other.name());
+                    assertEquals(column.value(), other.value());
+                    assertEquals(column.isMarkedForDelete(), other.isMarkedForDelete());
+                }
+            }
+        }
+    }
+
+    private static Map<Integer, ColumnFamily> columnFamilies(RowMutation rm) {
+        Map<Integer, ColumnFamily> cfs = new HashMap<Integer, ColumnFamily>();
+
+        for (ColumnFamily cf : rm.getColumnFamilies())
+            cfs.put(cf.id(), cf);
+
+        return cfs;
+    }
+
+    public void testWrittenTermsFilter() throws Exception {
+
+        Document doc = new Document();
+        doc.add(new Field("filtered", "sticky", Field.Store.YES, Field.Index.ANALYZED));
+        indexWriter.addDocument(doc, analyzer, docId.incrementAndGet());
+
+        assertTrue(WrittenTermsFilter.instance.contains(CassandraUtils.fieldKey(indexName, "filtered"), "sticky".getBytes("UTF-8")));
+
+        // the second document skips the TL write but must still be found
+        doc = new Document();
+        doc.add(new Field("filtered", "sticky", Field.Store.YES, Field.Index.ANALYZED));
+        indexWriter.addDocument(doc, analyzer, docId.incrementAndGet());
+
+        IndexReader indexReader = new IndexReader(indexName);
+        IndexSearcher searcher = new IndexSearcher(indexReader);
+        QueryParser qp = new QueryParser(Version.LUCENE_CURRENT, "filtered", analyzer);
+
+        assertEquals(2, searcher.search(qp.parse("+filtered:sticky"), 10).totalHits);
+        assertEquals(2, searcher.search(qp.parse("+filtered:stick*"), 10).totalHits);
+    }
+
+    public void testUpdateDocument() throws Exception {
+
+        int docNumber = docId.incrementAndGet();
+
+        Document doc = new Document();
+        doc.add(new Field("updid", "upd1", Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field("updtitle", "alpha beta", Field.Store.YES, Field.Index.ANALYZED));
+        doc.add(new Field("updbody", "gamma delta", Field.Store.YES, Field.Index.ANALYZED));
+        doc.add(new Field("updold", "stale", Field.Store.YES, Field.Index.ANALYZED));
+        indexWriter.addDocument(doc, analyzer, docNumber);
+
+        // change one field, drop another, keep the rest
+        doc = new Document();
+        doc.add(new Field("updid", "upd1", Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field("updtitle", "alpha epsilon", Field.Store.YES, Field.Index.ANALYZED));
+        doc.add(new Field("updbody", "gamma delta", Field.Store.YES, Field.Index.ANALYZED));
+        indexWriter.updateDocument(new Term("updid", "upd1"), doc, analyzer, docNumber);
+
+        IndexReader indexReader = new IndexReader(indexName);
+        IndexSearcher searcher = new IndexSearcher(indexReader);
+        QueryParser qp = new QueryParser(Version.LUCENE_CURRENT, "updtitle", analyzer);
+
+        assertEquals(0, searcher.search(qp.parse("+updtitle:beta"), 10).totalHits);
+        assertEquals(0, searcher.search(qp.parse("+updold:stale"), 10).totalHits);
+        assertEquals(1, searcher.search(qp.parse("+updtitle:alpha"), 10).totalHits);
+        assertEquals(1, searcher.search(qp.parse("+updbody:gamma"), 10).totalHits);
+
+        TopDocs topDocs = searcher.search(qp.parse("+updtitle:epsilon"), 10);
+        assertEquals(1, topDocs.totalHits);
+
+        Document stored = searcher.doc(topDocs.scoreDocs[0].doc);
+        assertEquals("alpha epsilon", stored.get("updtitle"));
+        assertEquals("gamma delta", stored.get("updbody"));
+        assertNull(stored.get("updold"));
+    }
+
+    public void testTermDocsRead() throws Exception {
+
+        int[] docNumbers = new int[40];
+        for (int i = 0; i < docNumbers.length; i++) {
+            Document doc = new Document();
+            doc.add(new Field("readpos", "common", Field.Store.YES, Field.Index.NOT_ANALYZED));
+
+            docNumbers[i] = docId.incrementAndGet();
+            indexWriter.addDocument(doc, analyzer, docNumbers[i]);
+        }
+
+        IndexReader indexReader = new IndexReader(indexName);
+
+        // read() stops on the last doc it returned, so skipTo() finds the next
+        int[] docs = new int[32];
+        int[] freqs = new int[32];
+
+        TermDocs termDocs = indexReader.termDocs(new Term("readpos", "common"));
+        assertEquals(docs.length, termDocs.read(docs, freqs));
+        assertEquals(docNumbers[docs.length - 1], docs[docs.length - 1]);
+        assertTrue(termDocs.skipTo(docNumbers[docs.length]));
+        assertEquals(docNumbers[docs.length], termDocs.doc());
+    }
+
+    public void testDeleteByQuery() throws Exception {
+
+        // more than a single search page and several delete batches
+        List<Document> docs = new ArrayList<Document>();
+        int[] docNumbers = new int[1100];
+
+        for (int i = 0; i < docNumbers.length; i++) {
+            Document doc = new Document();
+            doc.add(new Field("purge", "purgeme keep" + (i % 2), Field.Store.YES, Field.Index.ANALYZED));
+
+            docs.add(doc);
+            docNumbers[i] = docId.incrementAndGet();
+        }
+
+        indexWriter.addDocuments(docs, analyzer, docNumbers);
+
+        QueryParser qp = new QueryParser(Version.LUCENE_CURRENT, "purge", analyzer);
+        indexWriter.deleteDocuments(qp.parse("+purge:purgeme +purge:keep0"));
+
+        IndexSearcher searcher = new IndexSearcher(new IndexReader(indexName).reopen());
+
+        assertEquals(0, searcher.search(qp.parse("+purge:keep0"), 10).totalHits);
+        assertEquals(550, searcher.search(qp.parse("+purge:keep1"), 10).totalHits);
+    }
+
+    public void testCompressedStoredFields() throws Exception {
+
+        String packedIndex = indexName + "packed";
+
+        // the index name is per thread, shared with the other tests
+        indexWriter.setIndexName(packedIndex);
+        try {
+
+            // written before compression was turned on
+            Document doc = new Document();
+            doc.add(new Field("pkid", "pk1", Field.Store.YES, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("pkbody", text, Field.Store.YES, Field.Index.ANALYZED));
+            indexWriter.addDocument(doc, analyzer, 1);
+
+            StoredFields.setCompressed(packedIndex, true);
+
+            doc = new Document();
+            doc.add(new Field("pkid", "pk2", Field.Store.YES, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("pkbody", text, Field.Store.YES, Field.Index.ANALYZED));
+            doc.add(new Field("pkbody", "second value", Field.Store.YES, Field.Index.ANALYZED));
+            doc.add(new Field("pkbin", new byte[] { 1, 2, 3 }, Field.Store.YES));
+            indexWriter.addDocument(doc, analyzer, 2);
+
+            IndexReader indexReader = new IndexReader(packedIndex);
+            IndexSearcher searcher = new IndexSearcher(indexReader);
+
+            TopDocs topDocs = searcher.search(new TermQuery(new Term("pkid", "pk1")), 10);
+            assertEquals(1, topDocs.totalHits);
+            assertEquals(text, searcher.doc(topDocs.scoreDocs[0].doc).get("pkbody"));
+
+            topDocs = searcher.search(new TermQuery(new Term("pkid", "pk2")), 10);
+            assertEquals(1, topDocs.totalHits);
+
+            Document stored = searcher.doc(topDocs.scoreDocs[0].doc);
+            assertEquals("pk2", stored.get("pkid"));
+            assertEquals(2, stored.getValues("pkbody").length);
+            assertEquals(text, stored.getValues("pkbody")[0]);
+            assertEquals(3, stored.getBinaryValue("pkbin").length);
+
+            // rewriting an uncompressed document packs it
+            doc = new Document();
+            doc.add(new Field("pkid", "pk1", Field.Store.YES, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("pkbody", "changed", Field.Store.YES, Field.Index.ANALYZED));
+            indexWriter.updateDocument(new Term("pkid", "pk1"), doc, analyzer, 1);
+
+            searcher = new IndexSearcher(indexReader.reopen());
+            topDocs = searcher.search(new TermQuery(new Term("pkid", "pk1")), 10);
+            assertEquals(1, topDocs.totalHits);
+
+            stored = searcher.doc(topDocs.scoreDocs[0].doc);
+            assertEquals("changed", stored.get("pkbody"));
+            assertEquals(1, stored.getValues("pkbody").length);
+            assertEquals("pk1", stored.get("pkid"));
+        } finally {
+            indexWriter.setIndexName(indexName);
+        }
+    }
+
+    public void testStoredValues() throws Exception {
+
+        Document doc = new Document();
+        doc.add(new Field("svid", "sv1", Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field("svtext", "one\uffffvalue", Field.Store.YES, Field.Index.NO));
+        doc.add(new Field("svmulti", "first", Field.Store.YES, Field.Index.NO));
+        doc.add(new Field("svmulti", new byte[] { 1, 2 }, Field.Store.YES));
+        doc.add(new Field("svmulti", "third", Field.Store.YES, Field.Index.NO));
+        indexWriter.addDocument(doc, analyzer, docId.incrementAndGet());
+
+        IndexSearcher searcher = new IndexSearcher(new IndexReader(indexName).reopen());
+
+        TopDocs topDocs = searcher.search(new TermQuery(new Term("svid", "sv1")), 10);
+        assertEquals(1, topDocs.totalHits);
+
+        // fields are only decoded when used
+        Document stored = searcher.doc(topDocs.scoreDocs[0].doc, new FieldSelector() {
+            public FieldSelectorResult accept(String fieldName) {
+                return FieldSelectorResult.LAZY_LOAD;
+            }
+        });
+
+        assertTrue(stored.getFieldable("svtext") instanceof LazyStoredField);
+        assertEquals("one\uffffvalue", stored.get("svtext"));
+        assertEquals(3, stored.getFieldables("svmulti").length);
+        assertTrue(Arrays.equals(new byte[] { 1, 2 }, stored.getBinaryValue("svmulti")));
+
+        // lazy documents are not cached, this reads the row again
+        stored = searcher.doc(topDocs.scoreDocs[0].doc);
+        assertEquals("one\uffffvalue", stored.get("svtext"));
+        assertEquals(3, stored.getFields("svmulti").length);
+        assertEquals("first", stored.getValues("svmulti")[0]);
+        assertEquals("third", stored.getValues("svmulti")[1]);
+        assertTrue(Arrays.equals(new byte[] { 1, 2 }, stored.getBinaryValue("svmulti")));
+    }
+
+    public void testTermEnum() throws Exception {
+
+        // several chunks of term names
+        List<Document> docs = new ArrayList<Document>();
+        int[] docNumbers = new int[100];
+
+        for (int i = 0; i < docNumbers.length; i++) {
+            Document doc = new Document();
+            doc.add(new Field("enumterm", "term" + (1000 + i), Field.Store.NO, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("enumterm", "shared", Field.Store.NO, Field.Index.NOT_ANALYZED));
+
+            docs.add(doc);
+            docNumbers[i] = docId.incrementAndGet();
+        }
+
+        indexWriter.addDocuments(docs, analyzer, docNumbers);
+
+        IndexReader indexReader = new IndexReader(indexName);
+
+        TermEnum terms = indexReader.terms(new Term("enumterm", "term"));
+        int count = 0;
+        String last = null;
+        do {
+            Term term = terms.term();
+            if (!term.text().startsWith("term"))
+                break;
+
+            if (last != null)
+                assertTrue(last.compareTo(term.text()) < 0);
+
+            assertEquals(1, terms.docFreq());
+            last = term.text();
+            count++;
+        } while (terms.next());
+
+        assertEquals(100, count);
+        assertEquals("term1099", last);
+
+        assertEquals(1, indexReader.docFreq(new Term("enumterm", "term1050")));
+        assertEquals(100, indexReader.docFreq(new Term("enumterm", "shared")));
+        assertEquals(0, indexReader.docFreq(new Term("enumterm", "term1050x")));
+
+        IndexSearcher searcher = new IndexSearcher(indexReader);
+        assertEquals(10, searcher.search(new PrefixQuery(new Term("enumterm", "term104")), 100).totalHits);
+    }
+
+    public void testPagedPostings() throws Exception {
+
+        int pages = 2;
+        int[] docNumbers = new int[PostingsCursor.pageSize * pages + 10];
+        List<Document> docs = new ArrayList<Document>();
+
+        for (int i = 0; i < docNumbers.length; i++) {
+            Document doc = new Document();
+            doc.add(new Field("paged", "common", Field.Store.NO, Field.Index.NOT_ANALYZED));
+
+            docs.add(doc);
+            docNumbers[i] = docId.incrementAndGet();
+        }
+
+        indexWriter.addDocuments(docs, analyzer, docNumbers);
+
+        Term common = new Term("paged", "common");
+        IndexReader indexReader = new IndexReader(indexName);
+
+        assertEquals(docNumbers.length, indexReader.docFreq(common));
+
+        TermDocs termDocs = indexReader.termDocs(common);
+        int count = 0;
+        int last = -1;
+        while (termDocs.next()) {
+            assertTrue(termDocs.doc() > last);
+            last = termDocs.doc();
+            count++;
+        }
+        assertEquals(docNumbers.length, count);
+
+        // skip within the first page, then past it
+        termDocs = indexReader.termDocs(common);
+        assertTrue(termDocs.skipTo(docNumbers[5]));
+        assertEquals(docNumbers[5], termDocs.doc());
+        assertTrue(termDocs.skipTo(docNumbers[PostingsCursor.pageSize + 7]));
+        assertEquals(docNumbers[PostingsCursor.pageSize + 7], termDocs.doc());
+        assertTrue(termDocs.next());
+        assertEquals(docNumbers[PostingsCursor.pageSize + 8], termDocs.doc());
+        assertFalse(termDocs.skipTo(docNumbers[docNumbers.length - 1] + 1));
+
+        // bulk reads cross pages too
+        termDocs = indexReader.termDocs(common);
+        int[] readDocs = new int[PostingsCursor.pageSize - 3];
+        int[] readFreqs = new int[readDocs.length];
+        count = 0;
+        for (int n; (n = termDocs.read(readDocs, readFreqs)) > 0; count += n) {
+            for (int i = 0; i < n; i++)
+                assertEquals(docNumbers[count + i], readDocs[i]);
+        }
+        assertEquals(docNumbers.length, count);
+
+        IndexSearcher searcher = new IndexSearcher(indexReader);
+        assertEquals(docNumbers.length, searcher.search(new TermQuery(common), 10).totalHits);
+
+        // the first page stays cached with the reader like whole postings do
+        indexWriter.deleteDocuments(common);
+        searcher = new IndexSearcher(indexReader.reopen());
+        assertEquals(0, searcher.search(new TermQuery(common), 10).totalHits);
+    }
+
+    public void testNorms() throws Exception {
+
+        int doc = docId.incrementAndGet();
+
+        Document d = new Document();
+        Field first = new Field("nmbody", "one two three", Field.Store.NO, Field.Index.ANALYZED);
+        first.setBoost(2.0f);
+        d.add(first);
+        d.add(new Field("nmbody", "four", Field.Store.NO, Field.Index.ANALYZED));
+        d.add(new Field("nmplain", "one two", Field.Store.NO, Field.Index.ANALYZED_NO_NORMS));
+        indexWriter.addDocument(d, analyzer, doc);
+
+        // whole before any postings of the field are read
+        IndexReader indexReader = new IndexReader(indexName);
+
+        byte[] norms = indexReader.norms("nmbody");
+        assertEquals(indexReader.maxDoc(), norms.length);
+        assertEquals(Similarity.encodeNorm(2.0f * Similarity.getDefault().lengthNorm("nmbody", 4)), norms[doc]);
+        assertEquals(Similarity.encodeNorm(1.0f), indexReader.norms("nmplain")[doc]);
+
+        byte[] copy = new byte[norms.length + 1];
+        indexReader.norms("nmbody", copy, 1);
+        assertEquals(norms[doc], copy[doc + 1]);
+
+        // and the same array once postings are
+        assertEquals(1, new IndexSearcher(indexReader).search(new TermQuery(new Term("nmbody", "four")), 10).totalHits);
+        assertSame(norms, indexReader.norms("nmbody"));
+    }
+
+    public void testBlockPostings() throws Exception {
+
+        String blocksIndex = indexName + "blocks";
+
+        // the index name is per thread, shared with the other tests
+        indexWriter.setIndexName(blocksIndex);
+        BlockPostings.setEnabled(blocksIndex, true);
+        try {
+
+            int[] docNumbers = new int[PostingsCursor.pageSize + BlockPostings.blockSize * 2 + 5];
+            List<Document> docs = new ArrayList<Document>();
+
+            for (int i = 0; i < docNumbers.length; i++) {
+                Document doc = new Document();
+                doc.add(new Field("bpid", "bp" + i, Field.Store.YES, Field.Index.NOT_ANALYZED));
+                doc.add(new Field("bpbody", "alpha beta alpha", Field.Store.NO, Field.Index.ANALYZED,
+                        TermVector.WITH_POSITIONS_OFFSETS));
+
+                docs.add(doc);
+                docNumbers[i] = i + 1;
+            }
+
+            indexWriter.addDocuments(docs, analyzer, docNumbers);
+
+            Term alpha = new Term("bpbody", "alpha");
+            assertEquals(docNumbers.length, indexWriter.packPostings(alpha));
+
+            IndexReader indexReader = new IndexReader(blocksIndex);
+            IndexSearcher searcher = new IndexSearcher(indexReader);
+
+            assertEquals(docNumbers.length, indexReader.docFreq(alpha));
+            assertEquals(docNumbers.length, searcher.search(new TermQuery(alpha), 10).totalHits);
+            assertEquals(docNumbers.length, searcher.search(new QueryParser(Version.LUCENE_CURRENT, "bpbody", analyzer)
+                    .parse("\"alpha beta\""), 10).totalHits);
+
+            // term vectors find their postings in the blocks
+            TermPositionVector vector = (TermPositionVector) indexReader.getTermFreqVector(5, "bpbody");
+            int slot = Arrays.asList(vector.getTerms()).indexOf("alpha");
+            assertTrue(Arrays.equals(new int[] { 1, 3 }, vector.getTermPositions(slot)));
+            assertEquals(2, vector.getOffsets(slot).length);
+
+            // skip into a later block, then past the first page of them
+            TermDocs termDocs = indexReader.termDocs(alpha);
+            assertTrue(termDocs.skipTo(BlockPostings.blockSize * 2 + 3));
+            assertEquals(BlockPostings.blockSize * 2 + 3, termDocs.doc());
+            assertEquals(2, termDocs.freq());
+            assertTrue(termDocs.skipTo(docNumbers.length - 2));
+            assertEquals(docNumbers.length - 2, termDocs.doc());
+
+            termDocs = indexReader.termDocs(alpha);
+            int count = 0;
+            for (int last = 0; termDocs.next(); count++) {
+                assertTrue(termDocs.doc() > last);
+                last = termDocs.doc();
+            }
+            assertEquals(docNumbers.length, count);
+
+            // written and deleted after packing, read over the blocks
+            Document doc = new Document();
+            doc.add(new Field("bpid", "bpnew", Field.Store.YES, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("bpbody", "alpha", Field.Store.NO, Field.Index.ANALYZED));
+            indexWriter.addDocument(doc, analyzer, docNumbers.length + 1);
+
+            indexWriter.deleteDocuments(new Term("bpid", "bp3"));
+
+            // a packed term hides the doc even once packing is switched off
+            BlockPostings.setEnabled(blocksIndex, false);
+            indexWriter.deleteDocuments(new Term("bpid", "bp4"));
+            BlockPostings.setEnabled(blocksIndex, true);
+
+            // terms that were never packed get tombstones
+            ByteBuffer bp3 = ByteBuffer.wrap(CassandraUtils.writeVInt(4));
+            ColumnFamily beta = CassandraUtils.robustRead(CassandraUtils.termKey(blocksIndex, new Term("bpbody", "beta")),
+                    new QueryPath(CassandraUtils.termVecColumnFamily), Arrays.asList(bp3), ConsistencyLevel.ONE).get(0).cf;
+            assertTrue(beta == null || beta.getColumn(bp3) == null || !beta.getColumn(bp3).isLive());
+
+            searcher = new IndexSearcher(indexReader.reopen());
+            assertEquals(docNumbers.length - 1, searcher.search(new TermQuery(alpha), 10).totalHits);
+            // the doc count of the blocks, plus the doc written since, less the two hidden in blocks
+            assertEquals(docNumbers.length - 1, searcher.getIndexReader().docFreq(alpha));
+            assertEquals(0, searcher.search(new TermQuery(new Term("bpid", "bp3")), 10).totalHits);
+            assertEquals(0, searcher.search(new TermQuery(new Term("bpid", "bp4")), 10).totalHits);
+
+            // packing again folds them in
+            assertEquals(docNumbers.length - 1, indexWriter.packPostings(alpha));
+
+            indexReader = indexReader.reopen();
+            searcher = new IndexSearcher(indexReader);
+            assertEquals(docNumbers.length - 1, indexReader.docFreq(alpha));
+            assertEquals(docNumbers.length - 1, searcher.search(new TermQuery(alpha), 10).totalHits);
+
+            TopDocs topDocs = searcher.search(new TermQuery(new Term("bpid", "bpnew")), 10);
+            assertEquals(1, topDocs.totalHits);
+            assertTrue(indexReader.termDocs(alpha).skipTo(topDocs.scoreDocs[0].doc));
+
+            // a filter on a packed term reads the blocks holding the docs hit
+            LucandraFilter filter = new LucandraFilter();
+            filter.addTerm(alpha);
+            assertEquals(docNumbers.length - 1, searcher.search(new TermQuery(alpha), filter, 10).totalHits);
+            assertEquals(1, searcher.search(new TermQuery(new Term("bpid", "bpnew")), filter, 10).totalHits);
+        } finally {
+            BlockPostings.setEnabled(blocksIndex, false);
+            indexWriter.setIndexName(indexName);
+        }
+    }
+
+    public void testChangeLog() throws Exception {
+
+        String changesIndex = indexName + "changes";
+
+        indexWriter.setIndexName(changesIndex);
+        ChangeLog.setEnabled(true);
+        try {
+            Document doc = new Document();
+            doc.add(new Field("clid", "cl1", Field.Store.YES, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("clbody", "alpha", Field.Store.YES, Field.Index.ANALYZED));
+            doc.add(new Field("clkind", "first", Field.Store.NO, Field.Index.NOT_ANALYZED));
+            indexWriter.addDocument(doc, analyzer, 1);
+
+            doc = new Document();
+            doc.add(new Field("clid", "cl2", Field.Store.YES, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("clbody", "beta", Field.Store.YES, Field.Index.ANALYZED));
+            indexWriter.addDocument(doc, analyzer, 2);
+
+            long since = System.currentTimeMillis();
+            ChangeLog.write(new RowMutation(CassandraUtils.keySpace, CassandraUtils.indexKey(changesIndex, "cache")),
+                    changesIndex, since);
+
+            IndexReader indexReader = new IndexReader(changesIndex);
+            IndexSearcher searcher = new IndexSearcher(indexReader);
+
+            Term alpha = new Term("clbody", "alpha");
+            Term beta = new Term("clbody", "beta");
+            assertEquals(1, searcher.search(new TermQuery(alpha), 10).totalHits);
+            assertEquals(1, searcher.search(new TermQuery(beta), 10).totalHits);
+            assertEquals("cl2", indexReader.document(2).get("clid"));
+
+            Term kind = new Term("clkind", "first");
+            assertEquals(1, indexReader.docFreq(kind));
+            LucandraTermEnum untouched = indexReader.checkTermCache(kind);
+            assertNotNull(untouched);
+
+            // one more beta doc and a changed doc 2, logged and then read back
+            doc = new Document();
+            doc.add(new Field("clid", "cl3", Field.Store.YES, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("clbody", "beta", Field.Store.YES, Field.Index.ANALYZED));
+            indexWriter.addDocument(doc, analyzer, 3);
+
+            doc = new Document();
+            doc.add(new Field("clid", "cl2", Field.Store.YES, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("clbody", "beta gamma", Field.Store.YES, Field.Index.ANALYZED));
+            indexWriter.updateDocument(new Term("clid", "cl2"), doc, analyzer, 2);
+
+            RowMutation rm = new RowMutation(CassandraUtils.keySpace, CassandraUtils.indexKey(changesIndex, "cache"));
+            ChangeLog.write(rm, changesIndex, System.currentTimeMillis());
+            CassandraUtils.robustInsert(ConsistencyLevel.ONE, rm);
+
+            ChangeLog.Changes changes = ChangeLog.read(changesIndex, since, ConsistencyLevel.ONE);
+            assertNotNull(changes);
+            assertTrue(changes.docs.contains(2));
+            assertTrue(changes.docs.contains(3));
+            assertTrue(changes.terms.contains(beta));
+            assertFalse(changes.terms.contains(kind));
+
+            // the stale reader still sees what it cached
+            assertEquals(1, searcher.search(new TermQuery(beta), 10).totalHits);
+
+            indexReader.invalidate(changes);
+
+            assertEquals(2, searcher.search(new TermQuery(beta), 10).totalHits);
+            assertEquals(1, searcher.search(new TermQuery(new Term("clbody", "gamma")), 10).totalHits);
+            assertEquals("beta gamma", indexReader.document(2).get("clbody"));
+            assertSame(untouched, indexReader.checkTermCache(kind));
+
+            // nothing changed since, nothing to write
+            rm = new RowMutation(CassandraUtils.keySpace, CassandraUtils.indexKey(changesIndex, "cache"));
+            assertNull(ChangeLog.write(rm, changesIndex, System.currentTimeMillis()));
+
+            // held back until released
+            ChangeLog.hold();
+            try {
+                indexWriter.deleteDocuments(new Term("clid", "cl3"));
+                assertNull(ChangeLog.write(rm, changesIndex, System.currentTimeMillis()));
+            } finally {
+                ChangeLog.release();
+            }
+            assertNotNull(ChangeLog.write(rm, changesIndex, System.currentTimeMillis()));
+
+            // a log that can not tell what changed
+            ChangeLog.recordAll(changesIndex);
+            rm = new RowMutation(CassandraUtils.keySpace, CassandraUtils.indexKey(changesIndex, "cache"));
+            assertNotNull(ChangeLog.write(rm, changesIndex, System.currentTimeMillis()));
+            CassandraUtils.robustInsert(ConsistencyLevel.ONE, rm);
+
+            assertNull(ChangeLog.read(changesIndex, since, ConsistencyLevel.ONE));
+            assertNull(ChangeLog.read(changesIndex, since - ChangeLog.ttl * 1000L - 1, ConsistencyLevel.ONE));
+        } finally {
+            ChangeLog.setEnabled(false);
+            indexWriter.setIndexName(indexName);
+        }
+    }
+
+    public void testInvalidationService() throws Exception {
+
+        String pushedIndex = indexName + "pushed";
+
+        indexWriter.setIndexName(pushedIndex);
+        ChangeLog.setEnabled(true);
+        InvalidationService.register();
+        try {
+            Document doc = new Document();
+            doc.add(new Field("pubody", "alpha", Field.Store.YES, Field.Index.ANALYZED));
+            indexWriter.addDocument(doc, analyzer, 1);
+
+            long since = System.currentTimeMillis();
+            ChangeLog.write(new RowMutation(CassandraUtils.keySpace, CassandraUtils.indexKey(pushedIndex, "cache")),
+                    pushedIndex, since);
+
+            IndexReader indexReader = new IndexReader(pushedIndex);
+            IndexSearcher searcher = new IndexSearcher(indexReader);
+
+            Term beta = new Term("pubody", "beta");
+            assertEquals(1, searcher.search(new TermQuery(new Term("pubody", "alpha")), 10).totalHits);
+            assertEquals(0, searcher.search(new TermQuery(beta), 10).totalHits);
+
+            // written on this node
+            doc = new Document();
+            doc.add(new Field("pubody", "beta", Field.Store.YES, Field.Index.ANALYZED));
+            indexWriter.addDocument(doc, analyzer, 2);
+
+            RowMutation rm = new RowMutation(CassandraUtils.keySpace, CassandraUtils.indexKey(pushedIndex, "cache"));
+            IColumn entry = ChangeLog.write(rm, pushedIndex, System.currentTimeMillis());
+            CassandraUtils.robustInsert(ConsistencyLevel.ONE, rm);
+            InvalidationService.broadcast(pushedIndex, entry);
+
+            assertEquals(1, searcher.search(new TermQuery(beta), 10).totalHits);
+
+            // the poll skips what was pushed
+            assertTrue(ChangeLog.read(pushedIndex, since, ConsistencyLevel.ONE).isEmpty());
+
+            // and on another
+            doc = new Document();
+            doc.add(new Field("pubody", "beta", Field.Store.YES, Field.Index.ANALYZED));
+            indexWriter.addDocument(doc, analyzer, 3);
+
+            rm = new RowMutation(CassandraUtils.keySpace, CassandraUtils.indexKey(pushedIndex, "cache"));
+            entry = ChangeLog.write(rm, pushedIndex, System.currentTimeMillis());
+            CassandraUtils.robustInsert(ConsistencyLevel.ONE, rm);
+
+            MessagingService.instance.getVerbHandler(StorageService.Verb.BINARY).doVerb(
+                    InvalidationService.message(pushedIndex, entry));
+
+            int hits = 0;
+            for (int i = 0; i < 50 && hits < 2; i++) {
+                Thread.sleep(100);
+                hits = searcher.search(new TermQuery(beta), 10).totalHits;
+            }
+            assertEquals(2, hits);
+            assertTrue(ChangeLog.read(pushedIndex, since, ConsistencyLevel.ONE).isEmpty());
+        } finally {
+            ChangeLog.setEnabled(false);
+            indexWriter.setIndexName(indexName);
+        }
+    }
+
+    public void testAllTermDocs() throws Exception {
+
+        String idsIndex = indexName + "ids";
+        ByteBuffer idsKey = CassandraUtils.indexKey(idsIndex, "ids");
+        ByteBuffer token = ByteBuffer.wrap("token".getBytes());
+
+        // taken ids as CassandraIndexManager writes them, and a reserved one
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, idsKey);
+        for (int id : new int[] { 1, 2, 10, 300 })
+            rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, ByteBuffer.wrap(String.valueOf(id).getBytes()),
+                    token), ByteBuffer.wrap(("key" + id).getBytes()), System.currentTimeMillis());
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, ByteBuffer.wrap("3".getBytes()), token), ByteBuffer
+                .wrap("3".getBytes()), System.currentTimeMillis(), 60);
+        CassandraUtils.robustInsert(ConsistencyLevel.ONE, rm);
+
+        IndexReader indexReader = new IndexReader(idsIndex);
+
+        assertEquals(4, new IndexSearcher(indexReader).search(new MatchAllDocsQuery(), 10).totalHits);
+
+        TermDocs termDocs = indexReader.termDocs(null);
+        assertTrue(termDocs.skipTo(3));
+        assertEquals(10, termDocs.doc());
+        assertTrue(termDocs.next());
+        assertEquals(300, termDocs.doc());
+        assertFalse(termDocs.next());
+
+        int[] docs = new int[3];
+        int[] freqs = new int[3];
+        termDocs = indexReader.termDocs(null);
+        assertEquals(3, termDocs.read(docs, freqs));
+        assertTrue(Arrays.equals(new int[] { 1, 2, 10 }, docs));
+        assertEquals(1, termDocs.read(docs, freqs));
+        assertEquals(300, docs[0]);
+
+        // updated for what changed only
+        OpenBitSet liveDocs = indexReader.getLiveDocs();
+        assertSame(liveDocs, indexReader.getLiveDocs());
+
+        rm = new RowMutation(CassandraUtils.keySpace, idsKey);
+        rm.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, ByteBuffer.wrap("2".getBytes())), System
+                .currentTimeMillis());
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, ByteBuffer.wrap("3".getBytes()), token), ByteBuffer
+                .wrap("key3".getBytes()), System.currentTimeMillis());
+        CassandraUtils.robustInsert(ConsistencyLevel.ONE, rm);
+
+        ChangeLog.Changes changes = new ChangeLog.Changes();
+        changes.add(2, Arrays.asList(new Term("id", "key2")));
+        changes.add(3, Arrays.asList(new Term("id", "key3")));
+        indexReader.invalidate(changes);
+
+        assertNotSame(liveDocs, indexReader.getLiveDocs());
+        assertTrue(liveDocs.get(2));
+        assertFalse(indexReader.getLiveDocs().get(2));
+        assertTrue(indexReader.getLiveDocs().get(3));
+        assertEquals(4, new IndexSearcher(indexReader).search(new MatchAllDocsQuery(), 10).totalHits);
+    }
+
+    public void testLucandraFilterCache() throws Exception {
+
+        String filterIndex = indexName + "filters";
+
+        indexWriter.setIndexName(filterIndex);
+        try {
+            for (int i = 1; i <= 20; i++) {
+                Document doc = new Document();
+                doc.add(new Field("fbody", "match", Field.Store.NO, Field.Index.ANALYZED));
+                doc.add(new Field("fcolor", i % 2 == 0 ? "red" : "blue", Field.Store.NO, Field.Index.NOT_ANALYZED));
+                doc.add(new Field("fsize", i % 4 == 0 ? "large" : "small", Field.Store.NO, Field.Index.NOT_ANALYZED));
+                indexWriter.addDocument(doc, analyzer, i);
+            }
+
+            IndexReader indexReader = new IndexReader(filterIndex);
+            IndexSearcher searcher = new IndexSearcher(indexReader);
+            Query q = new TermQuery(new Term("fbody", "match"));
+
+            // all of the terms
+            LucandraFilter filter = new LucandraFilter();
+            filter.addTerm(new Term("fcolor", "red"));
+            filter.addTerm(new Term("fsize", "large"));
+            assertEquals(5, searcher.search(q, filter, 10).totalHits);
+
+            ReaderCache.Stats stats = indexReader.getCache().filterStats;
+            long misses = stats.getMisses();
+
+            // the same terms, in any order, come from the cache
+            filter = new LucandraFilter();
+            filter.addTerm(new Term("fsize", "large"));
+            filter.addTerm(new Term("fcolor", "red"));
+            assertEquals(5, searcher.search(q, filter, 10).totalHits);
+            assertEquals(misses, stats.getMisses());
+            assertTrue(stats.getHits() > 0);
+
+            // callers get their own copy of a cached result
+            OpenBitSet bits = (OpenBitSet) filter.getDocIdSet(indexReader);
+            bits.clear(0, bits.size());
+            assertEquals(5, searcher.search(q, filter, 10).totalHits);
+
+            filter = new LucandraFilter();
+            filter.addTerm(new Term("fcolor", "blue"));
+            filter.addTerm(new Term("fsize", "large"));
+            assertEquals(0, searcher.search(q, filter, 10).totalHits);
+
+            // a changed term drops the results holding it
+            Document doc = new Document();
+            doc.add(new Field("fbody", "match", Field.Store.NO, Field.Index.ANALYZED));
+            doc.add(new Field("fcolor", "red", Field.Store.NO, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("fsize", "large", Field.Store.NO, Field.Index.NOT_ANALYZED));
+            indexWriter.addDocument(doc, analyzer, 21);
+
+            ChangeLog.Changes changes = new ChangeLog.Changes();
+            changes.add(21, Arrays.asList(new Term("fbody", "match"), new Term("fcolor", "red"), new Term("fsize",
+                    "large")));
+            indexReader.invalidate(changes);
+
+            assertTrue(indexReader.getCache().filters.isEmpty());
+
+            filter = new LucandraFilter();
+            filter.addTerm(new Term("fcolor", "red"));
+            filter.addTerm(new Term("fsize", "large"));
+            assertEquals(6, searcher.search(q, filter, 10).totalHits);
+        } finally {
+            indexWriter.setIndexName(indexName);
+        }
+    }
 }
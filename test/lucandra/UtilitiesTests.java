@@ -19,10 +19,36 @@
  */
 package lucandra;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.TestCase;
 
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.DeletedColumn;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.marshal.BytesType;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.Term;
+
 
 public class UtilitiesTests extends TestCase 
 {   
@@ -32,4 +58,586 @@ public class UtilitiesTests extends TestCase
         
         assertEquals(1977, CassandraUtils.readVInt(ibytes));
     }
+
+    public void testTermHash()
+    {
+        TermHash hash = new TermHash();
+        hash.reset("body");
+
+        String[] tokens = { "foo", "bar", "foo", "baz", "foo" };
+        for (int i = 0; i < tokens.length; i++)
+        {
+            int slot = hash.add(tokens[i]);
+            hash.addPosition(slot, i + 1);
+            hash.addOffsets(slot, i * 4, i * 4 + 3);
+        }
+
+        assertEquals(3, hash.size());
+        assertEquals("foo", hash.term(0).text());
+        assertEquals(3, hash.freq(0));
+
+        Map<ByteBuffer, List<Number>> data = new HashMap<ByteBuffer, List<Number>>();
+        data.put(CassandraUtils.termFrequencyKeyBytes, Arrays.asList(new Number[] { 3 }));
+        data.put(CassandraUtils.positionVectorKeyBytes, Arrays.asList(new Number[] { 1, 3, 5 }));
+        data.put(CassandraUtils.offsetVectorKeyBytes, Arrays.asList(new Number[] { 0, 3, 8, 11, 16, 19 }));
+        data.put(CassandraUtils.normsKeyBytes, Arrays.asList(new Number[] { (byte) 7 }));
+
+        assertEquals(new LucandraTermInfo(10, data).serialize(), hash.termInfo(0, 10, (byte) 7).serialize());
+
+        // reuse keeps nothing from the previous field
+        hash.reset("title");
+        assertEquals(0, hash.size());
+        assertEquals(0, hash.add("foo"));
+        assertEquals("title", hash.term(0).field());
+        assertEquals(1, hash.freq(0));
+    }
+
+    public void testDocumentMetadata() throws Exception
+    {
+        List<Term> terms = Arrays.asList(new Term("body", "foo"), new Term("body", "\u5639\u563b"), new Term("title", "foo"),
+                new Term("body", ""));
+
+        ByteBuffer bytes = new DocumentMetadata(terms).serialize();
+
+        assertEquals(DocumentMetadata.VERSION_2, bytes.get(0));
+        assertEquals(terms, DocumentMetadata.deserialize(bytes).terms);
+
+        Map<String, byte[]> digests = new HashMap<String, byte[]>();
+        digests.put("title", new byte[] { 1, 2, 3 });
+        digests.put("empty", new byte[] { 4 });
+
+        DocumentMetadata meta = DocumentMetadata.deserialize(new DocumentMetadata(terms, digests).serialize());
+        assertEquals(terms, meta.terms);
+        assertEquals(2, meta.fieldDigests.size());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, meta.fieldDigests.get("title")));
+        assertTrue(Arrays.equals(new byte[] { 4 }, meta.fieldDigests.get("empty")));
+
+        // version 1 is version 2 without the digest count
+        ByteBuffer v1 = ByteBuffer.allocate(bytes.remaining() - 1);
+        v1.put(bytes.array(), bytes.arrayOffset(), v1.capacity());
+        v1.put(0, DocumentMetadata.VERSION_1);
+        v1.flip();
+
+        meta = DocumentMetadata.deserialize(v1);
+        assertEquals(terms, meta.terms);
+        assertTrue(meta.fieldDigests.isEmpty());
+
+        // rows written with java serialization are still readable
+        assertEquals(terms, DocumentMetadata.deserialize(CassandraUtils.toBytes(new ArrayList<Term>(terms))).terms);
+    }
+
+    public void testPackedStoredFields() throws Exception
+    {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            body.append("compressible text ");
+
+        Map<String, byte[]> fields = new HashMap<String, byte[]>();
+        fields.put("body", body.toString().getBytes("UTF-8"));
+        fields.put("\u5639\u563b", new byte[] { 1, 2, Byte.MAX_VALUE });
+
+        ByteBuffer packed = StoredFields.pack(fields);
+        assertEquals(StoredFields.DEFLATE, packed.get(packed.position()));
+        assertTrue(packed.remaining() < body.length());
+
+        Map<String, ByteBuffer> unpacked = StoredFields.unpack(packed);
+        assertEquals(fields.keySet(), unpacked.keySet());
+        for (Map.Entry<String, byte[]> field : fields.entrySet())
+            assertEquals(ByteBuffer.wrap(field.getValue()), unpacked.get(field.getKey()));
+
+        // too small to deflate
+        fields.remove("body");
+        packed = StoredFields.pack(fields);
+        assertEquals(StoredFields.RAW, packed.get(packed.position()));
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, Byte.MAX_VALUE }), StoredFields.unpack(packed).get("\u5639\u563b"));
+
+        // the column is read with the rest of the document
+        assertTrue(BytesType.instance.compare(CassandraUtils.packedFieldsColumnBytes, CassandraUtils.finalTokenBytes) < 0);
+
+        StoredFields.setCompressed("packed", true);
+        assertTrue(StoredFields.isCompressed("packed"));
+        assertTrue(StoredFields.isCompressed("packed~3"));
+        assertFalse(StoredFields.isCompressed("unpacked"));
+    }
+
+    public void testStoredValues() throws Exception
+    {
+        byte[] string = StoredFields.encode(new Field("f", "a\uffffb", Field.Store.YES, Field.Index.NO));
+        byte[] binary = StoredFields.encode(new Field("f", new byte[] { 9, 8, 7, 6 }, 1, 2, Field.Store.YES));
+
+        assertEquals(StoredFields.STRING_VALUE, string[string.length - 1]);
+        assertTrue(Arrays.equals(new byte[] { 8, 7, StoredFields.BINARY_VALUE }, binary));
+
+        // single values are stored as is, unless old readers would split them
+        assertSame(binary, StoredFields.join(Arrays.asList(binary)));
+
+        byte[] joined = StoredFields.join(Arrays.asList(string));
+        assertEquals(StoredFields.MULTI_VALUE, joined[joined.length - 1]);
+        assertEquals(Arrays.asList(ByteBuffer.wrap(string)), StoredFields.split(ByteBuffer.wrap(joined)));
+
+        joined = StoredFields.join(Arrays.asList(string, binary, string));
+        assertEquals(Arrays.asList(ByteBuffer.wrap(string), ByteBuffer.wrap(binary), ByteBuffer.wrap(string)),
+                StoredFields.split(ByteBuffer.wrap(joined)));
+
+        // lazy fields serialize their value, not the column bytes
+        Document doc = new Document();
+        doc.add(new LazyStoredField("s", ByteBuffer.wrap("lazy".getBytes("UTF-8")), false));
+        doc.add(new LazyStoredField("b", ByteBuffer.wrap(new byte[] { 1, 2, 3 }), true));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ObjectOutputStream(bytes).writeObject(doc);
+        Document read = (Document) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals("lazy", read.get("s"));
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, read.getBinaryValue("b")));
+    }
+
+    public void testTermInfoSerialization()
+    {
+        int[] positions = { 3, 17, 200000 };
+        int[] offsets = { 10, 15, 80, 85, 1200000, 1200005 };
+
+        LucandraTermInfo info = new LucandraTermInfo(5, 3, positions, offsets, (byte) 4);
+        ByteBuffer bytes = info.serialize();
+
+        assertEquals(bytes.capacity(), bytes.remaining());
+
+        LucandraTermInfo read = new LucandraTermInfo(5, bytes);
+        assertEquals(3, read.freq);
+        assertEquals(Byte.valueOf((byte) 4), read.norm);
+        assertTrue(Arrays.equals(positions, read.getPositions()));
+        assertTrue(Arrays.equals(offsets, read.getOffsets()));
+
+        // offsets without positions
+        read = new LucandraTermInfo(5, new LucandraTermInfo(5, 3, null, offsets, null).serialize());
+        assertFalse(read.hasPositions);
+        assertTrue(Arrays.equals(offsets, read.getOffsets()));
+
+        // postings written with absolute values
+        ByteBuffer legacy = ByteBuffer.allocate(32);
+        legacy.put((byte) 6);
+        legacy.put(CassandraUtils.writeVInt(2));
+        legacy.put(CassandraUtils.writeVInt(3));
+        legacy.put(CassandraUtils.writeVInt(17));
+        legacy.put(CassandraUtils.writeVInt(4));
+        for (int i = 0; i < 4; i++)
+            legacy.put(CassandraUtils.writeVInt(offsets[i]));
+        legacy.flip();
+
+        read = new LucandraTermInfo(5, legacy);
+        assertTrue(Arrays.equals(new int[] { 3, 17 }, read.getPositions()));
+        assertTrue(Arrays.equals(new int[] { 10, 15, 80, 85 }, read.getOffsets()));
+
+        // a posting inside a larger buffer, decoded in place
+        ByteBuffer outer = ByteBuffer.allocate(bytes.remaining() + 7);
+        outer.position(3);
+        ByteBuffer slice = outer.slice();
+        slice.position(2);
+        slice.put(bytes.duplicate());
+        slice.position(2);
+        slice.limit(2 + bytes.remaining());
+
+        read = new LucandraTermInfo(5, slice);
+        assertEquals(2, slice.position());
+        assertEquals(3, read.freq);
+        assertEquals(Byte.valueOf((byte) 4), read.norm);
+        assertTrue(Arrays.equals(offsets, read.getOffsets()));
+        assertTrue(Arrays.equals(positions, read.getPositions()));
+        assertEquals(bytes, read.serialize());
+    }
+
+    public void testPostingsBlock()
+    {
+        List<IColumn> columns = new ArrayList<IColumn>();
+        columns.add(new Column(ByteBuffer.wrap(CassandraUtils.writeVInt(3)), new LucandraTermInfo(3, 2, new int[] { 1, 9 },
+                new int[] { 0, 4, 30, 34 }, (byte) 7).serialize(), 0));
+        columns.add(new DeletedColumn(ByteBuffer.wrap(CassandraUtils.writeVInt(5)), 0, 0));
+        columns.add(new Column(ByteBuffer.wrap(CassandraUtils.writeVInt(200)), new LucandraTermInfo(200, 1, null, null,
+                null).serialize(), 0));
+        columns.add(new Column(ByteBuffer.wrap(CassandraUtils.writeVInt(201)), new LucandraTermInfo(201, 3, new int[] { 2,
+                4, 400 }, null, (byte) 1).serialize(), 0));
+
+        PostingsBlock block = PostingsBlock.read(columns);
+
+        assertEquals(3, block.size());
+        assertEquals(201, block.lastDoc);
+        assertTrue(Arrays.equals(new int[] { 3, 200, 201 }, block.docIds));
+        assertTrue(Arrays.equals(new int[] { 2, 1, 3 }, block.freqs));
+        assertTrue(Arrays.equals(new byte[] { 7, PostingsBlock.defaultNorm, 1 }, block.norms));
+
+        assertTrue(Arrays.equals(new int[] { 1, 9 }, block.positions(0)));
+        assertNull(block.positions(1));
+        assertTrue(Arrays.equals(new int[] { 2, 4, 400 }, block.positions(2)));
+
+        PostingsBlock joined = PostingsBlock.concat(Arrays.asList(block, PostingsBlock.read(columns.subList(0, 1))));
+        assertEquals(4, joined.size());
+        assertTrue(Arrays.equals(new int[] { 2, 4, 400 }, joined.positions(2)));
+        assertTrue(Arrays.equals(new int[] { 1, 9 }, joined.positions(3)));
+
+        assertEquals(0, block.find(0, 0));
+        assertEquals(1, block.find(0, 4));
+        assertEquals(2, block.find(1, 201));
+        assertEquals(2, block.find(2, 3));
+        assertEquals(3, block.find(0, 202));
+
+        // galloping agrees with a linear scan
+        List<IColumn> many = new ArrayList<IColumn>();
+        for (int doc = 1; doc < 3000; doc += 1 + doc % 7)
+            many.add(new Column(ByteBuffer.wrap(CassandraUtils.writeVInt(doc)), new LucandraTermInfo(doc, 1, null, null,
+                    null).serialize(), 0));
+
+        PostingsBlock large = PostingsBlock.read(many);
+        for (int from = 0; from < large.size(); from += 97)
+        {
+            for (int target = 0; target < 3100; target += 13)
+            {
+                int expected = from;
+                while (expected < large.size() && large.docIds[expected] < target)
+                    expected++;
+
+                assertEquals(expected, large.find(from, target));
+            }
+        }
+
+        // packed form, and columns written since overriding it
+        PostingsBlock packed = PostingsBlock.deserialize(block.serialize());
+        assertTrue(Arrays.equals(block.docIds, packed.docIds));
+        assertTrue(Arrays.equals(block.freqs, packed.freqs));
+        assertTrue(Arrays.equals(block.norms, packed.norms));
+        assertTrue(Arrays.equals(new int[] { 0, 4, 30, 34 }, packed.termInfo(0).getOffsets()));
+        assertEquals(block.termInfo(2).serialize(), packed.termInfo(2).serialize());
+
+        List<IColumn> since = new ArrayList<IColumn>();
+        since.add(new DeletedColumn(ByteBuffer.wrap(CassandraUtils.writeVInt(3)), 0, 0));
+        since.add(new Column(ByteBuffer.wrap(CassandraUtils.writeVInt(100)), new LucandraTermInfo(100, 5, null, null,
+                null).serialize(), 0));
+        since.add(new Column(ByteBuffer.wrap(CassandraUtils.writeVInt(200)), ByteBuffer.allocate(0), 0));
+
+        PostingsBlock merged = PostingsBlock.merge(packed, since, 0, Integer.MAX_VALUE);
+        assertTrue(Arrays.equals(new int[] { 3, 100, 201 }, merged.docIds));
+        assertTrue(Arrays.equals(new int[] { 2, 5, 3 }, merged.freqs));
+        assertTrue(Arrays.equals(new int[] { 2, 4, 400 }, merged.positions(2)));
+
+        merged = PostingsBlock.merge(packed, since, 4, 200);
+        assertTrue(Arrays.equals(new int[] { 100 }, merged.docIds));
+
+        BlockPostings skip = BlockPostings.deserialize(new BlockPostings(new int[] { 3, 300, 7000 }, new int[] { 250, 6000,
+                7001 }, new int[] { 128, 128, 2 }).serialize());
+        assertEquals(258, skip.docCount);
+        assertTrue(skip.covers(3));
+        assertTrue(skip.covers(250));
+        assertFalse(skip.covers(251));
+        assertFalse(skip.covers(2));
+        assertTrue(skip.covers(7001));
+        assertFalse(skip.covers(7002));
+        assertEquals(0, skip.blockOf(1));
+        assertEquals(0, skip.blockOf(299));
+        assertEquals(1, skip.blockOf(300));
+        assertEquals(2, skip.blockOf(100000));
+        assertTrue(BlockPostings.isBlockColumn(BlockPostings.blockColumn(0)));
+        assertTrue(BlockPostings.isBlockColumn(BlockPostings.skipColumn));
+        assertFalse(BlockPostings.isBlockColumn(BlockPostings.lastDocColumn));
+
+        PostingsCursor cursor = new PostingsCursor(block);
+        int[] docs = new int[2];
+        int[] freqs = new int[2];
+        assertEquals(2, cursor.read(docs, freqs));
+        assertTrue(Arrays.equals(new int[] { 3, 200 }, docs));
+        assertEquals(200, cursor.doc());
+        assertEquals(1, cursor.read(docs, freqs));
+        assertEquals(201, docs[0]);
+        assertEquals(3, freqs[0]);
+        assertEquals(0, cursor.read(docs, freqs));
+    }
+
+    public void testRowKeys() throws Exception
+    {
+        String index = "keytest";
+        byte[] delim = CassandraUtils.delimeterBytes;
+
+        assertEquals(CassandraUtils.hashKeyBytes(index.getBytes(), delim, "title".getBytes(), delim, "caf\u00e9".getBytes("UTF-8")),
+                CassandraUtils.termKey(index, new Term("title", "caf\u00e9")));
+
+        assertEquals(CassandraUtils.hashKeyBytes(index.getBytes(), delim, "title".getBytes()), CassandraUtils.fieldKey(index, "title"));
+        assertEquals(CassandraUtils.hashKeyBytes(index.getBytes(), delim, "ids".getBytes()), CassandraUtils.indexKey(index, "ids"));
+        assertEquals(CassandraUtils.hashKeyBytes(index.getBytes(), delim, (CassandraUtils.normsRow + "title").getBytes("UTF-8")),
+                CassandraUtils.normsKey(index, "title"));
+
+        for (int docNumber : new int[] { 0, 15, 16, 131071 })
+            assertEquals(CassandraUtils.hashKeyBytes(index.getBytes(), delim, Integer.toHexString(docNumber).getBytes()),
+                    CassandraUtils.docKey(index, docNumber));
+    }
+
+    public void testWrittenTermSet()
+    {
+        WrittenTermsFilter.TermSet terms = new WrittenTermsFilter.TermSet(1000);
+
+        for (int i = 0; i < 2000; i++)
+        {
+            byte[] term = ("term" + i).getBytes();
+            terms.add(WrittenTermsFilter.fingerprint(term, 0, term.length));
+        }
+
+        assertEquals(1000, terms.size());
+        assertEquals(2048, terms.slots());
+
+        for (int i = 0; i < 2000; i++)
+        {
+            byte[] term = ("term" + i).getBytes();
+            assertEquals(i < 1000, terms.contains(WrittenTermsFilter.fingerprint(term, 0, term.length)));
+        }
+    }
+
+    public void testReaderCache()
+    {
+        ReaderCache cache = new ReaderCache("cachetest", 10000, 0, 10000, 1000, 4, 1000);
+
+        try
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                Document doc = new Document();
+                doc.add(new Field("key", "value" + i, Field.Store.YES, Field.Index.NO));
+                cache.documents.put(i, doc);
+            }
+
+            // the most recent documents are kept, up to their weight
+            assertTrue(cache.documents.size() < 100);
+            assertTrue(cache.documents.containsKey(99));
+            assertFalse(cache.documents.containsKey(0));
+            assertEquals(100 - cache.documents.size(), cache.documentStats.getEvictions());
+            assertTrue(cache.weight() <= 12000);
+
+            PostingsBlock withNorms = PostingsBlock.read(Arrays.asList((IColumn) new Column(ByteBuffer
+                    .wrap(CassandraUtils.writeVInt(3)), new LucandraTermInfo(3, 1, null, null, (byte) 7).serialize(), 0)));
+            assertTrue(withNorms.hasNorms());
+            assertFalse(PostingsBlock.empty.hasNorms());
+
+            LucandraTermEnum termEnum = new LucandraTermEnum(new IndexReader("cachetest"));
+            for (int i = 0; i < 4; i++)
+                cache.cachePostings(new ReaderCache.PostingsKey(termEnum, new Term("title", "t" + i)),
+                        i < 2 ? withNorms : PostingsBlock.empty);
+            cache.cachePostings(new ReaderCache.PostingsKey(termEnum, new Term("body", "t")), withNorms);
+
+            // evicting the norms of a field drops its postings carrying the
+            // norms of older docs
+            cache.fieldNorms.put("title", new byte[600]);
+            cache.fieldNorms.put("body", new byte[600]);
+
+            assertFalse(cache.fieldNorms.containsKey("title"));
+            assertEquals(1, cache.normsStats.getEvictions());
+            assertEquals(3, cache.postings.size());
+            assertFalse(cache.postings.containsKey(new ReaderCache.PostingsKey(termEnum, new Term("title", "t0"))));
+            assertTrue(cache.postings.containsKey(new ReaderCache.PostingsKey(termEnum, new Term("title", "t2"))));
+            assertTrue(cache.postings.containsKey(new ReaderCache.PostingsKey(termEnum, new Term("body", "t"))));
+
+            long globalCapacity = ReaderCache.getGlobalCapacity();
+            try
+            {
+                // the largest cache is trimmed first
+                long others = ReaderCache.globalWeight() - cache.weight();
+                ReaderCache.setGlobalCapacity(others + 1000);
+
+                assertTrue(ReaderCache.globalWeight() <= others + 1000);
+                assertTrue(cache.documents.size() < 10);
+                assertTrue(cache.fieldNorms.containsKey("body"));
+            }
+            finally
+            {
+                ReaderCache.setGlobalCapacity(globalCapacity);
+            }
+        }
+        finally
+        {
+            cache.release();
+        }
+
+        assertTrue(cache.documents.isEmpty());
+    }
+
+    public void testOffHeapDocuments() throws Exception
+    {
+        ReaderCache.Stats stats = new ReaderCache.Stats();
+        OffHeapDocuments documents = new OffHeapDocuments(1000, stats);
+
+        List<IColumn> columns = new ArrayList<IColumn>();
+        columns.add(new Column(CassandraUtils.documentMetaFieldBytes, ByteBuffer.wrap(new byte[] { 1 })));
+        columns.add(new Column(ByteBuffer.wrap("key".getBytes()), ByteBuffer.wrap("value".getBytes())));
+        columns.add(new DeletedColumn(ByteBuffer.wrap("old".getBytes()), 1, 1));
+        columns.add(new Column(ByteBuffer.wrap("title".getBytes()), ByteBuffer.wrap(new byte[0])));
+
+        documents.put(7, columns);
+
+        // meta and deleted columns are not kept
+        List<IColumn> cached = documents.get(7);
+        assertEquals(2, cached.size());
+        assertEquals(ByteBuffer.wrap("key".getBytes()), cached.get(0).name());
+        assertEquals(ByteBuffer.wrap("value".getBytes()), cached.get(0).value());
+        assertEquals(ByteBuffer.wrap("title".getBytes()), cached.get(1).name());
+        assertEquals(0, cached.get(1).value().remaining());
+        assertNull(documents.get(8));
+
+        for (int i = 0; i < 100; i++)
+            documents.put(i + 100, columns);
+
+        assertTrue(documents.weight() <= 1000);
+        assertFalse(documents.contains(7));
+        assertTrue(documents.contains(199));
+        assertEquals(101 - documents.size(), stats.getEvictions());
+
+        // evicted and removed entries give their chunks back
+        documents.clear();
+        assertEquals(0, documents.weight());
+        documents.put(7, columns);
+        assertEquals(2, documents.get(7).size());
+    }
+
+    public void testOffHeapSlabs()
+    {
+        OffHeapDocuments.Slabs slabs = new OffHeapDocuments.Slabs(1024, OffHeapDocuments.Slabs.slabSize);
+
+        assertNotNull(slabs.allocate(1022));
+        assertNull(slabs.allocate(3));
+
+        byte[] bytes = new byte[1500];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) i;
+
+        int[] chunks = slabs.allocate(2);
+        slabs.write(chunks, bytes, bytes.length);
+
+        byte[] read = new byte[bytes.length];
+        slabs.read(chunks, read);
+        assertTrue(Arrays.equals(bytes, read));
+
+        slabs.free(chunks);
+        assertNotNull(slabs.allocate(1));
+        assertNotNull(slabs.allocate(1));
+        assertNull(slabs.allocate(1));
+    }
+
+    public void testChangeLogEntries()
+    {
+        ChangeLog.Changes changes = new ChangeLog.Changes();
+        changes.add(12, Arrays.asList(new Term("title", "foo"), new Term("body", "b\u00e4r")));
+        changes.add(3, Arrays.asList(new Term("title", "foo")));
+        changes.add(-1, Arrays.asList(new Term("body", "baz")));
+
+        ChangeLog.Changes read = ChangeLog.Changes.deserialize(changes.serialize());
+        assertFalse(read.isAll());
+        assertEquals(changes.docs, read.docs);
+        assertEquals(changes.terms, read.terms);
+        assertEquals(3, read.terms.size());
+
+        ChangeLog.Changes all = new ChangeLog.Changes();
+        all.add(1, Arrays.asList(new Term("title", "foo")));
+        all.merge(ChangeLog.Changes.deserialize(ByteBuffer.wrap(new byte[] { 1, 0, 0 })));
+        assertTrue(all.isAll());
+        assertTrue(all.docs.isEmpty());
+
+        read.merge(all);
+        assertTrue(read.isAll());
+        assertFalse(read.isEmpty());
+    }
+
+    public void testMutationFlusher() throws Exception
+    {
+        final Semaphore writable = new Semaphore(0);
+        final AtomicInteger writes = new AtomicInteger();
+
+        // one thread and one pending write, writes wait for a permit
+        final MutationFlusher flusher = new MutationFlusher(1, 1) {
+            void write(ConsistencyLevel cl, RowMutation[] mutations)
+            {
+                writable.acquireUninterruptibly();
+                writes.incrementAndGet();
+
+                if (mutations[0].key().get(0) == 'x')
+                    throw new RuntimeException("write failed");
+            }
+        };
+
+        Future<Void> first = flusher.submit(ConsistencyLevel.ONE, mutation("a"));
+        Future<Void> second = flusher.submit(ConsistencyLevel.ONE, mutation("b"));
+
+        final CountDownLatch submitted = new CountDownLatch(1);
+        final AtomicReference<Future<Void>> third = new AtomicReference<Future<Void>>();
+        Thread submitter = new Thread() {
+            public void run()
+            {
+                third.set(flusher.submit(ConsistencyLevel.ONE, mutation("c")));
+                submitted.countDown();
+            }
+        };
+        submitter.start();
+
+        // all permits are taken until a write completes
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+        writable.release();
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        first.get();
+
+        writable.release(2);
+        second.get();
+        third.get().get();
+
+        // attempted runs once, after every chunk
+        writable.release(Integer.MAX_VALUE / 2);
+        writes.set(0);
+
+        final AtomicInteger attempted = new AtomicInteger();
+        final AtomicInteger writesBefore = new AtomicInteger();
+        Runnable callback = new Runnable() {
+            public void run()
+            {
+                attempted.incrementAndGet();
+                writesBefore.set(writes.get());
+            }
+        };
+
+        flusher.submit(ConsistencyLevel.ONE, Arrays.asList(mutation("d"), mutation("e"), mutation("f")), 1,
+                callback).get(5, TimeUnit.SECONDS);
+        assertEquals(1, attempted.get());
+        assertEquals(3, writesBefore.get());
+
+        // a failed chunk fails the batch, and is still attempted
+        attempted.set(0);
+        Future<Void> failed = flusher.submit(ConsistencyLevel.ONE, Arrays.asList(mutation("g"), mutation("x"),
+                mutation("h")), 1, callback);
+
+        try
+        {
+            MutationFlusher.await(failed);
+            fail("expected the failed write");
+        }
+        catch (RuntimeException e)
+        {
+            assertEquals("write failed", e.getMessage());
+        }
+
+        try
+        {
+            failed.get();
+            fail("expected the failed write");
+        }
+        catch (ExecutionException e)
+        {
+            assertEquals("write failed", e.getCause().getMessage());
+        }
+
+        for (int i = 0; i < 500 && !failed.isDone(); i++)
+            Thread.sleep(10);
+
+        assertTrue(failed.isDone());
+        assertEquals(1, attempted.get());
+
+        // nothing to write is attempted right away
+        flusher.submit(ConsistencyLevel.ONE, new ArrayList<RowMutation>(), 1, callback);
+        assertEquals(2, attempted.get());
+    }
+
+    private static RowMutation mutation(String key)
+    {
+        return new RowMutation(CassandraUtils.keySpace, ByteBuffer.wrap(key.getBytes()));
+    }
 }